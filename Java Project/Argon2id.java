@@ -0,0 +1,375 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Argon2id, version 0x13 (RFC 9106), with its BLAKE2b.
+ *
+ * The memory is split into {@code lanes} rows that are filled independently within each of the
+ * four slices of a pass, so lanes can run on separate threads: with p lanes on p cores the same
+ * memory and passes cost about 1/p of the single-threaded wall-clock time. The lane count is part
+ * of the parameters (it changes the output); the thread count is not.
+ */
+final class Argon2id {
+    static final int VERSION = 0x13;
+    static final int MIN_MEMORY_KIB_PER_LANE = 8;
+
+    private static final int TYPE = 2;                 // Argon2id
+    private static final int BLOCK_LONGS = 128;        // 1 KiB blocks
+    private static final int SYNC_POINTS = 4;          // slices per pass
+    private static final int ADDRESSES_PER_BLOCK = BLOCK_LONGS;
+
+    private final long[] memory;
+    private final int passes;
+    private final int lanes;
+    private final int laneLength;
+    private final int segmentLength;
+
+    private Argon2id(int passes, int memoryKiB, int lanes) {
+        this.passes = passes;
+        this.lanes = lanes;
+        int blocks = memoryKiB / (SYNC_POINTS * lanes) * (SYNC_POINTS * lanes);
+        this.laneLength = blocks / lanes;
+        this.segmentLength = laneLength / SYNC_POINTS;
+        this.memory = new long[blocks * BLOCK_LONGS];
+    }
+
+    /**
+     * Computes a {@code tagLength}-byte Argon2id tag. {@code secret} and {@code ad} may be empty;
+     * lanes are filled on up to {@code threads} threads.
+     */
+    static byte[] hash(byte[] password, byte[] salt, byte[] secret, byte[] ad,
+                       int passes, int memoryKiB, int lanes, int tagLength, int threads) {
+        if (passes < 1) throw new IllegalArgumentException("Argon2id needs at least one pass");
+        if (lanes < 1 || lanes > 0xFFFFFF) throw new IllegalArgumentException("Argon2id lanes must be 1..2^24-1");
+        if (memoryKiB < MIN_MEMORY_KIB_PER_LANE * lanes || memoryKiB > (Integer.MAX_VALUE / BLOCK_LONGS)) {
+            throw new IllegalArgumentException("Argon2id memory must be at least " + MIN_MEMORY_KIB_PER_LANE
+                    + " KiB per lane");
+        }
+        if (tagLength < 4) throw new IllegalArgumentException("Argon2id tags are at least 4 bytes");
+        if (salt.length < 8) throw new IllegalArgumentException("Argon2id salts are at least 8 bytes");
+
+        Blake2b h = new Blake2b(64);
+        h.updateInt(lanes).updateInt(tagLength).updateInt(memoryKiB).updateInt(passes).updateInt(VERSION).updateInt(TYPE);
+        h.updateInt(password.length).update(password);
+        h.updateInt(salt.length).update(salt);
+        h.updateInt(secret.length).update(secret);
+        h.updateInt(ad.length).update(ad);
+        byte[] h0 = Arrays.copyOf(h.digest(), 64 + 8);
+
+        Argon2id a = new Argon2id(passes, memoryKiB, lanes);
+        try {
+            a.init(h0);
+            a.fill(Math.max(1, Math.min(threads, lanes)));
+            return a.finish(tagLength);
+        } finally {
+            Arrays.fill(a.memory, 0);
+            Arrays.fill(h0, (byte) 0);
+        }
+    }
+
+    // ===== Filling =====
+
+    /** The first two blocks of every lane come straight from H0. */
+    private void init(byte[] h0) {
+        ByteBuffer tail = ByteBuffer.wrap(h0).order(ByteOrder.LITTLE_ENDIAN);
+        for (int l = 0; l < lanes; l++) {
+            for (int j = 0; j < 2; j++) {
+                tail.putInt(64, j).putInt(68, l);
+                byte[] block = hashLong(BLOCK_LONGS * 8, h0);
+                ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer()
+                        .get(memory, (l * laneLength + j) * BLOCK_LONGS, BLOCK_LONGS);
+                Arrays.fill(block, (byte) 0);
+            }
+        }
+    }
+
+    private void fill(int threads) {
+        if (threads == 1) {
+            for (int pass = 0; pass < passes; pass++) {
+                for (int slice = 0; slice < SYNC_POINTS; slice++) {
+                    for (int lane = 0; lane < lanes; lane++) fillSegment(pass, lane, slice);
+                }
+            }
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "vault-argon2");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> segments = new ArrayList<>(lanes);
+            for (int pass = 0; pass < passes; pass++) {
+                for (int slice = 0; slice < SYNC_POINTS; slice++) {
+                    // lanes only read other lanes' finished slices, so a slice is the sync point
+                    segments.clear();
+                    for (int lane = 0; lane < lanes; lane++) {
+                        int p = pass, l = lane, s = slice;
+                        segments.add(pool.submit(() -> fillSegment(p, l, s)));
+                    }
+                    for (Future<?> f : segments) f.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during key derivation", e);
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof RuntimeException) throw (RuntimeException) c;
+            if (c instanceof Error) throw (Error) c;
+            throw new IllegalStateException(c);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void fillSegment(int pass, int lane, int slice) {
+        long[] r = new long[BLOCK_LONGS];
+        long[] tmp = new long[BLOCK_LONGS];
+        // Argon2id: data-independent addressing for the first half of the first pass
+        boolean independent = pass == 0 && slice < SYNC_POINTS / 2;
+        long[] address = null, input = null, zero = null;
+        int start = pass == 0 && slice == 0 ? 2 : 0;
+        if (independent) {
+            address = new long[BLOCK_LONGS];
+            input = new long[BLOCK_LONGS];
+            zero = new long[BLOCK_LONGS];
+            input[0] = pass;
+            input[1] = lane;
+            input[2] = slice;
+            input[3] = (long) laneLength * lanes;
+            input[4] = passes;
+            input[5] = TYPE;
+            if (start == 2) nextAddresses(address, input, zero, r, tmp);
+        }
+
+        int curr = lane * laneLength + slice * segmentLength + start;
+        int prev = curr % laneLength == 0 ? curr + laneLength - 1 : curr - 1;
+        for (int i = start; i < segmentLength; i++, curr++, prev++) {
+            if (curr % laneLength == 1) prev = curr - 1;
+            long rand;
+            if (independent) {
+                if (i % ADDRESSES_PER_BLOCK == 0) nextAddresses(address, input, zero, r, tmp);
+                rand = address[i % ADDRESSES_PER_BLOCK];
+            } else {
+                rand = memory[prev * BLOCK_LONGS];
+            }
+            int refLane = pass == 0 && slice == 0 ? lane : (int) ((rand >>> 32) % lanes);
+            int refIndex = referenceIndex(pass, slice, i, rand & 0xFFFFFFFFL, refLane == lane);
+            fillBlock(memory, prev * BLOCK_LONGS, memory, (refLane * laneLength + refIndex) * BLOCK_LONGS,
+                    memory, curr * BLOCK_LONGS, pass > 0, r, tmp);
+        }
+    }
+
+    /** Maps J1 onto the blocks this position may reference (RFC 9106, section 3.4.1.2). */
+    private int referenceIndex(int pass, int slice, int index, long j1, boolean sameLane) {
+        long area;
+        if (pass == 0) {
+            if (slice == 0) {
+                area = index - 1;
+            } else if (sameLane) {
+                area = (long) slice * segmentLength + index - 1;
+            } else {
+                area = (long) slice * segmentLength + (index == 0 ? -1 : 0);
+            }
+        } else if (sameLane) {
+            area = laneLength - segmentLength + index - 1;
+        } else {
+            area = laneLength - segmentLength + (index == 0 ? -1 : 0);
+        }
+        long x = (j1 * j1) >>> 32;
+        long relative = area - 1 - ((area * x) >>> 32);
+        long startPos = pass == 0 || slice == SYNC_POINTS - 1 ? 0 : (long) (slice + 1) * segmentLength;
+        return (int) ((startPos + relative) % laneLength);
+    }
+
+    private static void nextAddresses(long[] address, long[] input, long[] zero, long[] r, long[] tmp) {
+        input[6]++;
+        fillBlock(zero, 0, input, 0, address, 0, false, r, tmp);
+        fillBlock(zero, 0, address, 0, address, 0, false, r, tmp);
+    }
+
+    /** next = G(prev, ref), XORed into next's old contents when {@code xor} (passes after the first). */
+    private static void fillBlock(long[] prev, int po, long[] ref, int ro, long[] next, int no, boolean xor,
+                                  long[] r, long[] tmp) {
+        for (int i = 0; i < BLOCK_LONGS; i++) r[i] = ref[ro + i] ^ prev[po + i];
+        if (xor) {
+            for (int i = 0; i < BLOCK_LONGS; i++) tmp[i] = r[i] ^ next[no + i];
+        } else {
+            System.arraycopy(r, 0, tmp, 0, BLOCK_LONGS);
+        }
+        for (int i = 0; i < 8; i++) {
+            int b = 16 * i;
+            round(r, b, b + 1, b + 2, b + 3, b + 4, b + 5, b + 6, b + 7,
+                    b + 8, b + 9, b + 10, b + 11, b + 12, b + 13, b + 14, b + 15);
+        }
+        for (int i = 0; i < 8; i++) {
+            int b = 2 * i;
+            round(r, b, b + 1, b + 16, b + 17, b + 32, b + 33, b + 48, b + 49,
+                    b + 64, b + 65, b + 80, b + 81, b + 96, b + 97, b + 112, b + 113);
+        }
+        for (int i = 0; i < BLOCK_LONGS; i++) next[no + i] = tmp[i] ^ r[i];
+    }
+
+    private static void round(long[] v, int v0, int v1, int v2, int v3, int v4, int v5, int v6, int v7,
+                              int v8, int v9, int v10, int v11, int v12, int v13, int v14, int v15) {
+        gb(v, v0, v4, v8, v12);
+        gb(v, v1, v5, v9, v13);
+        gb(v, v2, v6, v10, v14);
+        gb(v, v3, v7, v11, v15);
+        gb(v, v0, v5, v10, v15);
+        gb(v, v1, v6, v11, v12);
+        gb(v, v2, v7, v8, v13);
+        gb(v, v3, v4, v9, v14);
+    }
+
+    /** BLAKE2b's G with the multiplication that makes it BlaMka. */
+    private static void gb(long[] v, int a, int b, int c, int d) {
+        long va = v[a], vb = v[b], vc = v[c], vd = v[d];
+        va = va + vb + 2 * (va & 0xFFFFFFFFL) * (vb & 0xFFFFFFFFL);
+        vd = Long.rotateRight(vd ^ va, 32);
+        vc = vc + vd + 2 * (vc & 0xFFFFFFFFL) * (vd & 0xFFFFFFFFL);
+        vb = Long.rotateRight(vb ^ vc, 24);
+        va = va + vb + 2 * (va & 0xFFFFFFFFL) * (vb & 0xFFFFFFFFL);
+        vd = Long.rotateRight(vd ^ va, 16);
+        vc = vc + vd + 2 * (vc & 0xFFFFFFFFL) * (vd & 0xFFFFFFFFL);
+        vb = Long.rotateRight(vb ^ vc, 63);
+        v[a] = va;
+        v[b] = vb;
+        v[c] = vc;
+        v[d] = vd;
+    }
+
+    /** XOR of every lane's last block, hashed to the tag. */
+    private byte[] finish(int tagLength) {
+        long[] c = Arrays.copyOfRange(memory, (laneLength - 1) * BLOCK_LONGS, laneLength * BLOCK_LONGS);
+        for (int l = 1; l < lanes; l++) {
+            int off = (l * laneLength + laneLength - 1) * BLOCK_LONGS;
+            for (int i = 0; i < BLOCK_LONGS; i++) c[i] ^= memory[off + i];
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(BLOCK_LONGS * 8).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asLongBuffer().put(c);
+        Arrays.fill(c, 0);
+        byte[] tag = hashLong(tagLength, bytes.array());
+        Arrays.fill(bytes.array(), (byte) 0);
+        return tag;
+    }
+
+    /** H' (RFC 9106, section 3.3): BLAKE2b stretched to any output length. */
+    private static byte[] hashLong(int length, byte[] in) {
+        if (length <= 64) return new Blake2b(length).updateInt(length).update(in).digest();
+        // 32 bytes from each of V1..Vr, then all of V(r+1), which is only as long as what is left
+        int r = (length + 31) / 32 - 2;
+        byte[] out = new byte[length];
+        byte[] v = new Blake2b(64).updateInt(length).update(in).digest();
+        for (int i = 0; i < r; i++) {
+            if (i > 0) v = new Blake2b(64).update(v).digest();
+            System.arraycopy(v, 0, out, 32 * i, 32);
+        }
+        byte[] last = new Blake2b(length - 32 * r).update(v).digest();
+        System.arraycopy(last, 0, out, 32 * r, last.length);
+        return out;
+    }
+
+    // ===== BLAKE2b (RFC 7693), unkeyed =====
+
+    static final class Blake2b {
+        private static final long[] IV = {
+                0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+                0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L};
+        private static final byte[][] SIGMA = {
+                {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15},
+                {14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3},
+                {11, 8, 12, 0, 5, 2, 15, 13, 10, 14, 3, 6, 7, 1, 9, 4},
+                {7, 9, 3, 1, 13, 12, 11, 14, 2, 6, 5, 10, 4, 0, 15, 8},
+                {9, 0, 5, 7, 2, 4, 10, 15, 14, 1, 11, 12, 6, 8, 3, 13},
+                {2, 12, 6, 10, 0, 11, 8, 3, 4, 13, 7, 5, 15, 14, 1, 9},
+                {12, 5, 1, 15, 14, 13, 4, 10, 0, 7, 6, 3, 9, 2, 8, 11},
+                {13, 11, 7, 14, 12, 1, 3, 9, 5, 0, 15, 4, 8, 6, 2, 10},
+                {6, 15, 14, 9, 11, 3, 0, 8, 12, 2, 13, 7, 1, 4, 10, 5},
+                {10, 2, 8, 4, 7, 6, 1, 5, 15, 11, 9, 14, 3, 12, 13, 0}};
+
+        private final long[] h = new long[8];
+        private final long[] v = new long[16];
+        private final long[] m = new long[16];
+        private final byte[] buf = new byte[128];
+        private final int outLength;
+        private int bufLen;
+        private long counter;
+
+        Blake2b(int outLength) {
+            if (outLength < 1 || outLength > 64) throw new IllegalArgumentException("BLAKE2b output is 1..64 bytes");
+            this.outLength = outLength;
+            System.arraycopy(IV, 0, h, 0, 8);
+            h[0] ^= 0x01010000L ^ outLength;
+        }
+
+        Blake2b updateInt(int x) {
+            return update(new byte[]{(byte) x, (byte) (x >>> 8), (byte) (x >>> 16), (byte) (x >>> 24)});
+        }
+
+        Blake2b update(byte[] in) {
+            int off = 0;
+            while (off < in.length) {
+                // the final block is compressed by digest(), flagged as last
+                if (bufLen == buf.length) {
+                    counter += buf.length;
+                    compress(false);
+                    bufLen = 0;
+                }
+                int n = Math.min(buf.length - bufLen, in.length - off);
+                System.arraycopy(in, off, buf, bufLen, n);
+                bufLen += n;
+                off += n;
+            }
+            return this;
+        }
+
+        byte[] digest() {
+            counter += bufLen;
+            Arrays.fill(buf, bufLen, buf.length, (byte) 0);
+            compress(true);
+            ByteBuffer out = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+            out.asLongBuffer().put(h);
+            return Arrays.copyOf(out.array(), outLength);
+        }
+
+        private void compress(boolean last) {
+            ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(m);
+            System.arraycopy(h, 0, v, 0, 8);
+            System.arraycopy(IV, 0, v, 8, 8);
+            v[12] ^= counter;
+            if (last) v[14] = ~v[14];
+            for (int i = 0; i < 12; i++) {
+                byte[] s = SIGMA[i % 10];
+                g(0, 4, 8, 12, m[s[0]], m[s[1]]);
+                g(1, 5, 9, 13, m[s[2]], m[s[3]]);
+                g(2, 6, 10, 14, m[s[4]], m[s[5]]);
+                g(3, 7, 11, 15, m[s[6]], m[s[7]]);
+                g(0, 5, 10, 15, m[s[8]], m[s[9]]);
+                g(1, 6, 11, 12, m[s[10]], m[s[11]]);
+                g(2, 7, 8, 13, m[s[12]], m[s[13]]);
+                g(3, 4, 9, 14, m[s[14]], m[s[15]]);
+            }
+            for (int i = 0; i < 8; i++) h[i] ^= v[i] ^ v[i + 8];
+        }
+
+        private void g(int a, int b, int c, int d, long x, long y) {
+            v[a] = v[a] + v[b] + x;
+            v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+            v[c] = v[c] + v[d];
+            v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+            v[a] = v[a] + v[b] + y;
+            v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+            v[c] = v[c] + v[d];
+            v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reusable direct buffers for the channel I/O paths.
+ *
+ * Direct buffers let {@code FileChannel} read and write without staging the data in a
+ * temporary heap array, but they are slow to allocate and are only freed by the GC, so
+ * they are recycled rather than allocated per item. Requests larger than the pool's
+ * buffer size get a one-off buffer that is dropped on release.
+ */
+final class BufferPool {
+    static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    static final int MIN_BUFFER_SIZE     = 64 * 1024;
+
+    private final int bufferSize;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /** A pool of {@code bufferSize}-byte buffers keeping at most {@code maxIdle} of them between uses. */
+    BufferPool(int bufferSize, int maxIdle) {
+        if (bufferSize < MIN_BUFFER_SIZE) throw new IllegalArgumentException("Buffer size must be at least " + MIN_BUFFER_SIZE);
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /** A cleared buffer of at least {@code capacity} bytes, with its limit set to {@code capacity}. */
+    ByteBuffer acquire(int capacity) {
+        ByteBuffer b = null;
+        if (capacity <= bufferSize) {
+            b = idle.poll();
+            if (b != null) idleCount.decrementAndGet();
+        }
+        if (b == null) b = ByteBuffer.allocateDirect(Math.max(capacity, bufferSize));
+        b.clear().limit(capacity);
+        return b;
+    }
+
+    void release(ByteBuffer b) {
+        if (b == null || b.capacity() != bufferSize) return;
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(b);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+}
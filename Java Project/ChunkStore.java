@@ -0,0 +1,330 @@
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Deduplicating store of encrypted content-defined chunks.
+ *
+ * A chunk's id is HMAC-SHA256 of its plaintext under a vault secret, so equal content
+ * maps to one stored chunk while the id reveals nothing without the key. Chunks live at
+ * {@code chunks/<2 hex>/<64 hex>} as {@code nonce(12) | AES/GCM(plaintext, AAD = id) | tag(16)}.
+ *
+ * An item stored this way is a manifest: a list of {@code id(32) | length(4)} refs,
+ * written as an ordinary (per-item keyed) vault item. Chunks are shared between items,
+ * so deleting an item only drops its manifest; {@link #prune} later removes chunks no
+ * manifest references any more (mark and sweep).
+ */
+final class ChunkStore {
+    static final int ID_BYTES  = 32;
+    static final int REF_BYTES = ID_BYTES + 4;
+
+    private static final int NONCE_BYTES = 12;
+    private static final int TAG_BITS    = 128;
+    private static final int OVERHEAD    = NONCE_BYTES + TAG_BITS / 8;
+    private static final String STATS_NAME = "stats.properties";
+
+    private static final SecureRandom RNG = new SecureRandom();
+
+    /** Outcome of storing one item's plaintext. */
+    static final class StoreResult {
+        long logicalBytes;   // plaintext bytes chunked
+        long chunks;         // chunk refs written to the manifest
+        long newChunks;      // chunks that were not in the store yet
+        long newBytes;       // bytes those new chunks occupy on disk
+    }
+
+    private final Path dir;
+    private final SecretKey encKey;
+    private final SecretKeySpec idKey;
+    private final long[] gear = new long[256];
+    private long chunkCount;  // stored chunks
+    private long chunkBytes;  // bytes they occupy on disk
+
+    private ChunkStore(Path dir, SecretKey encKey, SecretKeySpec idKey) {
+        this.dir = dir;
+        this.encKey = encKey;
+        this.idKey = idKey;
+    }
+
+    static ChunkStore open(Path dir, SecretKey encKey, byte[] idKey) throws IOException {
+        Files.createDirectories(dir);
+        ChunkStore store = new ChunkStore(dir, encKey, new SecretKeySpec(idKey, "HmacSHA256"));
+        Mac mac = store.newMac();
+        for (int i = 0; i < 256; i++) {
+            byte[] h = mac.doFinal(("gear " + i).getBytes(StandardCharsets.UTF_8));
+            store.gear[i] = ByteBuffer.wrap(h).getLong();
+        }
+        Path stats = dir.resolve(STATS_NAME);
+        if (Files.exists(stats)) {
+            Properties p = new Properties();
+            try (InputStream in = Files.newInputStream(stats)) {
+                p.load(in);
+            }
+            store.chunkCount = Long.parseLong(p.getProperty("chunks", "0"));
+            store.chunkBytes = Long.parseLong(p.getProperty("bytes", "0"));
+        }
+        return store;
+    }
+
+    /** Chunks {@code in}, stores chunks not seen before, and writes one ref per chunk to {@code manifest}. */
+    StoreResult store(InputStream in, OutputStream manifest) throws IOException, GeneralSecurityException {
+        StoreResult r = new StoreResult();
+        Chunker chunker = new Chunker(in, gear);
+        Mac mac = newMac();
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        byte[] chunk = new byte[Chunker.MAX_SIZE];
+        byte[] sealed = new byte[Chunker.MAX_SIZE + OVERHEAD];
+        DataOutputStream refs = new DataOutputStream(manifest);
+        Set<Path> touched = new HashSet<>();   // shard directories that gained a chunk
+        int n;
+        while ((n = chunker.next(chunk)) >= 0) {
+            mac.update(chunk, 0, n);
+            byte[] id = mac.doFinal();
+            Path p = chunkPath(id);
+            if (!Files.exists(p)) {
+                int len = seal(cipher, id, chunk, n, sealed);
+                Files.createDirectories(p.getParent());
+                Path tmp = p.resolveSibling(p.getFileName() + "." + Long.toHexString(RNG.nextLong()) + ".tmp");
+                try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    SegmentPipeline.write(out, ByteBuffer.wrap(sealed, 0, len));
+                    out.force(true);   // the manifest that names it is made durable; so must the chunk be
+                }
+                // identical content from a concurrent add may land first; either copy is valid
+                Files.move(tmp, p, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                touched.add(p.getParent());
+                r.newChunks++;
+                r.newBytes += len;
+            }
+            refs.write(id);
+            refs.writeInt(n);
+            r.chunks++;
+            r.logicalBytes += n;
+        }
+        for (Path d : touched) StagedWrite.forceDirectory(d);   // the renames, once per directory
+        refs.flush();
+        synchronized (this) {
+            chunkCount += r.newChunks;
+            chunkBytes += r.newBytes;
+            saveStats();
+        }
+        return r;
+    }
+
+    /** Reads and authenticates one chunk into {@code out}; returns its length. */
+    int get(byte[] id, byte[] out) throws IOException, GeneralSecurityException {
+        byte[] sealed;
+        try {
+            sealed = Files.readAllBytes(chunkPath(id));
+        } catch (NoSuchFileException e) {
+            throw new IOException("Missing chunk " + hex(id), e);
+        }
+        if (sealed.length < OVERHEAD || sealed.length - OVERHEAD > out.length) {
+            throw new IOException("Corrupt chunk " + hex(id));
+        }
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, encKey, new GCMParameterSpec(TAG_BITS, sealed, 0, NONCE_BYTES));
+        cipher.updateAAD(id);
+        return cipher.doFinal(sealed, NONCE_BYTES, sealed.length - NONCE_BYTES, out, 0);
+    }
+
+    /**
+     * Sink for a decrypted manifest: writes plaintext bytes {@code [offset, offset + length)} of the
+     * item to {@code out}, fetching only chunks that overlap the range. Call {@code close()} to
+     * check the manifest was complete; {@code out} itself is not closed.
+     */
+    OutputStream manifestSink(OutputStream out, long logicalSize, long offset, long length) {
+        return new ManifestSink(out, logicalSize, offset, length);
+    }
+
+    /** Visits every chunk id referenced by a decrypted manifest. */
+    static OutputStream refCollector(Set<ByteBuffer> into) {
+        return new RefParser() {
+            @Override
+            void ref(byte[] id, int len) {
+                into.add(ByteBuffer.wrap(id));
+            }
+        };
+    }
+
+    /**
+     * Deletes every stored chunk not in {@code referenced}, and temp files of adds; returns {chunks
+     * removed, bytes freed}. No {@link #store} may run meanwhile: it can reuse a chunk that nothing
+     * references yet, and its temp files are still being written.
+     */
+    synchronized long[] prune(Set<ByteBuffer> referenced) throws IOException {
+        long removed = 0, freed = 0, keptCount = 0, keptBytes = 0;
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(dir, 2)) {
+            files = s.filter(p -> p.getParent() != null && !p.getParent().equals(dir) && Files.isRegularFile(p))
+                    .collect(Collectors.toList());
+        }
+        for (Path p : files) {
+            String name = p.getFileName().toString();
+            long size = Files.size(p);
+            byte[] id = name.length() == 2 * ID_BYTES ? unhex(name) : null;
+            if (id == null || !referenced.contains(ByteBuffer.wrap(id))) {
+                // unreferenced chunk, or a temp file left by an interrupted add
+                Files.deleteIfExists(p);
+                removed++;
+                freed += size;
+            } else {
+                keptCount++;
+                keptBytes += size;
+            }
+        }
+        chunkCount = keptCount;
+        chunkBytes = keptBytes;
+        saveStats();
+        return new long[]{removed, freed};
+    }
+
+    synchronized long chunkCount() {
+        return chunkCount;
+    }
+
+    synchronized long chunkBytes() {
+        return chunkBytes;
+    }
+
+    private void saveStats() throws IOException {
+        Properties p = new Properties();
+        p.setProperty("chunks", String.valueOf(chunkCount));
+        p.setProperty("bytes", String.valueOf(chunkBytes));
+        Path tmp = dir.resolve(STATS_NAME + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            p.store(out, "SecureVault chunk store statistics");
+        }
+        Files.move(tmp, dir.resolve(STATS_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private int seal(Cipher cipher, byte[] id, byte[] chunk, int n, byte[] out) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        RNG.nextBytes(nonce);
+        System.arraycopy(nonce, 0, out, 0, NONCE_BYTES);
+        cipher.init(Cipher.ENCRYPT_MODE, encKey, new GCMParameterSpec(TAG_BITS, nonce));
+        cipher.updateAAD(id);
+        return NONCE_BYTES + cipher.doFinal(chunk, 0, n, out, NONCE_BYTES);
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(idKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Path chunkPath(byte[] id) {
+        String h = hex(id);
+        return dir.resolve(h.substring(0, 2)).resolve(h);
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static String hex(byte[] b) {
+        char[] c = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++) {
+            c[2 * i] = HEX[(b[i] >> 4) & 0xF];
+            c[2 * i + 1] = HEX[b[i] & 0xF];
+        }
+        return new String(c);
+    }
+
+    private static byte[] unhex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            int hi = Character.digit(s.charAt(2 * i), 16), lo = Character.digit(s.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) return null;
+            b[i] = (byte) ((hi << 4) | lo);
+        }
+        return b;
+    }
+
+    /** Splits a manifest byte stream into refs, however the writes happen to be sliced. */
+    private abstract static class RefParser extends OutputStream {
+        private final byte[] rec = new byte[REF_BYTES];
+        private int have;
+
+        abstract void ref(byte[] id, int len) throws IOException;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, REF_BYTES - have);
+                System.arraycopy(b, off, rec, have, n);
+                have += n;
+                off += n;
+                len -= n;
+                if (have == REF_BYTES) {
+                    have = 0;
+                    ref(Arrays.copyOf(rec, ID_BYTES), ByteBuffer.wrap(rec, ID_BYTES, 4).getInt());
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (have != 0) throw new IOException("Corrupt manifest: partial chunk reference");
+        }
+    }
+
+    private final class ManifestSink extends RefParser {
+        private final OutputStream out;
+        private final long logicalSize;
+        private final long from;
+        private final long to;
+        private final byte[] chunk = new byte[Chunker.MAX_SIZE];
+        private long pos;   // logical offset of the next chunk
+
+        ManifestSink(OutputStream out, long logicalSize, long offset, long length) {
+            this.out = out;
+            this.logicalSize = logicalSize;
+            this.from = offset;
+            this.to = offset + length;
+        }
+
+        @Override
+        void ref(byte[] id, int len) throws IOException {
+            if (len < 0 || len > Chunker.MAX_SIZE) throw new IOException("Corrupt manifest: bad chunk length");
+            long chunkEnd = pos + len;
+            if (chunkEnd > from && pos < to) {
+                int n;
+                try {
+                    n = get(id, chunk);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Chunk " + hex(id) + " failed authentication", e);
+                }
+                if (n != len) throw new IOException("Chunk " + hex(id) + " has unexpected length");
+                int a = (int) Math.max(0, from - pos);
+                int b = (int) Math.min(len, to - pos);
+                out.write(chunk, a, b - a);
+            }
+            pos = chunkEnd;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (pos != logicalSize) throw new IOException("Corrupt manifest: size mismatch");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.*;
+
+/**
+ * Content-defined chunker (FastCDC with normalized chunking).
+ *
+ * A gear rolling hash runs over the input; a cut is made where the hash has a run of
+ * zero bits under a mask. A stricter mask below the average size and a looser one above
+ * it keep chunk sizes close to the average, and the first {@code min} bytes of every
+ * chunk are skipped outright. Inserting or removing bytes only moves the boundaries
+ * near the edit, so the rest of an edited file still deduplicates.
+ */
+final class Chunker {
+    static final int MIN_SIZE = 16 * 1024;
+    static final int AVG_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+
+    private static final long MASK_S = spreadMask(18); // below AVG_SIZE: harder to cut
+    private static final long MASK_L = spreadMask(14); // above AVG_SIZE: easier to cut
+
+    private final InputStream in;
+    private final long[] gear;
+    private final byte[] buf = new byte[2 * MAX_SIZE];
+    private int start;   // first unconsumed byte in buf
+    private int end;     // one past the last valid byte in buf
+    private boolean eof;
+
+    /** {@code gear} must hold 256 random values; a vault-specific table keeps boundaries private. */
+    Chunker(InputStream in, long[] gear) {
+        if (gear.length != 256) throw new IllegalArgumentException("gear table must have 256 entries");
+        this.in = in;
+        this.gear = gear;
+    }
+
+    /** Copies the next chunk into {@code out} (at least MAX_SIZE long); returns its length, or -1 at end of input. */
+    int next(byte[] out) throws IOException {
+        if (end - start < MAX_SIZE && !eof) fill();
+        int avail = end - start;
+        if (avail == 0) return -1;
+        int n = cutPoint(buf, start, avail);
+        System.arraycopy(buf, start, out, 0, n);
+        start += n;
+        return n;
+    }
+
+    private void fill() throws IOException {
+        System.arraycopy(buf, start, buf, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buf.length) {
+            int r = in.read(buf, end, buf.length - end);
+            if (r < 0) {
+                eof = true;
+                break;
+            }
+            end += r;
+        }
+    }
+
+    private int cutPoint(byte[] b, int off, int len) {
+        if (len <= MIN_SIZE) return len;
+        int n = Math.min(len, MAX_SIZE);
+        int normal = Math.min(n, AVG_SIZE);
+        long fp = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            fp = (fp << 1) + gear[b[off + i] & 0xFF];
+            if ((fp & MASK_S) == 0) return i + 1;
+        }
+        for (; i < n; i++) {
+            fp = (fp << 1) + gear[b[off + i] & 0xFF];
+            if ((fp & MASK_L) == 0) return i + 1;
+        }
+        return n;
+    }
+
+    /** A mask with {@code bits} one-bits spread evenly over the top 48 bits of the hash. */
+    private static long spreadMask(int bits) {
+        long mask = 0;
+        for (int k = 0; k < bits; k++) {
+            mask |= 1L << (63 - (k * 48) / bits);
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,241 @@
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * AEAD suites an item payload can be sealed with. Every suite takes a 256-bit key and a
+ * 96-bit nonce and appends a 16-byte tag, so the segment layout in {@link SegmentCipher}
+ * is the same whichever one an item uses; the suite id lives in the item header
+ * ({@link VaultHeader#EXT_SUITE}), and items without it are AES-GCM.
+ *
+ * AES-GCM is fastest where the CPU has AES and carry-less multiply instructions and the
+ * JVM uses them. ChaCha20-Poly1305 needs neither. AES-CTR + HMAC-SHA256 (encrypt-then-MAC,
+ * tag truncated to 128 bits) has no GHASH dependency and every part of it can be split
+ * across cores. {@link #probe} times them all on the running JVM.
+ */
+enum CipherSuite {
+    AES_GCM(1, "AES-256-GCM") {
+        @Override
+        Session session(SecretKey key) throws GeneralSecurityException {
+            return new AeadSession(Cipher.getInstance("AES/GCM/NoPadding"), key,
+                    nonce -> new GCMParameterSpec(TAG_BYTES * 8, nonce));
+        }
+    },
+
+    CHACHA20_POLY1305(2, "ChaCha20-Poly1305") {
+        @Override
+        Session session(SecretKey key) throws GeneralSecurityException {
+            return new AeadSession(Cipher.getInstance("ChaCha20-Poly1305"), rekey(key, "ChaCha20"), IvParameterSpec::new);
+        }
+    },
+
+    /** Encrypt-then-MAC: tag = HMAC-SHA256(macKey, len(aad) | aad | nonce | ct)[0..16). */
+    AES_CTR_HMAC(3, "AES-256-CTR+HMAC-SHA256") {
+        @Override
+        Session session(SecretKey key) throws GeneralSecurityException {
+            byte[] raw = key.getEncoded();
+            SecretKeySpec encKey = KeyWrap.aesKey(raw, "SecureVault CTR encryption");
+            byte[] macRaw = KeyWrap.derive(raw, "SecureVault CTR authentication");
+            Arrays.fill(raw, (byte) 0);
+            Cipher c = Cipher.getInstance("AES/CTR/NoPadding");
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(macRaw, "HmacSHA256"));
+            Arrays.fill(macRaw, (byte) 0);
+            byte[] counter = new byte[16];
+            byte[] full = new byte[mac.getMacLength()];
+            byte[] given = new byte[TAG_BYTES];
+            ByteBuffer aadLength = ByteBuffer.allocate(8);
+            return new Session() {
+                @Override
+                public int seal(byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+                    ByteBuffer ct = out.duplicate();
+                    c.init(Cipher.ENCRYPT_MODE, encKey, new IvParameterSpec(counterBlock(nonce)));
+                    int n = c.doFinal(in, out);
+                    ct.limit(ct.position() + n);
+                    tag(nonce, aad, ct);
+                    out.put(full, 0, TAG_BYTES);
+                    return n + TAG_BYTES;
+                }
+
+                @Override
+                public int open(byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+                    int n = in.remaining() - TAG_BYTES;
+                    if (n < 0) throw new AEADBadTagException("Segment shorter than its tag");
+                    ByteBuffer ct = in.duplicate();
+                    ct.limit(ct.position() + n);
+                    tag(nonce, aad, ct.duplicate());
+                    in.position(in.position() + n);
+                    in.get(given);
+                    if (!MessageDigest.isEqual(Arrays.copyOf(full, TAG_BYTES), given)) {
+                        throw new AEADBadTagException("Tag mismatch");
+                    }
+                    c.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(counterBlock(nonce)));
+                    return c.doFinal(ct, out);
+                }
+
+                private byte[] counterBlock(byte[] nonce) {
+                    System.arraycopy(nonce, 0, counter, 0, NONCE_BYTES);
+                    return counter;   // counter word starts at 0
+                }
+
+                private void tag(byte[] nonce, byte[] aad, ByteBuffer ct) throws GeneralSecurityException {
+                    mac.update(aadLength.clear().putLong(aad.length).array());
+                    mac.update(aad);
+                    mac.update(nonce);
+                    mac.update(ct);
+                    mac.doFinal(full, 0);
+                }
+            };
+        }
+    };
+
+    static final int NONCE_BYTES = 12;
+    static final int TAG_BYTES   = 16;
+
+    /** Suite used for items whose header does not name one. */
+    static final CipherSuite DEFAULT = AES_GCM;
+
+    private static final int PROBE_BYTES = 64 * 1024;
+    private static volatile CipherSuite probed;
+
+    final int id;
+    final String displayName;
+
+    CipherSuite(int id, String displayName) {
+        this.id = id;
+        this.displayName = displayName;
+    }
+
+    /**
+     * One key's worth of state (cipher instances, derived subkeys). Not thread-safe: use one
+     * per thread. The buffer forms consume {@code in} and advance {@code out}, which must
+     * have room for {@code in.remaining() + TAG_BYTES} bytes when sealing; direct buffers
+     * go to the provider as they are.
+     */
+    interface Session {
+        int seal(byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException;
+
+        /** Returns the plaintext length; throws {@link AEADBadTagException} if the segment does not authenticate. */
+        int open(byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException;
+
+        default int seal(byte[] nonce, byte[] aad, byte[] in, int off, int len, byte[] out, int outOff)
+                throws GeneralSecurityException {
+            return seal(nonce, aad, ByteBuffer.wrap(in, off, len), ByteBuffer.wrap(out, outOff, out.length - outOff));
+        }
+
+        default int open(byte[] nonce, byte[] aad, byte[] in, int off, int len, byte[] out, int outOff)
+                throws GeneralSecurityException {
+            return open(nonce, aad, ByteBuffer.wrap(in, off, len), ByteBuffer.wrap(out, outOff, out.length - outOff));
+        }
+    }
+
+    /** A JCA AEAD cipher (GCM, ChaCha20-Poly1305) whose parameters are built from the nonce alone. */
+    private static final class AeadSession implements Session {
+        private final Cipher c;
+        private final SecretKey key;
+        private final Function<byte[], AlgorithmParameterSpec> params;
+
+        AeadSession(Cipher c, SecretKey key, Function<byte[], AlgorithmParameterSpec> params) {
+            this.c = c;
+            this.key = key;
+            this.params = params;
+        }
+
+        @Override
+        public int seal(byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+            c.init(Cipher.ENCRYPT_MODE, key, params.apply(nonce));
+            c.updateAAD(aad);
+            return c.doFinal(in, out);
+        }
+
+        @Override
+        public int open(byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+            c.init(Cipher.DECRYPT_MODE, key, params.apply(nonce));
+            c.updateAAD(aad);
+            return c.doFinal(in, out);
+        }
+    }
+
+    abstract Session session(SecretKey key) throws GeneralSecurityException;
+
+    /** The suite with this header id; throws for ids this version does not know. */
+    static CipherSuite byId(int id) throws GeneralSecurityException {
+        for (CipherSuite s : values()) {
+            if (s.id == id) return s;
+        }
+        throw new GeneralSecurityException("Unsupported cipher suite id " + id);
+    }
+
+    /** True if the running JVM provides this suite's primitives. */
+    boolean isAvailable() {
+        try {
+            session(new SecretKeySpec(new byte[32], "AES"));
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Times every available suite on 64 KiB segments for about {@code budgetMillis} in total and
+     * returns the fastest. The result is remembered for the life of the JVM.
+     */
+    static CipherSuite probe(long budgetMillis) {
+        CipherSuite best = probed;
+        if (best != null) return best;
+        byte[] pt = new byte[PROBE_BYTES];
+        byte[] ct = new byte[PROBE_BYTES + TAG_BYTES];
+        byte[] nonce = new byte[NONCE_BYTES];
+        byte[] aad = new byte[64];
+        SecretKeySpec key = new SecretKeySpec(new byte[32], "AES");
+        long perSuite = Math.max(1, budgetMillis / values().length) * 1_000_000L;
+        double bestRate = -1;
+        for (CipherSuite s : values()) {
+            try {
+                Session session = s.session(key);
+                // first half warms the JIT (and intrinsics) up, second half is measured
+                long warmEnd = System.nanoTime() + perSuite / 2;
+                while (System.nanoTime() < warmEnd) {
+                    nonce[0]++;
+                    session.seal(nonce, aad, pt, 0, pt.length, ct, 0);
+                }
+                long bytes = 0, t0 = System.nanoTime(), end = t0 + perSuite / 2;
+                long t;
+                do {
+                    nonce[0]++;
+                    session.seal(nonce, aad, pt, 0, pt.length, ct, 0);
+                    bytes += pt.length;
+                    t = System.nanoTime();
+                } while (t < end);
+                double rate = bytes / (double) (t - t0);
+                if (rate > bestRate) {
+                    bestRate = rate;
+                    best = s;
+                }
+            } catch (GeneralSecurityException e) {
+                // not available on this JVM
+            }
+        }
+        probed = best == null ? DEFAULT : best;
+        return probed;
+    }
+
+    private static SecretKeySpec rekey(SecretKey key, String algorithm) {
+        byte[] raw = key.getEncoded();
+        try {
+            return new SecretKeySpec(raw, algorithm);
+        } finally {
+            Arrays.fill(raw, (byte) 0);
+        }
+    }
+}
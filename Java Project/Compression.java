@@ -0,0 +1,129 @@
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Optional Deflate stage in front of the item cipher.
+ *
+ * Compression has to happen before encryption (ciphertext does not compress), so the
+ * payload of a compressed item is zlib data of unknown length: the header records
+ * {@link VaultHeader#UNKNOWN_SIZE} plus the level and the logical size in
+ * {@link VaultHeader#EXT_DEFLATE}, and nothing is spooled to disk. Already-compressed
+ * content (media, archives) would only burn CPU, so a sample from the head of the file
+ * is deflated at the fastest level first and the item is stored as-is when it does not
+ * shrink enough.
+ *
+ * A compressed item has no fixed mapping from file offsets to segments, so it gives up range reads
+ * that touch only the covering segments, the parallel {@link SegmentPipeline} and resumable
+ * checkpoints. Compression is therefore off unless asked for, and files over
+ * {@link #MAX_INPUT_BYTES}, where those matter most, are always stored as they are.
+ */
+final class Compression {
+    static final int DEFAULT_LEVEL = 0;
+    static final long MAX_INPUT_BYTES = StagedWrite.CHECKPOINT_BYTES;   // larger files are never compressed
+    static final int SAMPLE_BYTES = 256 * 1024;
+    static final double MAX_SAMPLE_RATIO = 0.9;   // compressed/original above this: store uncompressed
+
+    private Compression() {}
+
+    /** The level to use for {@code size} bytes when {@code level} was asked for. */
+    static int levelFor(long size, int level) {
+        return size > MAX_INPUT_BYTES ? 0 : level;
+    }
+
+    /** Deflates a sample from the head of the content (up to {@link #SAMPLE_BYTES}) and reports whether it shrank enough. */
+    static boolean worthCompressing(byte[] sample) {
+        if (sample.length == 0) return false;
+        Deflater d = new Deflater(Deflater.BEST_SPEED);
+        try {
+            d.setInput(sample);
+            d.finish();
+            byte[] buf = new byte[64 * 1024];
+            long out = 0;
+            while (!d.finished()) {
+                out += d.deflate(buf);
+            }
+            return out < sample.length * MAX_SAMPLE_RATIO;
+        } finally {
+            d.end();
+        }
+    }
+
+    /** {@code in} deflated through {@code d}; the caller ends {@code d} once the stream is drained. */
+    static InputStream deflating(InputStream in, Deflater d) {
+        return new DeflaterInputStream(in, d, 64 * 1024);
+    }
+
+    /**
+     * Inflates what is written to it and passes logical bytes {@code [offset, offset+length)} to
+     * {@code out}. {@link #close} checks that the stream ended exactly at {@code logicalSize}; it
+     * does not close {@code out}.
+     */
+    static OutputStream inflatingSink(OutputStream out, long logicalSize, long offset, long length) {
+        return new InflatingSink(out, logicalSize, offset, length);
+    }
+
+    private static final class InflatingSink extends OutputStream {
+        private final OutputStream out;
+        private final long logicalSize;
+        private final long from;
+        private final long to;
+        private final Inflater inf = new Inflater();
+        private final byte[] buf = new byte[64 * 1024];
+        private long pos;   // logical offset of the next inflated byte
+
+        InflatingSink(OutputStream out, long logicalSize, long offset, long length) {
+            this.out = out;
+            this.logicalSize = logicalSize;
+            this.from = offset;
+            this.to = offset + length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (inf.finished()) {
+                if (len > 0) throw new IOException("Corrupt item: data after the end of the compressed stream");
+                return;
+            }
+            inf.setInput(b, off, len);
+            try {
+                while (true) {
+                    int n = inf.inflate(buf);
+                    if (n == 0) {
+                        if (inf.finished() || inf.needsInput()) break;
+                        if (inf.needsDictionary()) throw new IOException("Corrupt item: compressed stream wants a dictionary");
+                        continue;
+                    }
+                    if (n > logicalSize - pos) throw new IOException("Corrupt item: inflates past its recorded size");
+                    long s = Math.max(pos, from), e = Math.min(pos + n, to);
+                    if (s < e) out.write(buf, (int) (s - pos), (int) (e - s));
+                    pos += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt item: bad compressed data", e);
+            }
+            if (inf.finished() && inf.getRemaining() > 0) {
+                throw new IOException("Corrupt item: data after the end of the compressed stream");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!inf.finished()) throw new EOFException("Corrupt item: compressed stream is truncated");
+                if (pos != logicalSize) {
+                    throw new IOException("Corrupt item: inflated " + pos + " bytes, expected " + logicalSize);
+                }
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
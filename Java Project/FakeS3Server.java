@@ -0,0 +1,437 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for an S3-compatible service, so {@link S3Store} can be tested and
+ * benchmarked without a network or an account. Objects are kept in memory, on the loopback
+ * interface only.
+ *
+ * It serves path-style PUT, GET (with Range and If-Match), HEAD, DELETE, ListObjectsV2 and
+ * multipart uploads, and holds clients to the same rules as the real service: every request
+ * must carry a valid Signature Version 4 for {@link #ACCESS_KEY} / {@link #SECRET_KEY} and the
+ * SHA-256 of its body, and every part but the last must be at least 5 MiB. Any bucket name is
+ * accepted. Errors come back as S3 error documents with the usual codes.
+ *
+ * <pre>
+ *   java FakeS3Server [port]     serves until killed, e.g. for store=s3 with
+ *                                storeEndpoint=http://127.0.0.1:port and the keys below in
+ *                                AWS_ACCESS_KEY_ID / AWS_SECRET_ACCESS_KEY
+ * </pre>
+ */
+final class FakeS3Server implements Closeable {
+    static final String ACCESS_KEY = "fake-access-key";
+    static final String SECRET_KEY = "fake-secret-key";
+    static final String REGION = "us-east-1";
+
+    private static final int MAX_KEYS = 1000;
+    private static final Pattern AUTH = Pattern.compile(
+            "AWS4-HMAC-SHA256 Credential=([^/]+)/(\\d{8})/([^/]+)/s3/aws4_request, ?SignedHeaders=([^,]+), ?Signature=([0-9a-f]{64})");
+    private static final Pattern PART = Pattern.compile(
+            "<Part>\\s*<PartNumber>(\\d+)</PartNumber>\\s*<ETag>([^<]+)</ETag>\\s*</Part>");
+
+    /** One stored object. */
+    private static final class Blob {
+        final byte[] data;
+        final String etag;
+        final Instant modified = Instant.now();
+
+        Blob(byte[] data, String etag) {
+            this.data = data;
+            this.etag = etag;
+        }
+    }
+
+    /** A multipart upload in progress: its parts by number. */
+    private static final class Upload {
+        final String path;
+        final Map<Integer, Blob> parts = new ConcurrentHashMap<>();
+
+        Upload(String path) {
+            this.path = path;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final ConcurrentSkipListMap<String, Blob> objects = new ConcurrentSkipListMap<>();   // "bucket/key"
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong nextUpload = new AtomicLong(1);
+
+    private FakeS3Server(HttpServer server) {
+        this.server = server;
+        this.workers = Executors.newFixedThreadPool(16, r -> {
+            Thread t = new Thread(r, "fake-s3");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(workers);
+        server.createContext("/", this::handle);
+    }
+
+    /** Starts a server on {@code port} of the loopback interface (0: any free port). */
+    static FakeS3Server start(int port) throws IOException {
+        FakeS3Server s = new FakeS3Server(HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0));
+        s.server.start();
+        return s;
+    }
+
+    /** The URL to use as {@code storeEndpoint}. */
+    URI endpoint() {
+        InetSocketAddress a = server.getAddress();
+        return URI.create("http://" + a.getAddress().getHostAddress() + ":" + a.getPort());
+    }
+
+    /** A path-style {@link S3Store} on this server, signed with its keys. */
+    S3Store store(String bucket, int partSize, int threads) {
+        return new S3Store(endpoint(), true, REGION, bucket, "", ACCESS_KEY, SECRET_KEY, null, partSize, threads);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+
+    public static void main(String[] args) throws IOException {
+        FakeS3Server s = start(args.length > 0 ? Integer.parseInt(args[0]) : 9000);
+        System.out.println("Fake S3 listening on " + s.endpoint() + " (region " + REGION + ")");
+        System.out.println("AWS_ACCESS_KEY_ID=" + ACCESS_KEY + " AWS_SECRET_ACCESS_KEY=" + SECRET_KEY);
+    }
+
+    // ===== Requests =====
+
+    private void handle(HttpExchange ex) throws IOException {
+        try {
+            byte[] body;
+            try (InputStream in = ex.getRequestBody()) {
+                body = in.readAllBytes();
+            }
+            String denied = checkSignature(ex, body);
+            if (denied != null) {
+                error(ex, denied.startsWith("XAmz") ? 400 : 403, denied.split(":")[0], denied);
+                return;
+            }
+            String path = ex.getRequestURI().getPath();   // "/bucket" or "/bucket/key", decoded
+            int slash = path.indexOf('/', 1);
+            String bucket = slash < 0 ? path.substring(1) : path.substring(1, slash);
+            String key = slash < 0 ? "" : path.substring(slash + 1);
+            Map<String, String> q = S3Store.SigV4.parseQuery(ex.getRequestURI().getRawQuery());
+            if (bucket.isEmpty()) {
+                error(ex, 400, "InvalidBucketName", "Only path-style requests are served");
+                return;
+            }
+            String method = ex.getRequestMethod();
+            if (key.isEmpty()) {
+                if (method.equals("GET") && "2".equals(q.get("list-type"))) {
+                    list(ex, bucket, q);
+                } else {
+                    error(ex, 501, "NotImplemented", "Only ListObjectsV2 is served on a bucket");
+                }
+                return;
+            }
+            String id = bucket + "/" + key;
+            switch (method) {
+                case "GET":
+                case "HEAD":
+                    get(ex, id, method.equals("HEAD"));
+                    break;
+                case "PUT":
+                    if (q.containsKey("uploadId")) {
+                        putPart(ex, id, q, body);
+                    } else {
+                        Blob b = new Blob(body, quote(hex(md5(body))));
+                        objects.put(id, b);
+                        ex.getResponseHeaders().set("ETag", b.etag);
+                        send(ex, 200, new byte[0]);
+                    }
+                    break;
+                case "POST":
+                    if (q.containsKey("uploads")) {
+                        String uploadId = Long.toString(nextUpload.getAndIncrement(), 36) + "-" + UUID.randomUUID();
+                        uploads.put(uploadId, new Upload(id));
+                        xml(ex, 200, "<InitiateMultipartUploadResult><Bucket>" + S3Store.escape(bucket) + "</Bucket><Key>"
+                                + S3Store.escape(key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+                    } else if (q.containsKey("uploadId")) {
+                        complete(ex, id, q.get("uploadId"), new String(body, StandardCharsets.UTF_8));
+                    } else {
+                        error(ex, 501, "NotImplemented", "Unsupported POST");
+                    }
+                    break;
+                case "DELETE":
+                    if (q.containsKey("uploadId")) {
+                        if (uploads.remove(q.get("uploadId")) == null) {
+                            error(ex, 404, "NoSuchUpload", "The specified upload does not exist");
+                            return;
+                        }
+                    } else {
+                        objects.remove(id);
+                    }
+                    send(ex, 204, null);
+                    break;
+                default:
+                    error(ex, 405, "MethodNotAllowed", method + " is not allowed");
+            }
+        } catch (RuntimeException e) {
+            error(ex, 500, "InternalError", String.valueOf(e));
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void get(HttpExchange ex, String id, boolean head) throws IOException {
+        Blob b = objects.get(id);
+        if (b == null) {
+            error(ex, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        String ifMatch = ex.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.equals(b.etag)) {
+            error(ex, 412, "PreconditionFailed", "At least one of the preconditions you specified did not hold");
+            return;
+        }
+        Headers h = ex.getResponseHeaders();
+        h.set("ETag", b.etag);
+        h.set("Accept-Ranges", "bytes");
+        h.set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(b.modified.atOffset(ZoneOffset.UTC)));
+        if (head) {
+            h.set("Content-Length", String.valueOf(b.data.length));
+            ex.sendResponseHeaders(200, -1);
+            return;
+        }
+        String range = ex.getRequestHeaders().getFirst("Range");
+        if (range == null) {
+            send(ex, 200, b.data);
+            return;
+        }
+        Matcher m = Pattern.compile("bytes=(\\d*)-(\\d*)").matcher(range.trim());
+        if (!m.matches() || (m.group(1).isEmpty() && m.group(2).isEmpty())) {
+            send(ex, 200, b.data);   // unparseable ranges are ignored, as S3 does
+            return;
+        }
+        long size = b.data.length;
+        long from, to;
+        if (m.group(1).isEmpty()) {   // suffix: the last n bytes
+            from = Math.max(0, size - Long.parseLong(m.group(2)));
+            to = size - 1;
+        } else {
+            from = Long.parseLong(m.group(1));
+            to = m.group(2).isEmpty() ? size - 1 : Math.min(size - 1, Long.parseLong(m.group(2)));
+        }
+        if (from >= size || from > to) {
+            h.set("Content-Range", "bytes */" + size);
+            error(ex, 416, "InvalidRange", "The requested range is not satisfiable");
+            return;
+        }
+        h.set("Content-Range", "bytes " + from + "-" + to + "/" + size);
+        send(ex, 206, Arrays.copyOfRange(b.data, (int) from, (int) to + 1));
+    }
+
+    private void list(HttpExchange ex, String bucket, Map<String, String> q) throws IOException {
+        String prefix = q.getOrDefault("prefix", "");
+        int max = Math.min(MAX_KEYS, Integer.parseInt(q.getOrDefault("max-keys", String.valueOf(MAX_KEYS))));
+        String token = q.get("continuation-token");
+        String after = token != null ? new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8)
+                : q.getOrDefault("start-after", "");
+        String base = bucket + "/";
+        StringBuilder sb = new StringBuilder("<ListBucketResult><Name>").append(S3Store.escape(bucket)).append("</Name><Prefix>")
+                .append(S3Store.escape(prefix)).append("</Prefix>");
+        int count = 0;
+        String last = null;
+        boolean truncated = false;
+        for (Map.Entry<String, Blob> e : objects.tailMap(base + (after.compareTo(prefix) > 0 ? after : prefix), true).entrySet()) {
+            String key = e.getKey().substring(base.length());
+            if (!e.getKey().startsWith(base + prefix)) break;
+            if (key.equals(after)) continue;
+            if (count == max) {
+                truncated = true;
+                break;
+            }
+            Blob b = e.getValue();
+            sb.append("<Contents><Key>").append(S3Store.escape(key)).append("</Key><LastModified>").append(b.modified)
+                    .append("</LastModified><ETag>").append(S3Store.escape(b.etag)).append("</ETag><Size>")
+                    .append(b.data.length).append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+            count++;
+            last = key;
+        }
+        sb.append("<KeyCount>").append(count).append("</KeyCount><MaxKeys>").append(max).append("</MaxKeys><IsTruncated>")
+                .append(truncated).append("</IsTruncated>");
+        if (truncated) {
+            sb.append("<NextContinuationToken>")
+                    .append(Base64.getUrlEncoder().withoutPadding().encodeToString(last.getBytes(StandardCharsets.UTF_8)))
+                    .append("</NextContinuationToken>");
+        }
+        xml(ex, 200, sb.append("</ListBucketResult>").toString());
+    }
+
+    private void putPart(HttpExchange ex, String id, Map<String, String> q, byte[] body) throws IOException {
+        Upload u = uploads.get(q.get("uploadId"));
+        if (u == null || !u.path.equals(id)) {
+            error(ex, 404, "NoSuchUpload", "The specified upload does not exist");
+            return;
+        }
+        int n;
+        try {
+            n = Integer.parseInt(q.getOrDefault("partNumber", ""));
+        } catch (NumberFormatException e) {
+            n = 0;
+        }
+        if (n < 1 || n > 10_000) {
+            error(ex, 400, "InvalidArgument", "Part number must be an integer between 1 and 10000");
+            return;
+        }
+        Blob part = new Blob(body, quote(hex(md5(body))));
+        u.parts.put(n, part);
+        ex.getResponseHeaders().set("ETag", part.etag);
+        send(ex, 200, new byte[0]);
+    }
+
+    private void complete(HttpExchange ex, String id, String uploadId, String request) throws IOException {
+        Upload u = uploads.get(uploadId);
+        if (u == null || !u.path.equals(id)) {
+            error(ex, 404, "NoSuchUpload", "The specified upload does not exist");
+            return;
+        }
+        List<Blob> parts = new ArrayList<>();
+        Matcher m = PART.matcher(request);
+        int previous = 0;
+        while (m.find()) {
+            int n = Integer.parseInt(m.group(1));
+            Blob p = u.parts.get(n);
+            String etag = m.group(2).replace("&quot;", "\"");
+            if (p == null || !p.etag.equals(etag)) {
+                error(ex, 400, "InvalidPart", "Part " + n + " was not uploaded or its ETag does not match");
+                return;
+            }
+            if (n <= previous) {
+                error(ex, 400, "InvalidPartOrder", "Parts must be listed in ascending order");
+                return;
+            }
+            previous = n;
+            parts.add(p);
+        }
+        if (parts.isEmpty()) {
+            error(ex, 400, "MalformedXML", "No parts listed");
+            return;
+        }
+        long total = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            if (i < parts.size() - 1 && parts.get(i).data.length < S3Store.MIN_PART_SIZE) {
+                error(ex, 400, "EntityTooSmall", "Your proposed upload is smaller than the minimum allowed size");
+                return;
+            }
+            total += parts.get(i).data.length;
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            error(ex, 400, "EntityTooLarge", "Objects in the fake server are limited to 2 GB");
+            return;
+        }
+        byte[] data = new byte[(int) total];
+        ByteArrayOutputStream md5s = new ByteArrayOutputStream(parts.size() * 16);
+        int at = 0;
+        for (Blob p : parts) {
+            System.arraycopy(p.data, 0, data, at, p.data.length);
+            at += p.data.length;
+            md5s.writeBytes(md5(p.data));
+        }
+        String etag = quote(hex(md5(md5s.toByteArray())) + "-" + parts.size());
+        objects.put(id, new Blob(data, etag));
+        uploads.remove(uploadId);
+        String key = id.substring(id.indexOf('/') + 1);
+        xml(ex, 200, "<CompleteMultipartUploadResult><Key>" + S3Store.escape(key) + "</Key><ETag>"
+                + S3Store.escape(etag) + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    /** Null if {@code ex} is signed correctly for {@link #SECRET_KEY}, else "Code: why". */
+    private static String checkSignature(HttpExchange ex, byte[] body) {
+        Headers h = ex.getRequestHeaders();
+        String auth = h.getFirst("Authorization");
+        Matcher m = auth == null ? null : AUTH.matcher(auth);
+        if (m == null || !m.matches()) return "AccessDenied: missing or malformed Signature Version 4 authorization";
+        if (!m.group(1).equals(ACCESS_KEY)) return "InvalidAccessKeyId: unknown access key " + m.group(1);
+        String amzDate = h.getFirst("X-Amz-Date");
+        if (amzDate == null || !amzDate.startsWith(m.group(2))) return "AccessDenied: X-Amz-Date does not match the credential scope";
+        String payloadHash = h.getFirst("X-Amz-Content-Sha256");
+        if (payloadHash == null || !payloadHash.equals(S3Store.SigV4.hex(S3Store.SigV4.sha256(body)))) {
+            return "XAmzContentSHA256Mismatch: the body does not match x-amz-content-sha256";
+        }
+        SortedMap<String, String> signed = new TreeMap<>();
+        for (String name : m.group(4).split(";")) {
+            String v = h.getFirst(name);
+            if (v == null) return "AccessDenied: signed header " + name + " is missing";
+            signed.put(name, v);
+        }
+        if (!signed.containsKey("host") || !signed.containsKey("x-amz-date")) return "AccessDenied: host and x-amz-date must be signed";
+        URI uri = ex.getRequestURI();
+        String canonical = S3Store.SigV4.canonicalRequest(ex.getRequestMethod(), uri.getRawPath(), uri.getRawQuery(),
+                signed, payloadHash);
+        String expected = S3Store.SigV4.signature(SECRET_KEY, m.group(3), amzDate, canonical);
+        if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII), m.group(5).getBytes(StandardCharsets.US_ASCII))) {
+            return "SignatureDoesNotMatch: the request signature we calculated does not match the signature you provided";
+        }
+        return null;
+    }
+
+    // ===== Responses =====
+
+    private static void error(HttpExchange ex, int status, String code, String message) throws IOException {
+        xml(ex, status, "<Error><Code>" + code + "</Code><Message>" + S3Store.escape(message) + "</Message></Error>");
+    }
+
+    private static void xml(HttpExchange ex, int status, String doc) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", "application/xml");
+        send(ex, status, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + doc).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Sends {@code body} (null: no body at all). HEAD responses never carry one. */
+    private static void send(HttpExchange ex, int status, byte[] body) throws IOException {
+        if (body == null || ex.getRequestMethod().equals("HEAD")) {
+            ex.sendResponseHeaders(status, -1);
+            return;
+        }
+        ex.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    private static String hex(byte[] b) {
+        return S3Store.SigV4.hex(b);
+    }
+
+    private static String quote(String s) {
+        return "\"" + s + "\"";
+    }
+}
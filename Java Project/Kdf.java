@@ -0,0 +1,220 @@
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Password key derivation and its cost parameters, as recorded in vault.properties.
+ *
+ * <pre>
+ * kdf=argon2id:PASSES:MEMORY_KIB:LANES   or   kdf=pbkdf2-sha256:ITERATIONS
+ *            what the stored wrapped key was derived with; vaults from before this setting
+ *            used PBKDF2-SHA256 with the count in "iters"
+ * kdfTarget= same syntax; what the next unlock re-wraps the data key with when it differs
+ *            from "kdf" (written by {@link #calibrate}, {@link #DEFAULT} when absent)
+ * </pre>
+ *
+ * Argon2id lanes run on up to one thread per core, so more lanes buy more memory hardness for
+ * the same unlock time on multi-core hosts.
+ */
+final class Kdf {
+    enum Algorithm {
+        PBKDF2_SHA256("pbkdf2-sha256"),
+        ARGON2ID("argon2id");
+
+        final String id;
+
+        Algorithm(String id) {
+            this.id = id;
+        }
+    }
+
+    static final int PBKDF2_DEFAULT_ITERATIONS = 200_000;   // the fixed cost before "kdf" existed
+    /** RFC 9106's second recommended setting: 3 passes over 64 MiB, 4 lanes. */
+    static final Kdf DEFAULT = argon2id(3, 64 * 1024, 4);
+
+    private static final int MIN_PBKDF2_ITERATIONS = 10_000;
+    private static final int MIN_ARGON2_MEMORY_KIB = 8 * 1024;
+    private static final int MAX_LANES = 16;
+    // factories are not thread-safe, and looking one up per derivation costs a provider search
+    private static final ThreadLocal<SecretKeyFactory> PBKDF2 = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 not available", e);
+        }
+    });
+
+    final Algorithm algorithm;
+    final int iterations;   // PBKDF2 iterations, or Argon2id passes
+    final int memoryKiB;    // Argon2id only
+    final int lanes;        // Argon2id only
+
+    private Kdf(Algorithm algorithm, int iterations, int memoryKiB, int lanes) {
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.memoryKiB = memoryKiB;
+        this.lanes = lanes;
+    }
+
+    static Kdf pbkdf2(int iterations) {
+        if (iterations < 1) throw new IllegalArgumentException("PBKDF2 needs at least one iteration");
+        return new Kdf(Algorithm.PBKDF2_SHA256, iterations, 0, 0);
+    }
+
+    static Kdf argon2id(int passes, int memoryKiB, int lanes) {
+        if (passes < 1 || lanes < 1 || lanes > MAX_LANES || memoryKiB < Argon2id.MIN_MEMORY_KIB_PER_LANE * lanes) {
+            throw new IllegalArgumentException("Argon2id needs passes >= 1, lanes 1.." + MAX_LANES + " and at least "
+                    + Argon2id.MIN_MEMORY_KIB_PER_LANE + " KiB per lane");
+        }
+        return new Kdf(Algorithm.ARGON2ID, passes, memoryKiB, lanes);
+    }
+
+    /** Parses the {@code kdf}/{@code kdfTarget} syntax; throws IllegalArgumentException if malformed. */
+    static Kdf parse(String spec) {
+        String[] f = spec.trim().split(":");
+        try {
+            if (f[0].equals(Algorithm.PBKDF2_SHA256.id) && f.length == 2) {
+                return pbkdf2(Integer.parseInt(f[1]));
+            }
+            if (f[0].equals(Algorithm.ARGON2ID.id) && f.length == 4) {
+                return argon2id(Integer.parseInt(f[1]), Integer.parseInt(f[2]), Integer.parseInt(f[3]));
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Not a key derivation setting: " + spec);
+    }
+
+    String spec() {
+        return algorithm == Algorithm.PBKDF2_SHA256
+                ? algorithm.id + ":" + iterations
+                : algorithm.id + ":" + iterations + ":" + memoryKiB + ":" + lanes;
+    }
+
+    /** What the vault's stored key was derived with. */
+    static Kdf stored(Properties meta) {
+        String spec = meta.getProperty("kdf");
+        if (spec == null) return pbkdf2(Integer.parseInt(meta.getProperty("iters", String.valueOf(PBKDF2_DEFAULT_ITERATIONS))));
+        return parse(spec);
+    }
+
+    /** What the vault should be using: "kdfTarget", or {@link #DEFAULT}. */
+    static Kdf target(Properties meta, List<String> notices) {
+        String spec = meta.getProperty("kdfTarget");
+        if (spec == null) return DEFAULT;
+        try {
+            return parse(spec);
+        } catch (IllegalArgumentException e) {
+            notices.add("Ignoring kdfTarget=" + spec + " (" + e.getMessage() + "); using " + DEFAULT.spec() + ".");
+            return DEFAULT;
+        }
+    }
+
+    /** Records this as the derivation of the stored key. */
+    void store(Properties meta) {
+        meta.setProperty("kdf", spec());
+        meta.remove("iters");
+    }
+
+    /** Derives {@code keyLen} bytes from {@code password} and {@code salt}. */
+    byte[] derive(char[] password, byte[] salt, int keyLen) {
+        if (algorithm == Algorithm.PBKDF2_SHA256) {
+            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, keyLen * 8);
+            try {
+                return PBKDF2.get().generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+        ByteBuffer utf8 = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        byte[] pw = Arrays.copyOfRange(utf8.array(), utf8.position(), utf8.limit());
+        Arrays.fill(utf8.array(), (byte) 0);
+        try {
+            return Argon2id.hash(pw, salt, new byte[0], new byte[0], iterations, memoryKiB, lanes, keyLen, threads());
+        } finally {
+            Arrays.fill(pw, (byte) 0);
+        }
+    }
+
+    /** Threads an Argon2id derivation uses here: one per lane, at most one per core. */
+    int threads() {
+        return Math.max(1, Math.min(lanes, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** Wall-clock milliseconds one derivation takes on this host. */
+    long measureMillis() {
+        byte[] salt = new byte[16];
+        long t0 = System.nanoTime();
+        derive("calibration".toCharArray(), salt, 32);
+        return (System.nanoTime() - t0) / 1_000_000;
+    }
+
+    /**
+     * Picks parameters for {@code algorithm} whose derivation takes about {@code targetMillis} on
+     * this host. Argon2id keeps 3 passes and one lane per core (up to {@value #MAX_LANES}) and
+     * spends the time on memory, capped at a quarter of the heap; only past the cap does it add passes.
+     */
+    static Kdf calibrate(Algorithm algorithm, long targetMillis) {
+        if (algorithm == Algorithm.PBKDF2_SHA256) {
+            pbkdf2(20_000).measureMillis();   // warm up
+            Kdf probe = pbkdf2(200_000);
+            long ms = Math.max(1, probe.measureMillis());
+            long n = probe.iterations * targetMillis / ms;
+            return pbkdf2((int) Math.max(MIN_PBKDF2_ITERATIONS, Math.min(Integer.MAX_VALUE, n)));
+        }
+        int lanes = Math.max(1, Math.min(MAX_LANES, Runtime.getRuntime().availableProcessors()));
+        long cap = Math.min(Integer.MAX_VALUE / 128, Runtime.getRuntime().maxMemory() / 4 / 1024);
+        Kdf k = argon2id(1, 32 * 1024, lanes);
+        k.measureMillis();   // warm up
+        // cost is linear in memory x passes; the first estimates run cold, so re-measure the pick
+        for (int round = 0; round < 3; round++) {
+            double perKiBPass = Math.max(1, k.measureMillis()) / ((double) k.memoryKiB * k.iterations);
+            k = argon2idFor(targetMillis / perKiBPass, lanes, cap);
+        }
+        return k;
+    }
+
+    /** 3 passes over as much memory as {@code budget} (KiB x passes) allows, up to {@code capKiB}. */
+    private static Kdf argon2idFor(double budget, int lanes, long capKiB) {
+        int passes = 3;
+        long memory = (long) (budget / passes);
+        if (memory > capKiB) {
+            memory = capKiB;
+            passes = (int) Math.min(Integer.MAX_VALUE, Math.max(3, (long) (budget / capKiB)));
+        } else if (memory < MIN_ARGON2_MEMORY_KIB) {
+            memory = MIN_ARGON2_MEMORY_KIB;
+            passes = (int) Math.max(1, Math.min(3, (long) (budget / MIN_ARGON2_MEMORY_KIB)));
+        }
+        memory = memory / 1024 * 1024;   // whole MiB
+        return argon2id(passes, (int) Math.max(MIN_ARGON2_MEMORY_KIB, memory), lanes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Kdf)) return false;
+        Kdf k = (Kdf) o;
+        return algorithm == k.algorithm && iterations == k.iterations && memoryKiB == k.memoryKiB && lanes == k.lanes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(algorithm, iterations, memoryKiB, lanes);
+    }
+
+    @Override
+    public String toString() {
+        if (algorithm == Algorithm.PBKDF2_SHA256) return "PBKDF2-SHA256, " + iterations + " iterations";
+        return String.format(Locale.ROOT, "Argon2id, %d passes over %s, %d lane%s", iterations,
+                memoryKiB % 1024 == 0 ? memoryKiB / 1024 + " MiB" : memoryKiB + " KiB", lanes, lanes == 1 ? "" : "s");
+    }
+}
@@ -0,0 +1,201 @@
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * Table of per-item data keys, each wrapped under a key derived from the vault data key.
+ *
+ * <pre>
+ * file:   "SVKT" | version(1) | reserved(3) | record*
+ * record: state(1) | keyId(16) | wrappedKey(60)          (fixed 77 bytes)
+ * </pre>
+ *
+ * Deleting an item only needs its record gone: {@link #shred} overwrites the record
+ * in place with random bytes and syncs, after which the item ciphertext is
+ * undecryptable and can simply be unlinked. Freed slots are reused by later adds.
+ * As with any overwrite, an SSD may keep the old block around internally; the
+ * window is one small record rather than the whole item.
+ *
+ * Writes are group-committed: {@link #append} writes a record and returns a ticket,
+ * and {@link #sync} returns once that ticket is on disk. One thread forces the file
+ * at a time, outside the table lock, covering every record written so far, so adds
+ * running side by side share a force instead of queueing one each.
+ */
+final class KeyTable implements Closeable {
+    static final int KEY_ID_BYTES = 16;
+
+    private static final byte[] MAGIC   = new byte[]{'S','V','K','T'};
+    private static final byte VERSION   = 1;
+    private static final int FILE_HDR   = 8;
+    private static final int RECORD     = 1 + KEY_ID_BYTES + KeyWrap.WRAPPED_BYTES;
+    private static final byte FREE      = 0;
+    private static final byte LIVE      = 1;
+
+    private static final SecureRandom RNG = new SecureRandom();
+
+    private final FileChannel ch;
+    private final SecretKey tableKey;
+    private final Map<ByteBuffer, Long> slots = new HashMap<>();   // keyId -> record index
+    private final Deque<Long> freeSlots = new ArrayDeque<>();
+    private long recordCount;
+    private long written;   // records written, the last ticket handed out
+    private long synced;    // records known to be on disk
+    private final Object syncLock = new Object();   // held by the thread forcing the file
+
+    private KeyTable(FileChannel ch, SecretKey tableKey) {
+        this.ch = ch;
+        this.tableKey = tableKey;
+    }
+
+    static KeyTable open(Path file, SecretKey tableKey) throws IOException {
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        KeyTable t = new KeyTable(ch, tableKey);
+        try {
+            t.load();
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return t;
+    }
+
+    private void load() throws IOException {
+        if (ch.size() == 0) {
+            ByteBuffer hdr = ByteBuffer.allocate(FILE_HDR).put(MAGIC).put(VERSION);
+            hdr.clear();
+            writeFully(hdr, 0);
+            ch.force(true);
+            return;
+        }
+        ByteBuffer hdr = ByteBuffer.allocate(FILE_HDR);
+        readFully(hdr, 0);
+        byte[] magic = new byte[4];
+        hdr.flip().get(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Bad magic - not a vault key table");
+        if (hdr.get() != VERSION) throw new IOException("Unsupported key table version");
+
+        // a torn trailing record (crash mid-append) is ignored and later overwritten
+        recordCount = (ch.size() - FILE_HDR) / RECORD;
+        ByteBuffer buf = ByteBuffer.allocate(RECORD * 1024);
+        long index = 0;
+        while (index < recordCount) {
+            buf.clear();
+            int n = (int) Math.min(1024, recordCount - index);
+            buf.limit(n * RECORD);
+            readFully(buf, FILE_HDR + index * RECORD);
+            buf.flip();
+            for (int i = 0; i < n; i++, index++) {
+                byte state = buf.get();
+                byte[] keyId = new byte[KEY_ID_BYTES];
+                buf.get(keyId);
+                buf.position(buf.position() + KeyWrap.WRAPPED_BYTES);
+                if (state == LIVE) {
+                    slots.put(ByteBuffer.wrap(keyId), index);
+                } else {
+                    freeSlots.add(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores {@code itemKey} under {@code keyId} without waiting for the disk; returns the ticket
+     * to {@link #sync} before anything durable refers to the key.
+     */
+    synchronized long append(byte[] keyId, byte[] itemKey) throws IOException, GeneralSecurityException {
+        if (keyId.length != KEY_ID_BYTES) throw new IllegalArgumentException("keyId must be " + KEY_ID_BYTES + " bytes");
+        ByteBuffer id = ByteBuffer.wrap(keyId.clone());
+        if (slots.containsKey(id)) throw new IOException("Duplicate item key id");
+        long index = freeSlots.isEmpty() ? recordCount++ : freeSlots.poll();
+        ByteBuffer rec = ByteBuffer.allocate(RECORD);
+        rec.put(LIVE).put(keyId).put(KeyWrap.wrap(tableKey, itemKey, keyId));
+        rec.flip();
+        writeFully(rec, FILE_HDR + index * RECORD);
+        slots.put(id, index);
+        return ++written;
+    }
+
+    /** Returns once the record with {@code ticket} (and every one before it) is on disk. */
+    void sync(long ticket) throws IOException {
+        synchronized (syncLock) {
+            long upTo;
+            synchronized (this) {
+                if (synced >= ticket) return;   // the force before ours covered it
+                upTo = written;
+            }
+            ch.force(false);
+            synchronized (this) {
+                synced = Math.max(synced, upTo);
+            }
+        }
+    }
+
+    /** Returns the item key for {@code keyId}, or null if it was never stored or has been shredded. */
+    synchronized SecretKeySpec get(byte[] keyId) throws IOException, GeneralSecurityException {
+        Long index = slots.get(ByteBuffer.wrap(keyId));
+        if (index == null) return null;
+        ByteBuffer rec = ByteBuffer.allocate(RECORD);
+        readFully(rec, FILE_HDR + index * RECORD);
+        rec.flip().position(1 + KEY_ID_BYTES);
+        byte[] wrapped = new byte[KeyWrap.WRAPPED_BYTES];
+        rec.get(wrapped);
+        byte[] key;
+        try {
+            key = KeyWrap.unwrap(tableKey, wrapped, keyId);
+        } catch (AEADBadTagException e) {
+            throw new GeneralSecurityException("Item key record is corrupt or belongs to another vault", e);
+        }
+        try {
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /** Destroys the key record for {@code keyId} and syncs before returning; false if there was none. */
+    boolean shred(byte[] keyId) throws IOException {
+        long ticket;
+        synchronized (this) {
+            Long index = slots.remove(ByteBuffer.wrap(keyId));
+            if (index == null) return false;
+            byte[] noise = new byte[RECORD];
+            RNG.nextBytes(noise);
+            noise[0] = FREE;
+            writeFully(ByteBuffer.wrap(noise), FILE_HDR + index * RECORD);
+            freeSlots.add(index);
+            ticket = ++written;
+        }
+        sync(ticket);
+        return true;
+    }
+
+    synchronized int size() {
+        return slots.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        ch.close();
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position);
+            if (n < 0) throw new EOFException("Truncated key table");
+            position += n;
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += ch.write(buf, position);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Small key-hierarchy helpers: wrapping one key under another and deriving
+ * purpose-bound subkeys, so the password only ever protects a few bytes of key
+ * material instead of the vault contents themselves.
+ *
+ * Wrapped form: {@code nonce(12) | AES/GCM(kek, key, aad) | tag(16)}.
+ */
+final class KeyWrap {
+    static final int NONCE_BYTES   = 12;
+    static final int TAG_BITS      = 128;
+    static final int WRAPPED_BYTES = NONCE_BYTES + 32 + TAG_BITS / 8; // for a 256-bit key
+
+    private static final SecureRandom RNG = new SecureRandom();
+
+    private KeyWrap() {}
+
+    static byte[] wrap(SecretKey kek, byte[] key, byte[] aad) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        RNG.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, kek, new GCMParameterSpec(TAG_BITS, nonce));
+        cipher.updateAAD(aad);
+        byte[] out = new byte[NONCE_BYTES + cipher.getOutputSize(key.length)];
+        System.arraycopy(nonce, 0, out, 0, NONCE_BYTES);
+        cipher.doFinal(key, 0, key.length, out, NONCE_BYTES);
+        return out;
+    }
+
+    /** Unwraps a key; an {@link javax.crypto.AEADBadTagException} means wrong KEK or tampered record. */
+    static byte[] unwrap(SecretKey kek, byte[] wrapped, byte[] aad) throws GeneralSecurityException {
+        if (wrapped.length <= NONCE_BYTES + TAG_BITS / 8) throw new GeneralSecurityException("Wrapped key too short");
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, kek, new GCMParameterSpec(TAG_BITS, wrapped, 0, NONCE_BYTES));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(wrapped, NONCE_BYTES, wrapped.length - NONCE_BYTES);
+    }
+
+    /** HMAC-SHA256(ikm, label): a 256-bit subkey bound to {@code label}. */
+    static byte[] derive(byte[] ikm, String label) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(ikm, "HmacSHA256"));
+            return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static SecretKeySpec aesKey(byte[] ikm, String label) {
+        byte[] k = derive(ikm, label);
+        try {
+            return new SecretKeySpec(k, "AES");
+        } finally {
+            Arrays.fill(k, (byte) 0);
+        }
+    }
+}
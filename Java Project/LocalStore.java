@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A {@link VaultStore} in a directory, one file per object at {@code <root>/<key>}: a second disk,
+ * a network mount, or a stand-in for object storage. Puts go through a temporary file and an
+ * atomic rename, so an object is either absent or complete.
+ */
+final class LocalStore implements VaultStore {
+    private static final String TMP_SUFFIX = ".put.tmp";
+
+    private final Path root;
+
+    LocalStore(Path root) throws IOException {
+        this.root = Files.createDirectories(root).toAbsolutePath().normalize();
+    }
+
+    @Override
+    public void put(String key, Path file) throws IOException {
+        Path target = resolve(key);
+        Files.createDirectories(target.getParent());
+        Path tmp = target.resolveSibling(target.getFileName() + TMP_SUFFIX);
+        try {
+            Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ch.force(true);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    @Override
+    public byte[] getRange(String key, long offset, int length) throws IOException {
+        if (offset < 0 || length < 0) throw new IllegalArgumentException("Bad range");
+        try (FileChannel ch = FileChannel.open(resolve(key), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.max(0, Math.min(length, ch.size() - offset)));
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, offset + buf.position()) < 0) break;
+            }
+            return buf.position() == buf.capacity() ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
+        }
+    }
+
+    @Override
+    public void fetch(String key, Path target) throws IOException {
+        Files.copy(resolve(key), target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public long size(String key) throws IOException {
+        Path p = resolve(key);
+        return Files.isRegularFile(p) ? Files.size(p) : -1;
+    }
+
+    @Override
+    public List<StoredObject> list(String prefix) throws IOException {
+        List<StoredObject> out = new ArrayList<>();
+        try (Stream<Path> s = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) s::iterator) {
+                String key = root.relativize(p).toString().replace(p.getFileSystem().getSeparator(), "/");
+                if (!key.startsWith(prefix) || key.endsWith(TMP_SUFFIX)) continue;
+                try {
+                    if (!Files.isRegularFile(p)) continue;
+                    out.add(new StoredObject(key, Files.size(p), Files.getLastModifiedTime(p).toMillis()));
+                } catch (NoSuchFileException e) {
+                    // deleted while listing
+                }
+            }
+        }
+        out.sort(Comparator.comparing(o -> o.key));
+        return out;
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(resolve(key));
+    }
+
+    @Override
+    public void close() {
+        // nothing held open
+    }
+
+    @Override
+    public String toString() {
+        return "directory " + root;
+    }
+
+    private Path resolve(String key) {
+        Path p = root.resolve(VaultStore.checkKey(key)).normalize();
+        if (!p.startsWith(root)) throw new IllegalArgumentException("Bad object key: " + key);
+        return p;
+    }
+}
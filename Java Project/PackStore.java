@@ -0,0 +1,651 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured store for small items, so they do not each cost an inode and a directory entry.
+ *
+ * <pre>
+ * pack file   packs/pack-NNNNNN.svp:  "SVPK" | version(1) | record*
+ * record:     type(1) | aux(4) | time(8) | nameLen(2) | name(UTF-8) | dataLen(4) | data | crc32(4)
+ *               ITEM       data = the complete item (header + payload), byte-for-byte what a
+ *                          standalone .sv file would hold; time = when it was added
+ *               TOMBSTONE  the item {@code name} stored in pack {@code aux} is deleted; no data
+ * pack index  packs/pack-NNNNNN.idx, written when a pack is sealed:
+ *             "SVPI" | packLength(8) | count(4) | (type(1) | aux(4) | time(8) | name | offset(8) | length(4))* | crc32(4)
+ * </pre>
+ *
+ * Items are appended to the one active pack; once it passes {@link #TARGET_PACK_BYTES} it
+ * is sealed (its index written) and a new one is started. Opening loads the index of every
+ * sealed pack and scans only the active one, dropping a torn record at its tail. Deleting
+ * appends a tombstone (and, when asked, overwrites the dead record in place); {@link #compact}
+ * copies the live records of mostly-dead sealed packs into the active pack and removes the old
+ * files. The item bytes are already encrypted and authenticated, so the store only frames
+ * them; the CRC just tells a torn write from a record.
+ *
+ * With parity on ({@link #protectWith}), sealing a pack also writes its {@link Parity} sidecar,
+ * {@code pack-NNNNNN.svp.par}. The active pack has none, since it still changes; a wiping delete in
+ * a sealed pack re-encodes the groups it overwrote, so the parity never keeps the old bytes.
+ */
+final class PackStore implements Closeable {
+    static final long TARGET_PACK_BYTES = 64L << 20;
+    static final int DEFAULT_MAX_ITEM_BYTES = 256 * 1024;
+    static final double COMPACT_BELOW_LIVE_RATIO = 0.5;   // sealed packs with less live data than this get compacted
+
+    private static final byte[] PACK_MAGIC  = {'S', 'V', 'P', 'K'};
+    private static final byte[] INDEX_MAGIC = {'S', 'V', 'P', 'I'};
+    private static final byte VERSION = 1;
+    private static final int FILE_HEADER = PACK_MAGIC.length + 1;
+    private static final byte ITEM = 1;
+    private static final byte TOMBSTONE = 2;
+    private static final int MAX_RECORD_DATA = 64 << 20;
+    private static final SecureRandom RNG = new SecureRandom();
+
+    /** Where a packed item's bytes are. */
+    private static final class Location {
+        final int pack;
+        final long offset;   // of the item bytes within the pack
+        final int length;
+        final long time;
+
+        Location(int pack, long offset, int length, long time) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+            this.time = time;
+        }
+    }
+
+    /** One record as listed in a pack index (or found by a scan). */
+    private static final class Record {
+        final byte type;
+        final int aux;
+        final long time;
+        final String name;
+        final long offset;
+        final int length;
+
+        Record(byte type, int aux, long time, String name, long offset, int length) {
+            this.type = type;
+            this.aux = aux;
+            this.time = time;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Pack {
+        final int number;
+        long size;                                         // file length
+        long liveBytes;                                    // item bytes still referenced
+        final List<Record> tombstones = new ArrayList<>(); // carried over when this pack is compacted
+        final List<Record> records;                        // active pack only: what its index will list
+
+        Pack(int number, long size, boolean active) {
+            this.number = number;
+            this.size = size;
+            this.records = active ? new ArrayList<>() : null;
+        }
+    }
+
+    private final Path dir;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Location> items = new HashMap<>();
+    private final TreeMap<Integer, Pack> packs = new TreeMap<>();
+    private final Map<Integer, FileChannel> readers = new ConcurrentHashMap<>();
+    private final List<String> problems = new ArrayList<>();
+    private Pack active;              // null until the first append after a seal
+    private FileChannel activeOut;
+    private Parity.Scheme parity;     // null: sealed packs get no sidecar
+    private int parityThreads = 1;
+
+    private PackStore(Path dir) {
+        this.dir = dir;
+    }
+
+    static PackStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        PackStore store = new PackStore(dir);
+        List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "pack-*.svp")) {
+            for (Path p : ds) {
+                String n = p.getFileName().toString();
+                try {
+                    numbers.add(Integer.parseInt(n.substring(5, n.length() - 4)));
+                } catch (NumberFormatException e) {
+                    store.problems.add("Ignoring unexpected file " + p);
+                }
+            }
+        }
+        Collections.sort(numbers);
+        for (int i = 0; i < numbers.size(); i++) {
+            int number = numbers.get(i);
+            boolean last = i == numbers.size() - 1;
+            List<Record> records = store.readIndex(number);
+            boolean sealed = records != null;
+            if (!sealed) records = store.scan(number, last);
+            Pack pack = new Pack(number, Files.size(store.packPath(number)), !sealed && last);
+            store.packs.put(number, pack);
+            for (Record r : records) store.apply(pack, r);
+            if (!sealed && !last) {
+                store.writeIndex(number, pack.size, records);   // sealing was interrupted
+            } else if (!sealed) {
+                pack.records.addAll(records);
+                store.active = pack;
+            }
+        }
+        for (Location loc : store.items.values()) store.packs.get(loc.pack).liveBytes += loc.length;
+        return store;
+    }
+
+    /** Writes a parity sidecar with {@code scheme} for every pack sealed from now on (null: none). */
+    void protectWith(Parity.Scheme scheme, int threads) {
+        lock.writeLock().lock();
+        try {
+            parity = scheme;
+            parityThreads = Math.max(1, threads);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Things found while opening that the user should hear about. */
+    List<String> problems() {
+        return Collections.unmodifiableList(problems);
+    }
+
+    boolean contains(String name) {
+        lock.readLock().lock();
+        try {
+            return items.containsKey(name);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Names of all live packed items. */
+    List<String> names() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(items.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** When a packed item was added, or -1 if {@code name} is not packed. */
+    long addedMillis(String name) {
+        lock.readLock().lock();
+        try {
+            Location loc = items.get(name);
+            return loc == null ? -1 : loc.time;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** The complete item bytes (header + payload) of {@code name}, or null if it is not a packed item. */
+    byte[] read(String name) throws IOException {
+        lock.readLock().lock();
+        try {
+            Location loc = items.get(name);
+            if (loc == null) return null;
+            FileChannel ch = readers.get(loc.pack);
+            if (ch == null) {
+                ch = FileChannel.open(packPath(loc.pack), StandardOpenOption.READ);
+                FileChannel raced = readers.putIfAbsent(loc.pack, ch);
+                if (raced != null) {
+                    ch.close();
+                    ch = raced;
+                }
+            }
+            ByteBuffer buf = ByteBuffer.allocate(loc.length);
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, loc.offset + buf.position()) < 0) throw new EOFException("Pack file is truncated");
+            }
+            return buf.array();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends {@code data} as item {@code name}, which must not be packed already. The record is on
+     * disk when this returns, before the caller indexes the item.
+     */
+    void append(String name, byte[] data) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (items.containsKey(name)) throw new FileAlreadyExistsException(name);
+            appendRecord(ITEM, 0, System.currentTimeMillis(), name, data, 0, data.length);
+            forceActive();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes packed item {@code name} with a tombstone, on disk when this returns; with {@code wipe}
+     * its bytes in the pack are overwritten with random data first. Returns false if it is not packed.
+     */
+    boolean delete(String name, boolean wipe) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Location loc = items.get(name);
+            if (loc == null) return false;
+            if (wipe) {
+                // noise plus a CRC that matches it, so a later scan still steps over the record
+                ByteBuffer noise = ByteBuffer.allocate(loc.length + 4);
+                RNG.nextBytes(noise.array());
+                CRC32 crc = new CRC32();
+                crc.update(recordHead(ITEM, 0, loc.time, name.getBytes(StandardCharsets.UTF_8), loc.length));
+                crc.update(noise.array(), 0, loc.length);
+                noise.putInt(loc.length, (int) crc.getValue());
+                try (FileChannel ch = FileChannel.open(packPath(loc.pack), StandardOpenOption.WRITE)) {
+                    writeFully(ch, noise, loc.offset);
+                    ch.force(false);
+                }
+                Path pack = packPath(loc.pack);
+                try {
+                    Parity.refresh(pack, loc.offset, loc.offset + loc.length + 4);
+                } catch (IOException e) {
+                    Files.deleteIfExists(Parity.sidecar(pack));   // it could rebuild what was just wiped
+                }
+            }
+            appendRecord(TOMBSTONE, loc.pack, System.currentTimeMillis(), name, null, 0, 0);
+            forceActive();
+            items.remove(name);
+            packs.get(loc.pack).liveBytes -= loc.length;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** True if some sealed pack has fallen below {@link #COMPACT_BELOW_LIVE_RATIO} live data. */
+    boolean needsCompaction() {
+        lock.readLock().lock();
+        try {
+            for (Pack p : packs.values()) {
+                if (p != active && p.liveBytes < p.size * COMPACT_BELOW_LIVE_RATIO) return true;
+            }
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites mostly-dead sealed packs: their live items (and the tombstones still needed) are
+     * appended to the active pack and the old files removed. Returns {packs removed, bytes reclaimed}.
+     * A crash part-way leaves both copies; the later pack wins when the store is next opened.
+     */
+    long[] compact() throws IOException {
+        long removed = 0, reclaimed = 0;
+        lock.writeLock().lock();
+        try {
+            for (Pack p : new ArrayList<>(packs.values())) {
+                if (p == active || p.liveBytes >= p.size * COMPACT_BELOW_LIVE_RATIO) continue;
+                List<Map.Entry<String, Location>> live = new ArrayList<>();
+                for (Map.Entry<String, Location> e : items.entrySet()) {
+                    if (e.getValue().pack == p.number) live.add(e);
+                }
+                live.sort(Comparator.comparingLong(e -> e.getValue().offset));
+                long copied = 0;
+                for (Map.Entry<String, Location> e : live) {
+                    Location loc = e.getValue();
+                    byte[] data = read(e.getKey());
+                    items.remove(e.getKey());
+                    p.liveBytes -= loc.length;
+                    appendRecord(ITEM, 0, loc.time, e.getKey(), data, 0, data.length);
+                    copied += data.length;
+                }
+                for (Record t : p.tombstones) {
+                    // still needed while the pack holding the deleted copy exists
+                    if (packs.containsKey(t.aux) && t.aux != p.number) {
+                        appendRecord(TOMBSTONE, t.aux, t.time, t.name, null, 0, 0);
+                    }
+                }
+                forceActive();
+                FileChannel reader = readers.remove(p.number);
+                if (reader != null) reader.close();
+                Files.deleteIfExists(indexPath(p.number));
+                Files.deleteIfExists(Parity.sidecar(packPath(p.number)));
+                Files.deleteIfExists(packPath(p.number));
+                packs.remove(p.number);
+                removed++;
+                reclaimed += p.size - copied;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return new long[]{removed, reclaimed};
+    }
+
+    /**
+     * Checks the sealed pack holding {@code name} against its parity and rebuilds damaged blocks
+     * in place. Returns null if the item is not packed, or its pack is active or has no sidecar.
+     */
+    Parity.Report repair(String name) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Location loc = items.get(name);
+            if (loc == null || (active != null && loc.pack == active.number)) return null;
+            return Parity.repair(packPath(loc.pack), true, parityThreads);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the parity sidecar of the sealed pack holding {@code name} if parity is on and it has
+     * none (a pack sealed before parity was turned on, or whose sealing was interrupted). Returns
+     * true if one was written.
+     */
+    boolean ensureParity(String name) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Location loc = items.get(name);
+            if (parity == null || loc == null || (active != null && loc.pack == active.number)) return false;
+            Path pack = packPath(loc.pack);
+            if (Files.exists(Parity.sidecar(pack))) return false;
+            Parity.create(pack, parity, parityThreads);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** {pack files, packed items, pack bytes on disk, bytes of live items}. */
+    long[] stats() {
+        lock.readLock().lock();
+        try {
+            long size = 0, live = 0;
+            for (Pack p : packs.values()) {
+                size += p.size;
+                live += p.liveBytes;
+            }
+            return new long[]{packs.size(), items.size(), size, live};
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (FileChannel ch : readers.values()) ch.close();
+            readers.clear();
+            if (activeOut != null) {
+                activeOut.close();
+                activeOut = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ===== Writing =====
+
+    private void appendRecord(byte type, int aux, long time, String name, byte[] data, int off, int len)
+            throws IOException {
+        if (active == null) {
+            startPack();
+        } else if (activeOut == null) {
+            activeOut = FileChannel.open(packPath(active.number), StandardOpenOption.WRITE);   // reopened store
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF) throw new IOException("Item name too long");
+        byte[] head = recordHead(type, aux, time, nameBytes, len);
+        ByteBuffer rec = ByteBuffer.allocate(head.length + len + 4);
+        rec.put(head);
+        if (len > 0) rec.put(data, off, len);
+        CRC32 crc = new CRC32();
+        crc.update(rec.array(), 0, rec.position());
+        rec.putInt((int) crc.getValue());
+        rec.flip();
+
+        long at = active.size;
+        writeFully(activeOut, rec, at);
+        active.size += rec.limit();
+        Record r = new Record(type, aux, time, name, at + head.length, len);
+        active.records.add(r);
+        apply(active, r);
+        if (type == ITEM) active.liveBytes += len;
+        if (active.size >= TARGET_PACK_BYTES) seal();
+    }
+
+    /** Forces the active pack to disk; a record that just sealed its pack was forced by the seal. */
+    private void forceActive() throws IOException {
+        if (activeOut != null) activeOut.force(false);
+    }
+
+    /** type | aux | time | nameLen | name | dataLen: the part of a record before its data. */
+    private static byte[] recordHead(byte type, int aux, long time, byte[] name, int len) {
+        return ByteBuffer.allocate(1 + 4 + 8 + 2 + name.length + 4)
+                .put(type).putInt(aux).putLong(time).putShort((short) name.length).put(name).putInt(len).array();
+    }
+
+    private void startPack() throws IOException {
+        int number = packs.isEmpty() ? 1 : packs.lastKey() + 1;
+        activeOut = FileChannel.open(packPath(number), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer h = ByteBuffer.allocate(FILE_HEADER).put(PACK_MAGIC).put(VERSION);
+        writeFully(activeOut, h.flip(), 0);
+        StagedWrite.forceDirectory(dir);   // so the records forced into it can be found again
+        active = new Pack(number, FILE_HEADER, true);
+        packs.put(number, active);
+    }
+
+    private void seal() throws IOException {
+        activeOut.force(false);
+        activeOut.close();
+        activeOut = null;
+        writeIndex(active.number, active.size, active.records);
+        Path pack = packPath(active.number);
+        active = null;
+        if (parity != null) {
+            try {
+                Parity.create(pack, parity, parityThreads);
+            } catch (IOException e) {
+                // the pack is sealed and intact; a scrub writes the missing sidecar later
+            }
+        }
+    }
+
+    private void writeIndex(int number, long packLength, List<Record> records) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(records.size() * 64 + 32);
+        DataOutputStream d = new DataOutputStream(bos);
+        d.write(INDEX_MAGIC);
+        d.writeLong(packLength);
+        d.writeInt(records.size());
+        for (Record r : records) {
+            d.writeByte(r.type);
+            d.writeInt(r.aux);
+            d.writeLong(r.time);
+            d.writeUTF(r.name);
+            d.writeLong(r.offset);
+            d.writeInt(r.length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bos.toByteArray());
+        d.writeInt((int) crc.getValue());
+        Path tmp = dir.resolve("pack-" + number + ".idx.tmp");
+        Files.write(tmp, bos.toByteArray());
+        Files.move(tmp, indexPath(number), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // ===== Reading =====
+
+    /** Applies one record to the in-memory state while it is being loaded or written. */
+    private void apply(Pack pack, Record r) {
+        if (r.type == ITEM) {
+            items.put(r.name, new Location(pack.number, r.offset, r.length, r.time));
+        } else {
+            Location loc = items.get(r.name);
+            if (loc != null && loc.pack == r.aux) items.remove(r.name);
+            pack.tombstones.add(r);
+        }
+    }
+
+    /** The records listed in a pack's index, or null if it has none (or it does not match the pack). */
+    private List<Record> readIndex(int number) throws IOException {
+        Path idx = indexPath(number);
+        if (!Files.exists(idx)) return null;
+        byte[] b = Files.readAllBytes(idx);
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, Math.max(0, b.length - 4));
+        try {
+            DataInputStream d = new DataInputStream(new ByteArrayInputStream(b));
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            d.readFully(magic);
+            long packLength = d.readLong();
+            if (!Arrays.equals(magic, INDEX_MAGIC) || b.length < 4
+                    || ByteBuffer.wrap(b, b.length - 4, 4).getInt() != (int) crc.getValue()
+                    || packLength != Files.size(packPath(number))) {
+                problems.add("Pack index " + idx.getFileName() + " is stale or damaged; rescanned the pack.");
+                return null;
+            }
+            int n = d.readInt();
+            List<Record> records = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                records.add(new Record(d.readByte(), d.readInt(), d.readLong(), d.readUTF(), d.readLong(), d.readInt()));
+            }
+            return records;
+        } catch (EOFException e) {
+            problems.add("Pack index " + idx.getFileName() + " is truncated; rescanned the pack.");
+            return null;
+        }
+    }
+
+    /**
+     * Reads a pack record by record. Where a record does not check out (bad framing, cut short or a
+     * CRC mismatch) the scan looks for the next one that does and reports the bytes in between as
+     * damaged. Only when no good record follows is it the tail of an interrupted append; in the last
+     * pack the file is then truncated back to the last good record.
+     */
+    private List<Record> scan(int number, boolean last) throws IOException {
+        Path path = packPath(number);
+        List<Record> records = new ArrayList<>();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER);
+            boolean created = readAt(ch, fileHeader, 0);   // false: crashed while creating it
+            if (created && (!Arrays.equals(Arrays.copyOf(fileHeader.array(), PACK_MAGIC.length), PACK_MAGIC)
+                    || fileHeader.get(PACK_MAGIC.length) != VERSION)) {
+                throw new IOException("Not a vault pack file: " + path);
+            }
+            long pos = created ? FILE_HEADER : 0;
+            String tail = null;   // what the unusable end of the file held, if it has one
+            while (created && pos < size) {
+                Record r = recordAt(ch, pos, size, true);
+                if (r != null) {
+                    records.add(r);
+                    pos = r.offset + r.length + 4;
+                    continue;
+                }
+                Record framed = recordAt(ch, pos, size, false);
+                String what = framed == null ? "" : framed.type == ITEM
+                        ? " (item " + framed.name + ", which is unreadable)"
+                        : " (the delete record of " + framed.name + ", which may reappear)";
+                long next = resync(ch, pos + 1, size);
+                if (next < 0) {
+                    tail = what;
+                    break;
+                }
+                problems.add("Pack " + path.getFileName() + " is damaged from byte " + pos + " to " + next + what
+                        + "; the records after it are intact.");
+                pos = next;
+            }
+            if (!created || tail != null) {
+                if (last) {
+                    ch.truncate(pos);
+                    if (pos == 0) {
+                        writeFully(ch, ByteBuffer.allocate(FILE_HEADER).put(PACK_MAGIC).put(VERSION).flip(), 0);
+                    }
+                    if (pos < size) {
+                        problems.add("Dropped an incomplete or damaged write at the end of " + path.getFileName()
+                                + (tail == null ? "" : tail) + ".");
+                    }
+                } else {
+                    problems.add("Pack " + path.getFileName() + " is damaged after byte " + pos
+                            + (tail == null ? "" : tail) + "; items stored after that point are unreadable.");
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * The record at {@code pos} if it is framed sensibly and lies wholly within the file, and with
+     * {@code checkCrc} also matches its CRC; otherwise null.
+     */
+    private static Record recordAt(FileChannel ch, long pos, long size, boolean checkCrc) throws IOException {
+        ByteBuffer fixed = ByteBuffer.allocate(1 + 4 + 8 + 2);
+        if (size - pos < fixed.capacity() + 4 || !readAt(ch, fixed, pos)) return null;
+        byte type = fixed.get(0);
+        if (type != ITEM && type != TOMBSTONE) return null;
+        int nameLen = fixed.getShort(13) & 0xFFFF;
+        ByteBuffer rest = ByteBuffer.allocate(nameLen + 4);
+        if (!readAt(ch, rest, pos + fixed.capacity())) return null;
+        int len = rest.getInt(nameLen);
+        long headLen = fixed.capacity() + nameLen + 4L;
+        if (len < 0 || len > MAX_RECORD_DATA || pos + headLen + len + 4 > size) return null;
+        byte[] name = Arrays.copyOf(rest.array(), nameLen);
+        long time = fixed.getLong(5);
+        int aux = fixed.getInt(1);
+        if (checkCrc) {
+            ByteBuffer body = ByteBuffer.allocate(len + 4);
+            if (!readAt(ch, body, pos + headLen)) return null;
+            CRC32 crc = new CRC32();
+            crc.update(recordHead(type, aux, time, name, len));
+            crc.update(body.array(), 0, len);
+            if (body.getInt(len) != (int) crc.getValue()) return null;
+        }
+        return new Record(type, aux, time, new String(name, StandardCharsets.UTF_8), pos + headLen, len);
+    }
+
+    /** The offset of the first good record at or after {@code from}, or -1 if there is none. */
+    private static long resync(FileChannel ch, long from, long size) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(1 << 20);
+        for (long base = from; base < size; base += block.capacity()) {
+            block.clear().limit((int) Math.min(block.capacity(), size - base));
+            readAt(ch, block, base);
+            for (int i = 0; i < block.limit(); i++) {
+                byte b = block.get(i);
+                // only a plausible type byte is worth reading a whole record for
+                if ((b == ITEM || b == TOMBSTONE) && recordAt(ch, base + i, size, true) != null) return base + i;
+            }
+        }
+        return -1;
+    }
+
+    private Path packPath(int number) {
+        return dir.resolve(String.format(Locale.ROOT, "pack-%06d.svp", number));
+    }
+
+    private Path indexPath(int number) {
+        return dir.resolve(String.format(Locale.ROOT, "pack-%06d.idx", number));
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += ch.write(buf, position);
+    }
+
+    /** Fills {@code buf} from {@code position}; false if the file ends first. */
+    private static boolean readAt(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) return false;
+        }
+        return true;
+    }
+}
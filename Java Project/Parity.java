@@ -0,0 +1,463 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * Reed-Solomon parity sidecars, so a few bad sectors in an item or pack file can be rebuilt in
+ * place instead of losing the whole file to a failed GCM tag.
+ *
+ * The file is cut into {@link #BLOCK_SIZE} blocks (the last one zero-padded), and every k
+ * consecutive blocks form a group with m parity blocks. Any m damaged blocks of a group, data or
+ * parity, can be rebuilt. A CRC32C per block says which blocks are damaged, so decoding only ever
+ * has to fill known gaps (erasures).
+ *
+ * <pre>
+ * sidecar  &lt;file&gt;.par:  "SVPR" | version(1) | k(1) | m(1) | blockSize(4) | fileLength(8)
+ *                      | crc32c(4) per data block | crc32c(4) per parity block | crc32c(4) of all before
+ *                      | parity blocks, group by group
+ * </pre>
+ *
+ * The code is systematic, with a Cauchy matrix over GF(2^8) (polynomial 0x11D) for the parity
+ * rows, so every k x k submatrix is invertible. Multiplying by a coefficient is one lookup in
+ * that coefficient's 256-byte product row, so encoding is a table-driven multiply-XOR over whole
+ * blocks. Groups are independent and run on up to {@code threads} workers.
+ */
+final class Parity {
+    static final String SUFFIX = ".par";
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final byte[] MAGIC = {'S', 'V', 'P', 'R'};
+    private static final byte VERSION = 1;
+    private static final int FIXED_HEADER = MAGIC.length + 1 + 1 + 1 + 4 + 8;
+
+    // ===== GF(2^8) =====
+
+    private static final int[] EXP = new int[510];
+    private static final int[] LOG = new int[256];
+    /** MUL[c] is the product row of c: MUL[c][x] = c * x. */
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) x ^= 0x11D;
+        }
+        for (int i = 255; i < EXP.length; i++) EXP[i] = EXP[i - 255];
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+        }
+    }
+
+    private static int mul(int a, int b) {
+        return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int inv(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    /** {@code dst ^= c * src} over the first {@code n} bytes. */
+    private static void mulAdd(byte[] dst, byte[] src, int c, int n) {
+        if (c == 0) return;
+        if (c == 1) {
+            for (int i = 0; i < n; i++) dst[i] ^= src[i];
+            return;
+        }
+        byte[] row = MUL[c];
+        for (int i = 0; i < n; i++) dst[i] ^= row[src[i] & 0xFF];
+    }
+
+    // ===== Scheme =====
+
+    /** k data blocks and m parity blocks per group, as written in vault.properties ("k+m"). */
+    static final class Scheme {
+        final int k;
+        final int m;
+        final int[][] cauchy;   // m x k
+
+        Scheme(int k, int m) {
+            if (k < 1 || m < 1 || k + m > 255) throw new IllegalArgumentException("Parity needs k >= 1, m >= 1, k + m <= 255");
+            this.k = k;
+            this.m = m;
+            cauchy = new int[m][k];
+            for (int i = 0; i < m; i++) {
+                for (int j = 0; j < k; j++) cauchy[i][j] = inv((k + i) ^ j);
+            }
+        }
+
+        static Scheme parse(String spec) {
+            String[] f = spec.trim().split("\\+");
+            try {
+                if (f.length == 2) return new Scheme(Integer.parseInt(f[0].trim()), Integer.parseInt(f[1].trim()));
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("Not a parity setting (k+m): " + spec);
+        }
+
+        String spec() {
+            return k + "+" + m;
+        }
+    }
+
+    /** What a check or repair found. */
+    static final class Report {
+        final long blocks;             // data blocks covered
+        final int damaged;             // data and parity blocks whose CRC failed
+        final int repaired;            // of those, rebuilt (0 for a check)
+        final int unrepairableGroups;  // groups with more than m damaged blocks
+        final boolean lengthFixed;     // the file was longer or shorter than when the parity was made
+
+        Report(long blocks, int damaged, int repaired, int unrepairableGroups, boolean lengthFixed) {
+            this.blocks = blocks;
+            this.damaged = damaged;
+            this.repaired = repaired;
+            this.unrepairableGroups = unrepairableGroups;
+            this.lengthFixed = lengthFixed;
+        }
+
+        @Override
+        public String toString() {
+            return damaged + " damaged block(s), " + repaired + " rebuilt"
+                    + (unrepairableGroups > 0 ? ", " + unrepairableGroups + " group(s) beyond repair" : "")
+                    + (lengthFixed ? ", length restored" : "");
+        }
+    }
+
+    private Parity() {}
+
+    static Path sidecar(Path file) {
+        return file.resolveSibling(file.getFileName() + SUFFIX);
+    }
+
+    /** Writes (or replaces) the parity sidecar of {@code file}. */
+    static void create(Path file, Scheme scheme, int threads) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + SUFFIX + ".tmp");
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Layout l = new Layout(scheme.k, scheme.m, BLOCK_SIZE, in.size());
+            forGroups(l, 0, l.groups, threads, g -> encodeGroup(l, scheme, g, in, out));
+            writeMeta(out, l);
+            out.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, sidecar(file), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Brings the parity of {@code file} up to date after bytes {@code [from, to)} were rewritten in
+     * place (same length); only the groups covering that range are re-encoded. Does nothing if
+     * the file has no sidecar.
+     */
+    static void refresh(Path file, long from, long to) throws IOException {
+        Path side = sidecar(file);
+        if (!Files.exists(side)) return;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(side, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Layout l = readMeta(out);
+            if (l.fileLength != in.size()) {
+                throw new IOException("Parity of " + file.getFileName() + " is for a different length; rebuild it");
+            }
+            Scheme scheme = new Scheme(l.k, l.m);
+            long g0 = from / ((long) l.k * l.blockSize);
+            long g1 = Math.min(l.groups, (to + (long) l.k * l.blockSize - 1) / ((long) l.k * l.blockSize));
+            forGroups(l, g0, g1, 1, g -> encodeGroup(l, scheme, g, in, out));
+            writeMeta(out, l);
+            out.force(true);
+        }
+    }
+
+    /**
+     * Checks {@code file} against its sidecar and, with {@code fix}, rebuilds what it can in place
+     * (restoring the recorded length as well). Returns null if there is no sidecar.
+     */
+    static Report repair(Path file, boolean fix, int threads) throws IOException {
+        Path side = sidecar(file);
+        if (!Files.exists(side)) return null;
+        OpenOption[] mode = fix
+                ? new OpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new OpenOption[]{StandardOpenOption.READ};
+        try (FileChannel data = FileChannel.open(file, mode); FileChannel par = FileChannel.open(side, mode)) {
+            Layout l = readMeta(par);
+            Scheme scheme = new Scheme(l.k, l.m);
+            boolean lengthFixed = data.size() != l.fileLength;
+            if (fix && data.size() > l.fileLength) data.truncate(l.fileLength);
+            AtomicInteger damaged = new AtomicInteger();
+            AtomicInteger repaired = new AtomicInteger();
+            AtomicInteger lost = new AtomicInteger();
+            forGroups(l, 0, l.groups, threads, g -> {
+                int[] r = repairGroup(l, scheme, g, data, par, fix);
+                damaged.addAndGet(r[0]);
+                repaired.addAndGet(r[1]);
+                if (r[2] > 0) lost.incrementAndGet();
+            });
+            if (fix) {
+                data.force(false);
+                par.force(false);
+            }
+            return new Report(l.dataBlocks, damaged.get(), repaired.get(), lost.get(), lengthFixed && fix);
+        }
+    }
+
+    // ===== Groups =====
+
+    /** Block geometry of one sidecar. */
+    private static final class Layout {
+        final int k, m, blockSize;
+        final long fileLength, dataBlocks, groups;
+        final int[] dataCrc;
+        final int[] parityCrc;
+
+        Layout(int k, int m, int blockSize, long fileLength) throws IOException {
+            this.k = k;
+            this.m = m;
+            this.blockSize = blockSize;
+            this.fileLength = fileLength;
+            this.dataBlocks = (fileLength + blockSize - 1) / blockSize;
+            this.groups = (dataBlocks + k - 1) / k;
+            if (dataBlocks > Integer.MAX_VALUE / 4 || groups * m > Integer.MAX_VALUE / 4) {
+                throw new IOException("File too large for a parity sidecar");
+            }
+            this.dataCrc = new int[(int) dataBlocks];
+            this.parityCrc = new int[(int) (groups * m)];
+        }
+
+        long metaLength() {
+            return FIXED_HEADER + 4L * dataCrc.length + 4L * parityCrc.length + 4;
+        }
+
+        long parityOffset(long group, int i) {
+            return metaLength() + (group * m + i) * blockSize;
+        }
+
+        /** Data blocks actually present in group {@code g}; the rest of the group counts as zeros. */
+        int blocksIn(long g) {
+            return (int) Math.min(k, dataBlocks - g * k);
+        }
+    }
+
+    private interface GroupTask {
+        void run(long group) throws IOException;
+    }
+
+    /** Runs {@code task} over groups {@code [from, to)}, in contiguous runs on up to {@code threads} workers. */
+    private static void forGroups(Layout l, long from, long to, int threads, GroupTask task) throws IOException {
+        long n = to - from;
+        if (n <= 0) return;
+        int workers = (int) Math.max(1, Math.min(threads, n));
+        if (workers == 1) {
+            for (long g = from; g < to; g++) task.run(g);
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "vault-parity");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            long per = (n + workers - 1) / workers;
+            List<Future<?>> runs = new ArrayList<>(workers);
+            for (long s = from; s < to; s += per) {
+                long start = s, end = Math.min(to, s + per);
+                runs.add(pool.submit(() -> {
+                    for (long g = start; g < end; g++) task.run(g);
+                    return null;
+                }));
+            }
+            for (Future<?> f : runs) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while computing parity");
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) throw (IOException) c;
+            if (c instanceof RuntimeException) throw (RuntimeException) c;
+            if (c instanceof Error) throw (Error) c;
+            throw new IOException(c);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void encodeGroup(Layout l, Scheme s, long g, FileChannel in, FileChannel out) throws IOException {
+        int present = l.blocksIn(g);
+        byte[][] parity = new byte[l.m][l.blockSize];
+        byte[] block = new byte[l.blockSize];
+        for (int j = 0; j < present; j++) {
+            long b = g * l.k + j;
+            readBlock(in, block, b * l.blockSize);
+            l.dataCrc[(int) b] = crc(block);
+            for (int i = 0; i < l.m; i++) mulAdd(parity[i], block, s.cauchy[i][j], l.blockSize);
+        }
+        for (int i = 0; i < l.m; i++) {
+            l.parityCrc[(int) (g * l.m + i)] = crc(parity[i]);
+            writeFully(out, ByteBuffer.wrap(parity[i]), l.parityOffset(g, i));
+        }
+    }
+
+    /** Returns {damaged, rebuilt, 1 if beyond repair}. */
+    private static int[] repairGroup(Layout l, Scheme s, long g, FileChannel data, FileChannel par, boolean fix)
+            throws IOException {
+        int k = l.k, m = l.m, present = l.blocksIn(g);
+        byte[][] blocks = new byte[k + m][];   // rows 0..k-1 data, k..k+m-1 parity
+        boolean[] bad = new boolean[k + m];
+        int damaged = 0;
+        for (int j = 0; j < k; j++) {
+            blocks[j] = new byte[l.blockSize];
+            if (j >= present) continue;   // past the end of the file: zeros, never damaged
+            long b = g * k + j;
+            readBlock(data, blocks[j], b * l.blockSize);
+            if (crc(blocks[j]) != l.dataCrc[(int) b]) {
+                bad[j] = true;
+                damaged++;
+            }
+        }
+        for (int i = 0; i < m; i++) {
+            blocks[k + i] = new byte[l.blockSize];
+            readBlock(par, blocks[k + i], l.parityOffset(g, i));
+            if (crc(blocks[k + i]) != l.parityCrc[(int) (g * m + i)]) {
+                bad[k + i] = true;
+                damaged++;
+            }
+        }
+        if (damaged == 0 || !fix) return new int[]{damaged, 0, damaged > m ? 1 : 0};
+        if (damaged > m) return new int[]{damaged, 0, 1};
+
+        // k intact rows of the generator [I; C] and their blocks; solve for the data
+        int[][] a = new int[k][];
+        byte[][] rows = new byte[k][];
+        for (int r = 0, n = 0; r < k + m && n < k; r++) {
+            if (bad[r]) continue;
+            if (r < k) {
+                a[n] = new int[k];
+                a[n][r] = 1;
+            } else {
+                a[n] = s.cauchy[r - k].clone();
+            }
+            rows[n++] = blocks[r];
+        }
+        int[][] ainv = invert(a);
+        int rebuilt = 0;
+        for (int j = 0; j < present; j++) {
+            if (!bad[j]) continue;
+            byte[] out = new byte[l.blockSize];
+            for (int r = 0; r < k; r++) mulAdd(out, rows[r], ainv[j][r], l.blockSize);
+            blocks[j] = out;
+            long b = g * k + j;
+            long off = b * l.blockSize;
+            int len = (int) Math.min(l.blockSize, l.fileLength - off);
+            writeFully(data, ByteBuffer.wrap(out, 0, len), off);
+            rebuilt++;
+        }
+        for (int i = 0; i < m; i++) {
+            if (!bad[k + i]) continue;
+            byte[] p = new byte[l.blockSize];
+            for (int j = 0; j < present; j++) mulAdd(p, blocks[j], s.cauchy[i][j], l.blockSize);
+            writeFully(par, ByteBuffer.wrap(p), l.parityOffset(g, i));
+            rebuilt++;
+        }
+        return new int[]{damaged, rebuilt, 0};
+    }
+
+    /** Gauss-Jordan inverse over GF(2^8); the Cauchy construction guarantees {@code a} is invertible. */
+    private static int[][] invert(int[][] a) {
+        int n = a.length;
+        int[][] w = new int[n][2 * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(a[i], 0, w[i], 0, n);
+            w[i][n + i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (w[pivot][col] == 0) pivot++;
+            int[] t = w[pivot];
+            w[pivot] = w[col];
+            w[col] = t;
+            int f = inv(w[col][col]);
+            for (int c = 0; c < 2 * n; c++) w[col][c] = mul(w[col][c], f);
+            for (int r = 0; r < n; r++) {
+                int e = w[r][col];
+                if (r == col || e == 0) continue;
+                for (int c = 0; c < 2 * n; c++) w[r][c] ^= mul(e, w[col][c]);
+            }
+        }
+        int[][] out = new int[n][];
+        for (int i = 0; i < n; i++) out[i] = Arrays.copyOfRange(w[i], n, 2 * n);
+        return out;
+    }
+
+    // ===== I/O =====
+
+    private static void writeMeta(FileChannel out, Layout l) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate((int) l.metaLength());
+        b.put(MAGIC).put(VERSION).put((byte) l.k).put((byte) l.m).putInt(l.blockSize).putLong(l.fileLength);
+        for (int c : l.dataCrc) b.putInt(c);
+        for (int c : l.parityCrc) b.putInt(c);
+        CRC32C crc = new CRC32C();
+        crc.update(b.array(), 0, b.position());
+        b.putInt((int) crc.getValue());
+        writeFully(out, b.flip(), 0);
+    }
+
+    private static Layout readMeta(FileChannel in) throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(FIXED_HEADER);
+        readFully(in, h, 0);
+        byte[] magic = new byte[MAGIC.length];
+        h.flip().get(magic);
+        if (!Arrays.equals(magic, MAGIC) || h.get() != VERSION) throw new IOException("Not a parity sidecar");
+        int k = h.get() & 0xFF, m = h.get() & 0xFF, blockSize = h.getInt();
+        long fileLength = h.getLong();
+        if (k < 1 || m < 1 || k + m > 255 || blockSize < 512 || blockSize > (16 << 20) || fileLength < 0) {
+            throw new IOException("Parity sidecar header is damaged");
+        }
+        Layout l = new Layout(k, m, blockSize, fileLength);
+        ByteBuffer b = ByteBuffer.allocate((int) l.metaLength());
+        readFully(in, b, 0);
+        CRC32C crc = new CRC32C();
+        crc.update(b.array(), 0, b.limit() - 4);
+        b.flip();
+        if ((int) crc.getValue() != b.getInt(b.limit() - 4)) throw new IOException("Parity sidecar header is damaged");
+        b.position(FIXED_HEADER);
+        for (int i = 0; i < l.dataCrc.length; i++) l.dataCrc[i] = b.getInt();
+        for (int i = 0; i < l.parityCrc.length; i++) l.parityCrc[i] = b.getInt();
+        return l;
+    }
+
+    /** Reads the block at {@code position}; whatever lies past the end of the file reads as zeros. */
+    private static void readBlock(FileChannel ch, byte[] block, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(block);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) break;
+        }
+        Arrays.fill(block, buf.position(), block.length, (byte) 0);
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) throw new EOFException("Parity sidecar is truncated");
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += ch.write(buf, position);
+    }
+
+    private static int crc(byte[] block) {
+        CRC32C c = new CRC32C();
+        c.update(block, 0, block.length);
+        return (int) c.getValue();
+    }
+}
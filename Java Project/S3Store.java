@@ -0,0 +1,568 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A {@link VaultStore} in an S3-compatible bucket, spoken to directly over HTTP with
+ * {@link HttpClient} and AWS Signature Version 4, so it needs no SDK.
+ *
+ * Objects up to one part ({@code storePartMiB}) go up in a single PUT. Larger ones use a
+ * multipart upload with up to {@code storeThreads} parts in flight, and are fetched the same way
+ * with ranged GETs, pinned to the ETag the object had when the download started. Every request
+ * signs the SHA-256 of its body, so the service rejects a part that was damaged on the way.
+ * Throttling and server errors (5xx) and dropped connections are retried with backoff.
+ *
+ * {@link FakeS3Server} implements enough of the protocol to run all of this without a network.
+ */
+final class S3Store implements VaultStore {
+    static final int MIN_PART_SIZE = 5 << 20;   // S3's floor for every part but the last
+    static final int DEFAULT_PART_MIB = 16;
+    static final int DEFAULT_THREADS = 4;
+
+    private static final int MAX_PART_MIB = 1024;
+    private static final int MAX_PARTS = 10_000;
+    private static final int ATTEMPTS = 4;
+    private static final long BACKOFF_MILLIS = 200;
+    private static final Duration TIMEOUT = Duration.ofMinutes(2);
+    private static final byte[] EMPTY = new byte[0];
+
+    private final HttpClient http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+    private final URI endpoint;
+    private final boolean pathStyle;
+    private final String region;
+    private final String bucket;
+    private final String prefix;
+    private final String accessKey;
+    private final String secretKey;
+    private final String sessionToken;   // null for long-term keys
+    private final int partSize;
+    private final int threads;
+
+    S3Store(URI endpoint, boolean pathStyle, String region, String bucket, String prefix,
+            String accessKey, String secretKey, String sessionToken, int partSize, int threads) {
+        if (partSize < MIN_PART_SIZE) throw new IllegalArgumentException("Parts must be at least 5 MiB");
+        this.endpoint = endpoint;
+        this.pathStyle = pathStyle;
+        this.region = region;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.sessionToken = sessionToken;
+        this.partSize = partSize;
+        this.threads = Math.max(1, threads);
+    }
+
+    /** The store the "store*" settings describe (see {@link VaultStore}), with credentials from the environment. */
+    static S3Store configure(Properties meta, List<String> notices) {
+        String bucket = meta.getProperty("storeBucket", "").trim();
+        if (bucket.isEmpty()) throw new IllegalArgumentException("storeBucket is not set");
+        String region = meta.getProperty("storeRegion", "us-east-1").trim();
+        String ep = meta.getProperty("storeEndpoint");
+        URI endpoint = URI.create(ep != null ? ep.trim() : "https://s3." + region + ".amazonaws.com");
+        if (endpoint.getHost() == null || !(endpoint.getScheme().equals("https") || endpoint.getScheme().equals("http"))) {
+            throw new IllegalArgumentException("storeEndpoint must be an http(s) URL");
+        }
+        boolean pathStyle = Boolean.parseBoolean(meta.getProperty("storePathStyle", String.valueOf(ep != null)).trim());
+        String accessKey = System.getenv("AWS_ACCESS_KEY_ID");
+        String secretKey = System.getenv("AWS_SECRET_ACCESS_KEY");
+        if (accessKey == null || secretKey == null) {
+            throw new IllegalArgumentException("AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY are not set");
+        }
+        int partMiB = Math.min(MAX_PART_MIB,
+                VaultEngine.intSetting(meta, "storePartMiB", DEFAULT_PART_MIB, MIN_PART_SIZE >> 20, notices));
+        return new S3Store(endpoint, pathStyle, region, bucket, meta.getProperty("storePrefix", "").trim(),
+                accessKey, secretKey, System.getenv("AWS_SESSION_TOKEN"), partMiB << 20,
+                VaultEngine.intSetting(meta, "storeThreads", DEFAULT_THREADS, 1, notices));
+    }
+
+    // ===== VaultStore =====
+
+    @Override
+    public void put(String key, Path file) throws IOException {
+        String k = objectKey(key);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size <= partSize) {
+                byte[] body = new byte[(int) size];
+                readFully(ch, ByteBuffer.wrap(body), 0);
+                request("PUT", k, Collections.emptyMap(), body, Collections.emptyMap());
+                return;
+            }
+            multipartUpload(k, ch, size);
+        }
+    }
+
+    @Override
+    public byte[] getRange(String key, long offset, int length) throws IOException {
+        if (offset < 0 || length < 0) throw new IllegalArgumentException("Bad range");
+        if (length == 0) return EMPTY;
+        HttpResponse<byte[]> r = request("GET", objectKey(key), Collections.emptyMap(), null,
+                Collections.singletonMap("range", "bytes=" + offset + "-" + (offset + length - 1)), 416);
+        if (r.statusCode() == 416) return EMPTY;   // starts at or past the end
+        if (r.statusCode() == 200) {
+            // the service ignored the range and sent everything
+            byte[] all = r.body();
+            int from = (int) Math.min(all.length, offset);
+            return Arrays.copyOfRange(all, from, (int) Math.min(all.length, offset + length));
+        }
+        return r.body();
+    }
+
+    @Override
+    public void fetch(String key, Path target) throws IOException {
+        String k = objectKey(key);
+        HttpResponse<byte[]> head = request("HEAD", k, Collections.emptyMap(), null, Collections.emptyMap());
+        long size = contentLength(head);
+        String etag = head.headers().firstValue("etag").orElse(null);
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            int parts = (int) Math.max(1, (size + partSize - 1) / partSize);
+            forParts(parts, n -> {
+                long from = (long) n * partSize;
+                long to = Math.min(size, from + partSize);
+                Map<String, String> headers = new TreeMap<>();
+                if (to > from) headers.put("range", "bytes=" + from + "-" + (to - 1));
+                if (etag != null) headers.put("if-match", etag);   // the object must not change under us
+                byte[] body = request("GET", k, Collections.emptyMap(), null, headers).body();
+                if (body.length != to - from) {
+                    throw new IOException("Short read of " + key + " at " + from + ": " + body.length + " bytes");
+                }
+                writeFully(out, ByteBuffer.wrap(body), from);
+                return null;
+            });
+            out.force(false);
+        }
+    }
+
+    @Override
+    public long size(String key) throws IOException {
+        try {
+            return contentLength(request("HEAD", objectKey(key), Collections.emptyMap(), null, Collections.emptyMap()));
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public List<StoredObject> list(String keyPrefix) throws IOException {
+        List<StoredObject> out = new ArrayList<>();
+        String token = null;
+        do {
+            Map<String, String> q = new TreeMap<>();
+            q.put("list-type", "2");
+            q.put("prefix", prefix + keyPrefix);
+            if (token != null) q.put("continuation-token", token);
+            Document doc = xml(request("GET", null, q, null, Collections.emptyMap()).body());
+            NodeList contents = doc.getElementsByTagName("Contents");
+            for (int i = 0; i < contents.getLength(); i++) {
+                Element c = (Element) contents.item(i);
+                String key = text(c, "Key");
+                if (key == null || !key.startsWith(prefix)) continue;
+                String modified = text(c, "LastModified");
+                out.add(new StoredObject(key.substring(prefix.length()), Long.parseLong(text(c, "Size")),
+                        modified == null ? 0 : Instant.parse(modified).toEpochMilli()));
+            }
+            token = "true".equals(text(doc.getDocumentElement(), "IsTruncated"))
+                    ? text(doc.getDocumentElement(), "NextContinuationToken") : null;
+        } while (token != null);
+        out.sort(Comparator.comparing(o -> o.key));
+        return out;
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        try {
+            request("DELETE", objectKey(key), Collections.emptyMap(), null, Collections.emptyMap());
+        } catch (NoSuchFileException e) {
+            // already gone
+        }
+    }
+
+    @Override
+    public void close() {
+        // HttpClient releases its connections when it is collected
+    }
+
+    @Override
+    public String toString() {
+        return "s3://" + bucket + "/" + prefix + " at " + endpoint;
+    }
+
+    // ===== Multipart =====
+
+    private void multipartUpload(String k, FileChannel ch, long size) throws IOException {
+        int part = (int) Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+        int parts = (int) ((size + part - 1) / part);
+        String uploadId = text(xml(request("POST", k, Collections.singletonMap("uploads", ""), EMPTY,
+                Collections.emptyMap()).body()).getDocumentElement(), "UploadId");
+        if (uploadId == null) throw new IOException("Multipart upload of " + k + " was not started: no UploadId");
+        try {
+            String[] etags = new String[parts];
+            forParts(parts, n -> {
+                long from = (long) n * part;
+                byte[] body = new byte[(int) Math.min(part, size - from)];
+                readFully(ch, ByteBuffer.wrap(body), from);
+                Map<String, String> q = new TreeMap<>();
+                q.put("partNumber", String.valueOf(n + 1));
+                q.put("uploadId", uploadId);
+                HttpResponse<byte[]> r = request("PUT", k, q, body, Collections.emptyMap());
+                etags[n] = r.headers().firstValue("etag")
+                        .orElseThrow(() -> new IOException("Part " + (n + 1) + " of " + k + " came back without an ETag"));
+                return null;
+            });
+            StringBuilder done = new StringBuilder("<CompleteMultipartUpload>");
+            for (int n = 0; n < parts; n++) {
+                done.append("<Part><PartNumber>").append(n + 1).append("</PartNumber><ETag>")
+                        .append(escape(etags[n])).append("</ETag></Part>");
+            }
+            done.append("</CompleteMultipartUpload>");
+            byte[] reply = request("POST", k, Collections.singletonMap("uploadId", uploadId),
+                    done.toString().getBytes(StandardCharsets.UTF_8), Collections.emptyMap()).body();
+            // completion can fail after a 200 has been sent; the error is then in the body
+            Element root = xml(reply).getDocumentElement();
+            if (root.getTagName().equals("Error")) {
+                throw new IOException("Multipart upload of " + k + " failed: " + text(root, "Code") + ": " + text(root, "Message"));
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                request("DELETE", k, Collections.singletonMap("uploadId", uploadId), null, Collections.emptyMap());
+            } catch (IOException | RuntimeException e2) {
+                e.addSuppressed(e2);   // the bucket's lifecycle rules clean up abandoned uploads
+            }
+            throw e;
+        }
+    }
+
+    private interface PartTask {
+        Void run(int part) throws IOException;
+    }
+
+    /** Runs {@code task} for parts 0..parts-1 with up to {@link #threads} in flight; the first failure wins. */
+    private void forParts(int parts, PartTask task) throws IOException {
+        if (parts == 1 || threads == 1) {
+            for (int n = 0; n < parts; n++) task.run(n);
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, parts), r -> {
+            Thread t = new Thread(r, "vault-s3");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Void>> running = new ArrayList<>(parts);
+            for (int n = 0; n < parts; n++) {
+                int part = n;
+                running.add(pool.submit(() -> task.run(part)));
+            }
+            for (Future<Void> f : running) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during transfer");
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) throw (IOException) c;
+            if (c instanceof RuntimeException) throw (RuntimeException) c;
+            if (c instanceof Error) throw (Error) c;
+            throw new IOException(c);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // ===== HTTP =====
+
+    /**
+     * Sends one signed request and returns the response if its status is 2xx or one of
+     * {@code accept}. 404 becomes {@link NoSuchFileException}; 5xx, throttling and I/O failures
+     * are retried.
+     */
+    private HttpResponse<byte[]> request(String method, String key, Map<String, String> query, byte[] body,
+                                         Map<String, String> headers, int... accept) throws IOException {
+        URI uri = uri(key, query);
+        String payloadHash = SigV4.hex(SigV4.sha256(body == null ? EMPTY : body));
+        for (int attempt = 1; ; attempt++) {
+            HttpResponse<byte[]> r;
+            try {
+                r = http.send(signed(method, uri, body, headers, payloadHash), HttpResponse.BodyHandlers.ofByteArray());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during " + method + " " + uri.getPath());
+            } catch (IOException e) {
+                if (attempt >= ATTEMPTS) throw e;
+                backoff(attempt);
+                continue;
+            }
+            int status = r.statusCode();
+            if (status / 100 == 2) return r;
+            for (int a : accept) {
+                if (status == a) return r;
+            }
+            if ((status / 100 == 5 || status == 429) && attempt < ATTEMPTS) {
+                backoff(attempt);
+                continue;
+            }
+            String code = null, message = null;
+            if (r.body().length > 0) {
+                try {
+                    Element root = xml(r.body()).getDocumentElement();
+                    code = text(root, "Code");
+                    message = text(root, "Message");
+                } catch (IOException e) {
+                    // not an S3 error document
+                }
+            }
+            if (status == 404 && !"NoSuchBucket".equals(code) && !"NoSuchUpload".equals(code)) {
+                throw new NoSuchFileException(key, null, "No such object");
+            }
+            throw new IOException(method + " " + uri.getPath() + ": HTTP " + status
+                    + (code != null ? " " + code : "") + (message != null ? ": " + message : ""));
+        }
+    }
+
+    private HttpRequest signed(String method, URI uri, byte[] body, Map<String, String> extra, String payloadHash) {
+        String amzDate = SigV4.AMZ_DATE.format(Instant.now());
+        SortedMap<String, String> h = new TreeMap<>(extra);
+        h.put("host", SigV4.host(uri));
+        h.put("x-amz-content-sha256", payloadHash);
+        h.put("x-amz-date", amzDate);
+        if (sessionToken != null) h.put("x-amz-security-token", sessionToken);
+        String canonical = SigV4.canonicalRequest(method, uri.getRawPath(), uri.getRawQuery() == null ? "" : uri.getRawQuery(),
+                h, payloadHash);
+        HttpRequest.Builder b = HttpRequest.newBuilder(uri).timeout(TIMEOUT)
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body));
+        for (Map.Entry<String, String> e : h.entrySet()) {
+            if (!e.getKey().equals("host")) b.header(e.getKey(), e.getValue());   // the client sets Host itself
+        }
+        b.header("authorization", SigV4.authorization(accessKey, secretKey, region, amzDate, h, canonical));
+        return b.build();
+    }
+
+    /** The URL of {@code key} (null: the bucket itself) with {@code query}, encoded as it is signed. */
+    private URI uri(String key, Map<String, String> query) {
+        StringBuilder path = new StringBuilder();
+        if (pathStyle) path.append('/').append(SigV4.uriEncode(bucket, false));
+        path.append('/');
+        if (key != null) path.append(SigV4.uriEncode(key, true));
+        String host = pathStyle ? endpoint.getHost() : bucket + "." + endpoint.getHost();
+        String q = SigV4.canonicalQuery(query);
+        return URI.create(endpoint.getScheme() + "://" + host + (endpoint.getPort() != -1 ? ":" + endpoint.getPort() : "")
+                + path + (q.isEmpty() ? "" : "?" + q));
+    }
+
+    private String objectKey(String key) {
+        return prefix + VaultStore.checkKey(key);
+    }
+
+    private static long contentLength(HttpResponse<?> r) throws IOException {
+        return r.headers().firstValueAsLong("content-length")
+                .orElseThrow(() -> new IOException("Response has no Content-Length"));
+    }
+
+    private static void backoff(int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(BACKOFF_MILLIS << (attempt - 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    // ===== XML =====
+
+    static Document xml(byte[] body) throws IOException {
+        try {
+            DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+            f.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            f.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            f.setExpandEntityReferences(false);
+            return f.newDocumentBuilder().parse(new ByteArrayInputStream(body));
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Unreadable response from the object store: " + e.getMessage(), e);
+        }
+    }
+
+    /** The text of the first {@code tag} element under {@code parent}, or null. */
+    static String text(Element parent, String tag) {
+        NodeList n = parent.getElementsByTagName(tag);
+        return n.getLength() == 0 ? null : n.item(0).getTextContent();
+    }
+
+    static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    // ===== I/O =====
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) throw new IOException("File changed size while uploading");
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += ch.write(buf, position);
+    }
+
+    // ===== Signature Version 4 =====
+
+    /** AWS Signature Version 4 for S3, shared with {@link FakeS3Server}, which checks it. */
+    static final class SigV4 {
+        static final String ALGORITHM = "AWS4-HMAC-SHA256";
+        static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private SigV4() {}
+
+        /**
+         * The canonical request: method, path, query, the signed headers (lower-case names in
+         * order) and the payload hash. {@code rawQuery} is canonicalized here.
+         */
+        static String canonicalRequest(String method, String rawPath, String rawQuery,
+                                       SortedMap<String, String> headers, String payloadHash) {
+            StringBuilder sb = new StringBuilder(method).append('\n').append(rawPath).append('\n')
+                    .append(canonicalQuery(parseQuery(rawQuery))).append('\n');
+            for (Map.Entry<String, String> e : headers.entrySet()) {
+                sb.append(e.getKey()).append(':').append(e.getValue().trim()).append('\n');
+            }
+            return sb.append('\n').append(String.join(";", headers.keySet())).append('\n').append(payloadHash).toString();
+        }
+
+        /** The Authorization header value for a request signed at {@code amzDate}. */
+        static String authorization(String accessKey, String secretKey, String region, String amzDate,
+                                    SortedMap<String, String> headers, String canonicalRequest) {
+            return ALGORITHM + " Credential=" + accessKey + "/" + scope(amzDate, region)
+                    + ", SignedHeaders=" + String.join(";", headers.keySet())
+                    + ", Signature=" + signature(secretKey, region, amzDate, canonicalRequest);
+        }
+
+        static String signature(String secretKey, String region, String amzDate, String canonicalRequest) {
+            String toSign = ALGORITHM + "\n" + amzDate + "\n" + scope(amzDate, region) + "\n"
+                    + hex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+            byte[] k = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), amzDate.substring(0, 8));
+            k = hmac(k, region);
+            k = hmac(k, "s3");
+            k = hmac(k, "aws4_request");
+            return hex(hmac(k, toSign));
+        }
+
+        static String scope(String amzDate, String region) {
+            return amzDate.substring(0, 8) + "/" + region + "/s3/aws4_request";
+        }
+
+        /** Sorted, encoded {@code name=value} pairs joined by '&amp;'. */
+        static String canonicalQuery(Map<String, String> query) {
+            SortedMap<String, String> enc = new TreeMap<>();
+            for (Map.Entry<String, String> e : query.entrySet()) {
+                enc.put(uriEncode(e.getKey(), false), uriEncode(e.getValue(), false));
+            }
+            StringJoiner j = new StringJoiner("&");
+            for (Map.Entry<String, String> e : enc.entrySet()) j.add(e.getKey() + "=" + e.getValue());
+            return j.toString();
+        }
+
+        /** Decodes a raw query string; a name without '=' has an empty value. */
+        static Map<String, String> parseQuery(String rawQuery) {
+            Map<String, String> q = new LinkedHashMap<>();
+            if (rawQuery == null || rawQuery.isEmpty()) return q;
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                q.put(uriDecode(eq < 0 ? pair : pair.substring(0, eq)), eq < 0 ? "" : uriDecode(pair.substring(eq + 1)));
+            }
+            return q;
+        }
+
+        /** RFC 3986 encoding of everything but unreserved characters (and '/', with {@code keepSlash}). */
+        static String uriEncode(String s, boolean keepSlash) {
+            StringBuilder sb = new StringBuilder(s.length() + 16);
+            for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+                int c = b & 0xFF;
+                if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                        || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && keepSlash)) {
+                    sb.append((char) c);
+                } else {
+                    sb.append('%').append(Character.toUpperCase(HEX[c >> 4])).append(Character.toUpperCase(HEX[c & 15]));
+                }
+            }
+            return sb.toString();
+        }
+
+        static String uriDecode(String s) {
+            byte[] out = new byte[s.length()];
+            int n = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '%' && i + 2 < s.length()) {
+                    out[n++] = (byte) Integer.parseInt(s.substring(i + 1, i + 3), 16);
+                    i += 2;
+                } else {
+                    out[n++] = (byte) c;
+                }
+            }
+            return new String(out, 0, n, StandardCharsets.UTF_8);
+        }
+
+        /** The Host header the client sends for {@code uri}: the port only if it is not the scheme's default. */
+        static String host(URI uri) {
+            int port = uri.getPort();
+            boolean dflt = port == -1 || (port == 443 && "https".equals(uri.getScheme()))
+                    || (port == 80 && "http".equals(uri.getScheme()));
+            return dflt ? uri.getHost() : uri.getHost() + ":" + port;
+        }
+
+        static byte[] sha256(byte[] data) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(data);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+
+        static byte[] hmac(byte[] key, String data) {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(key, "HmacSHA256"));
+                return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 not available", e);
+            }
+        }
+
+        static String hex(byte[] b) {
+            char[] c = new char[b.length * 2];
+            for (int i = 0; i < b.length; i++) {
+                c[2 * i] = HEX[(b[i] >> 4) & 15];
+                c[2 * i + 1] = HEX[b[i] & 15];
+            }
+            return new String(c);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Integrity scrub: verifies items ({@link VaultEngine#verify}: every GCM tag, every chunk of a
+ * deduplicated item, and the sizes recorded in the header) on a pool of workers, writing nothing
+ * but a report.
+ *
+ * For vaults too large to scrub in one night, {@link #runNextSlice} covers 1/N of the items per
+ * run. An item's slice is fixed by a hash of its name, so adding or deleting items does not move
+ * the others between slices. {@value #STATE_FILE_NAME} remembers N and the next slice, so N
+ * consecutive runs cover the whole vault.
+ *
+ * An item that fails and has {@link Parity} is rebuilt in place from it and verified again.
+ * Items that pass get the parity sidecar they lack when parity is on, so turning it on for an
+ * existing vault takes effect over the next scrubs.
+ *
+ * Each run writes {@value #REPORT_DIR_NAME}/scrub-YYYYMMDD-HHMMSS.txt: a summary, then one
+ * "REPAIRED" line per item rebuilt from parity and one "CORRUPT" line per failed item
+ * (tab-separated item name, original name, detail).
+ */
+final class Scrubber {
+    static final String STATE_FILE_NAME = "scrub.properties";
+    static final String REPORT_DIR_NAME = "scrub-reports";
+    static final int DEFAULT_SLICES = 7;
+
+    private static final int SUMMARY_FAILURES = 20;
+    private static final DateTimeFormatter REPORT_NAME =
+            DateTimeFormatter.ofPattern("'scrub-'yyyyMMdd-HHmmss'.txt'").withZone(ZoneId.systemDefault());
+
+    /** Outcome of one run. */
+    static final class Result {
+        final String scope;
+        final int selected;
+        final int verified;
+        final int skipped;               // deleted while the scrub ran
+        final long bytes;                // logical bytes verified
+        final double seconds;
+        final List<String> failures;     // "item (original): reason"
+        final List<String> repaired;     // "item (original): what parity rebuilt"; also counted as verified
+        final int parityWritten;         // sidecars written for items that had none
+        final Path report;
+
+        private Result(String scope, int selected, int verified, int skipped, long bytes, double seconds,
+                       List<String> failures, List<String> repaired, int parityWritten, Path report) {
+            this.scope = scope;
+            this.selected = selected;
+            this.verified = verified;
+            this.skipped = skipped;
+            this.bytes = bytes;
+            this.seconds = seconds;
+            this.failures = failures;
+            this.repaired = repaired;
+            this.parityWritten = parityWritten;
+            this.report = report;
+        }
+
+        /** A few lines for the console: counts, throughput, the first failures and where the report is. */
+        String summary() {
+            StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+                    "Scrubbed %s: %d of %d items verified (%.1f MB) in %.1fs, %.1f MB/s; %d corrupt, %d skipped.",
+                    scope, verified, selected, bytes / (1024.0 * 1024), seconds,
+                    bytes / (1024.0 * 1024) / Math.max(seconds, 1e-9), failures.size(), skipped));
+            if (!repaired.isEmpty()) sb.append(' ').append(repaired.size()).append(" repaired from parity.");
+            if (parityWritten > 0) sb.append(" Wrote parity for ").append(parityWritten).append(" items.");
+            for (String r : repaired.subList(0, Math.min(SUMMARY_FAILURES, repaired.size()))) {
+                sb.append("\n  REPAIRED ").append(r);
+            }
+            for (int i = 0; i < Math.min(SUMMARY_FAILURES, failures.size()); i++) {
+                sb.append("\n  CORRUPT ").append(failures.get(i));
+            }
+            if (failures.size() > SUMMARY_FAILURES) {
+                sb.append("\n  ... and ").append(failures.size() - SUMMARY_FAILURES).append(" more");
+            }
+            return sb.append("\nReport: ").append(report).toString();
+        }
+    }
+
+    private final VaultEngine vault;
+    private final Path vaultDir;
+    private final int workers;
+
+    /** Runs one item per core (up to {@link VaultEngine#MAX_DEFAULT_WORKERS}) at a time. */
+    Scrubber(VaultEngine vault) {
+        this.vault = vault;
+        this.vaultDir = vault.directory();
+        this.workers = Math.min(Runtime.getRuntime().availableProcessors(), VaultEngine.MAX_DEFAULT_WORKERS);
+    }
+
+    /** The number of slices the last incremental run used, or {@link #DEFAULT_SLICES}. */
+    static int savedSlices(Path vaultDir) {
+        Properties state = new Properties();
+        try (InputStream in = Files.newInputStream(vaultDir.resolve(STATE_FILE_NAME))) {
+            state.load(in);
+            return Math.max(1, Integer.parseInt(state.getProperty("slices", String.valueOf(DEFAULT_SLICES))));
+        } catch (IOException | NumberFormatException e) {
+            return DEFAULT_SLICES;
+        }
+    }
+
+    /** The slice (0..slices-1) {@code itemName} falls in. */
+    static int sliceOf(String itemName, int slices) {
+        return Math.floorMod(itemName.hashCode(), slices);
+    }
+
+    /**
+     * Verifies the next 1/{@code slices} of the vault and moves on to the following slice. A
+     * change of {@code slices} starts again from the first.
+     */
+    Result runNextSlice(int slices) throws IOException, InterruptedException {
+        if (slices < 1) throw new IllegalArgumentException("Slices must be at least 1");
+        Path statePath = vaultDir.resolve(STATE_FILE_NAME);
+        Properties state = new Properties();
+        if (Files.exists(statePath)) {
+            try (InputStream in = Files.newInputStream(statePath)) {
+                state.load(in);
+            }
+        }
+        int slice = 0;
+        try {
+            if (Integer.parseInt(state.getProperty("slices", "0")) == slices) {
+                slice = Math.floorMod(Integer.parseInt(state.getProperty("nextSlice", "0")), slices);
+            }
+        } catch (NumberFormatException e) {
+            // damaged state: start over
+        }
+        List<VaultIndex.Entry> items = new ArrayList<>();
+        for (VaultIndex.Entry e : vault.list()) {
+            if (sliceOf(e.itemName, slices) == slice) items.add(e);
+        }
+        Result r = run(items, "slice " + (slice + 1) + " of " + slices);
+        state.setProperty("slices", String.valueOf(slices));
+        state.setProperty("nextSlice", String.valueOf((slice + 1) % slices));
+        state.setProperty("lastRun", Instant.now().toString());
+        state.setProperty("lastReport", r.report.getFileName().toString());
+        Path tmp = statePath.resolveSibling(STATE_FILE_NAME + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            state.store(out, "SecureVault scrub progress");
+        }
+        Files.move(tmp, statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return r;
+    }
+
+    /** Verifies {@code items} in parallel and writes the report; {@code scope} describes the selection. */
+    Result run(List<VaultIndex.Entry> items, String scope) throws IOException, InterruptedException {
+        Instant started = Instant.now();
+        long t0 = System.nanoTime();
+        AtomicInteger verified = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        AtomicInteger parityWritten = new AtomicInteger();
+        Queue<String[]> failures = new ConcurrentLinkedQueue<>();   // {item, original name, reason}
+        Queue<String[]> repairs = new ConcurrentLinkedQueue<>();    // {item, original name, parity report}
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "vault-scrub");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (VaultIndex.Entry e : items) {
+                pool.execute(() -> {
+                    String reason;
+                    try {
+                        bytes.addAndGet(vault.verify(e.itemName));
+                        verified.incrementAndGet();
+                        writeParity(e.itemName, parityWritten);
+                        return;
+                    } catch (NoSuchFileException ex) {
+                        if (vault.entry(e.itemName) == null) {
+                            skipped.incrementAndGet();   // deleted during the scrub
+                        } else {
+                            failures.add(new String[]{e.itemName, e.originalName, "item file missing"});
+                        }
+                        return;
+                    } catch (GeneralSecurityException ex) {
+                        reason = "authentication failed (" + ex.getClass().getSimpleName() + ")";
+                    } catch (IOException | RuntimeException ex) {
+                        reason = String.valueOf(ex.getMessage());
+                    }
+                    Parity.Report fix;
+                    try {
+                        fix = vault.repair(e.itemName);
+                    } catch (IOException ex) {
+                        failures.add(new String[]{e.itemName, e.originalName, reason + "; parity unusable: " + ex.getMessage()});
+                        return;
+                    }
+                    if (fix == null) {
+                        failures.add(new String[]{e.itemName, e.originalName, reason});
+                        return;
+                    }
+                    try {
+                        bytes.addAndGet(vault.verify(e.itemName));
+                        verified.incrementAndGet();
+                        repairs.add(new String[]{e.itemName, e.originalName, fix.toString()});
+                    } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+                        failures.add(new String[]{e.itemName, e.originalName, reason + "; parity: " + fix});
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+        double secs = (System.nanoTime() - t0) / 1e9;
+
+        List<String[]> failed = new ArrayList<>(failures);
+        failed.sort(Comparator.comparing(f -> f[0]));
+        List<String[]> fixed = new ArrayList<>(repairs);
+        fixed.sort(Comparator.comparing(f -> f[0]));
+        Path dir = Files.createDirectories(vaultDir.resolve(REPORT_DIR_NAME));
+        Path report = dir.resolve(REPORT_NAME.format(started));
+        for (int n = 1; Files.exists(report); n++) {
+            report = dir.resolve(REPORT_NAME.format(started).replace(".txt", "-" + n + ".txt"));
+        }
+        try (PrintWriter w = new PrintWriter(new OutputStreamWriter(Files.newOutputStream(report,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), StandardCharsets.UTF_8))) {
+            w.println("# SecureVault scrub report");
+            w.println("started: " + started);
+            w.println("scope: " + scope);
+            w.println("items: " + items.size());
+            w.println("verified: " + verified.get());
+            w.println("skipped: " + skipped.get() + " (deleted during the scrub)");
+            w.println("repaired: " + fixed.size() + " (rebuilt from parity, then verified)");
+            w.println("corrupt: " + failed.size());
+            w.println("parity written: " + parityWritten.get());
+            w.println("bytes: " + bytes.get());
+            w.println(String.format(Locale.ROOT, "seconds: %.1f", secs));
+            for (String[] f : fixed) w.println("REPAIRED\t" + f[0] + "\t" + f[1] + "\t" + f[2]);
+            for (String[] f : failed) w.println("CORRUPT\t" + f[0] + "\t" + f[1] + "\t" + f[2]);
+        }
+        List<String> lines = new ArrayList<>(failed.size());
+        for (String[] f : failed) lines.add(f[0] + " (" + f[1] + "): " + f[2]);
+        List<String> repairedLines = new ArrayList<>(fixed.size());
+        for (String[] f : fixed) repairedLines.add(f[0] + " (" + f[1] + "): " + f[2]);
+        return new Result(scope, items.size(), verified.get(), skipped.get(), bytes.get(), secs, lines, repairedLines,
+                parityWritten.get(), report);
+    }
+
+    /** Gives a verified item the parity sidecar it lacks, if parity is on; counted in {@code written}. */
+    private void writeParity(String itemName, AtomicInteger written) {
+        try {
+            if (vault.ensureParity(itemName)) written.incrementAndGet();
+        } catch (IOException e) {
+            // the item is fine; the next scrub tries again
+        }
+    }
+}
@@ -1,120 +1,100 @@
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.InvalidPathException;
 import java.security.GeneralSecurityException;
-import java.security.MessageDigest;
-import java.security.SecureRandom;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 public class SecureVault {
     // ===== Vault configuration =====
     private static final String VAULT_DIR_NAME = "SecureVault";          // under user.home
-    private static final String META_FILE_NAME  = "vault.properties";    // properties file
-    private static final String VAULT_EXT       = ".sv";                 // encrypted file extension
 
-    // ===== Crypto configuration =====
-    private static final int PBKDF2_ITERATIONS = 200_000; // strong but still quick on modern CPUs
-    private static final int SALT_BYTES        = 16;      // for master password hashing
-    private static final int KEY_BYTES         = 32;      // 256-bit AES key
-    private static final int GCM_IV_BYTES      = 12;      // recommended for GCM
-    private static final int GCM_TAG_BITS      = 128;     // 16 bytes tag
-
-    // ===== File header (per item) =====
-    private static final byte[] MAGIC = new byte[]{'S','V','L','T'}; // magic bytes
-    private static final byte VERSION = 1;                            // header version
-
-    // ===== Lockout policy =====
-    private static final int MAX_FAILED_ATTEMPTS = 5;
-    private static final long LOCKOUT_MILLIS     = 60_000L; // 1 minute lock after too many failures
+    // ===== Key agent =====
+    private static final long AGENT_IDLE_MINUTES = 15;   // agent drops the keys after this long without requests
 
     // ===== Utilities =====
-    private static final SecureRandom RNG = new SecureRandom();
     private static final DateTimeFormatter TS_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
             .withZone(ZoneId.systemDefault());
 
     public static void main(String[] args) {
+        if (args.length > 0 && !args[0].equals("agent")) {
+            // one-shot command served by a running agent: no password, no key derivation
+            System.exit(agentCommand(args));
+        }
         try {
             System.out.println("=== SecureVault - Encrypted File Storage ===");
             System.out.println("A secure, offline file encryption and storage application");
             System.out.println();
             
             Path vaultDir = ensureVaultDir();
-            Properties meta = loadMeta(vaultDir);
 
-            if (!meta.containsKey("hash")) {
+            if (!VaultEngine.isInitialized(vaultDir)) {
                 System.out.println("=== First-time setup ===");
                 char[] pw1 = promptPassword("Create master password");
                 char[] pw2 = promptPassword("Confirm master password");
-                if (!Arrays.equals(pw1, pw2)) {
-                    System.err.println("Passwords do not match. Exiting.");
+                try {
+                    if (!Arrays.equals(pw1, pw2)) {
+                        System.err.println("Passwords do not match. Exiting.");
+                        return;
+                    }
+                    VaultEngine.create(vaultDir, pw1);
+                } finally {
                     clearPassword(pw1);
                     clearPassword(pw2);
-                    return;
                 }
-                byte[] salt = new byte[SALT_BYTES];
-                RNG.nextBytes(salt);
-                byte[] hash = pbkdf2(pw1, salt, PBKDF2_ITERATIONS, KEY_BYTES);
-                clearPassword(pw2);
-                saveMeta(meta, vaultDir, salt, hash, PBKDF2_ITERATIONS, 0, 0L);
-                clearPassword(pw1);
                 System.out.println("Master password set. Vault initialized at: " + vaultDir);
             }
 
-            // Check lockout
-            long lockUntil = Long.parseLong(meta.getProperty("lockUntil", "0"));
-            long now = System.currentTimeMillis();
-            if (now < lockUntil) {
-                long seconds = (lockUntil - now + 999) / 1000;
-                System.err.println("Vault is temporarily locked due to failed attempts. Try again in " + seconds + "s.");
-                return;
-            }
-
-            // Authenticate
+            // Authenticate; the engine derives the keys once for the whole session
+            VaultEngine vault;
             char[] pw = promptPassword("Enter master password");
-            byte[] salt = Base64.getDecoder().decode(meta.getProperty("salt"));
-            int iters = Integer.parseInt(meta.getProperty("iters"));
-            byte[] expectedHash = Base64.getDecoder().decode(meta.getProperty("hash"));
-            byte[] actualHash = pbkdf2(pw, salt, iters, KEY_BYTES);
-            boolean ok = MessageDigest.isEqual(expectedHash, actualHash);
-            clearPassword(pw);
-            
-            if (!ok) {
-                int failed = Integer.parseInt(meta.getProperty("failed", "0")) + 1;
-                long nextLock = failed >= MAX_FAILED_ATTEMPTS ? now + LOCKOUT_MILLIS : 0L;
-                saveMeta(meta, vaultDir, salt, expectedHash, iters, failed, nextLock);
-                System.err.println("Incorrect password. Failed attempts: " + failed + (nextLock > 0 ? " (vault locked for 60s)" : ""));
+            try {
+                vault = VaultEngine.open(vaultDir, pw);
+            } catch (VaultEngine.UnlockException e) {
+                System.err.println(e.getMessage());
                 return;
-            } else {
-                // reset failed/lock
-                saveMeta(meta, vaultDir, salt, expectedHash, iters, 0, 0L);
+            } finally {
+                clearPassword(pw);
             }
-
-            SecretKeySpec masterKey = new SecretKeySpec(actualHash, "AES"); // derived key
+            vault.notices().forEach(System.out::println);
             System.out.println("\n=== Login successful ===");
             System.out.println("Vault directory: " + vaultDir.toAbsolutePath());
 
+            if (args.length > 0) {
+                runAgent(vault, args);
+                return;
+            }
+
             // Command loop with proper Scanner handling
             Scanner sc = new Scanner(System.in);
             try {
                 while (true) {
+                    vault.wipeFailures().forEach(System.err::println);
                     System.out.println("\n=== Main Menu ===");
                     System.out.println("1) Add (encrypt) file");
                     System.out.println("2) List files");
                     System.out.println("3) Extract (decrypt) file");
-                    System.out.println("4) Delete file (secure wipe)");
+                    System.out.println("4) Delete file");
                     System.out.println("5) Change master password");
+                    System.out.println("6) Read byte range of a file");
+                    System.out.println("7) Rebuild index from item headers");
+                    System.out.println("8) Bulk import directory tree");
+                    System.out.println("9) Bulk restore to directory");
+                    System.out.println("10) Add file with deduplication");
+                    System.out.println("11) Prune unreferenced chunks");
+                    System.out.println("12) Verify an item");
+                    System.out.println("13) Compact pack files");
+                    System.out.println("14) Move items into sharded directories");
+                    System.out.println("15) Calibrate password key derivation");
+                    System.out.println("16) Scrub: verify many items in parallel");
+                    System.out.println("17) Sync items with the object store");
                     System.out.println("0) Exit");
                     System.out.print("Your choice: ");
                     
@@ -122,6 +102,7 @@ public class SecureVault {
                     
                     switch (choice) {
                         case "1":
+                        case "10":
                             while (true) {
                                 System.out.print("Path of the file to encrypt (or 'cancel' to return to menu): ");
                                 System.out.flush();
@@ -148,7 +129,8 @@ public class SecureVault {
                                         continue;
                                     }
                                     // File is valid, proceed with encryption
-                                    addFileToVault(vaultDir, masterKey, src, sc);
+                                    addFileToVault(vault, src,
+                                            choice.equals("10"), sc);
                                     break;
                                 } catch (InvalidPathException e) {
                                     System.err.println("Invalid file path format: " + srcPath);
@@ -159,11 +141,11 @@ public class SecureVault {
                             break;
                             
                         case "2":
-                            listVault(vaultDir);
+                            listVault(vault);
                             break;
                             
                         case "3":
-                            listVault(vaultDir);
+                            listVault(vault);
                             System.out.print("Vault item name to extract (from list above): ");
                             String item = sc.nextLine().trim();
                             if (item.isEmpty()) {
@@ -184,11 +166,11 @@ public class SecureVault {
                                     break;
                                 }
                             }
-                            extractFromVault(vaultDir, masterKey, item, outDir);
+                            extractFromVault(vault, item, outDir);
                             break;
                             
                         case "4":
-                            listVault(vaultDir);
+                            listVault(vault);
                             System.out.print("Vault item name to DELETE (from list above): ");
                             String del = sc.nextLine().trim();
                             if (del.isEmpty()) {
@@ -198,30 +180,113 @@ public class SecureVault {
                             System.out.print("Are you sure you want to permanently delete '" + del + "'? (yes/no): ");
                             String confirm = sc.nextLine().trim().toLowerCase();
                             if (confirm.equals("yes") || confirm.equals("y")) {
-                                deleteFromVault(vaultDir, del);
+                                System.out.print("Also overwrite the ciphertext " + vault.wipePasses()
+                                        + " times (slow, paranoid mode)? (yes/no): ");
+                                String paranoid = sc.nextLine().trim().toLowerCase();
+                                deleteFromVault(vault, del, paranoid.equals("yes") || paranoid.equals("y"));
                             } else {
                                 System.out.println("Delete operation cancelled.");
                             }
                             break;
                             
                         case "5":
-                            changeMasterPassword(vaultDir, meta, masterKey);
-                            // update masterKey reference after change
-                            meta = loadMeta(vaultDir);
-                            byte[] newHash = Base64.getDecoder().decode(meta.getProperty("hash"));
-                            masterKey = new SecretKeySpec(newHash, "AES");
+                            // only the wrapping of the data key changes; the session keys stay valid
+                            changeMasterPassword(vault);
+                            break;
+                            
+                        case "6":
+                            listVault(vault);
+                            System.out.print("Vault item name to read from (from list above): ");
+                            String rangeItem = sc.nextLine().trim();
+                            if (rangeItem.isEmpty()) {
+                                System.err.println("No item name provided.");
+                                break;
+                            }
+                            long offset;
+                            long length;
+                            try {
+                                System.out.print("Start offset in bytes: ");
+                                offset = Long.parseLong(sc.nextLine().trim());
+                                System.out.print("Number of bytes to read: ");
+                                length = Long.parseLong(sc.nextLine().trim());
+                            } catch (NumberFormatException e) {
+                                System.err.println("Offset and length must be whole numbers.");
+                                break;
+                            }
+                            System.out.print("Output file: ");
+                            String rangeOut = sc.nextLine().trim();
+                            if (rangeOut.isEmpty()) {
+                                System.err.println("No output file provided.");
+                                break;
+                            }
+                            extractRangeFromVault(vault, rangeItem, offset, length,
+                                    Paths.get(rangeOut).toAbsolutePath());
+                            break;
+                            
+                        case "7":
+                            rebuildIndex(vault);
+                            break;
+                            
+                        case "8":
+                            bulkImport(vault, sc);
+                            break;
+                            
+                        case "9":
+                            bulkExtract(vault, sc);
+                            break;
+                            
+                        case "11":
+                            pruneChunks(vault);
+                            break;
+                            
+                        case "12":
+                            listVault(vault);
+                            System.out.print("Vault item name to verify (from list above): ");
+                            String verifyItem = sc.nextLine().trim();
+                            if (verifyItem.isEmpty()) {
+                                System.err.println("No item name provided.");
+                                break;
+                            }
+                            verifyItem(vault, verifyItem);
+                            break;
+                            
+                        case "13":
+                            compactPacks(vault);
+                            break;
+                            
+                        case "14":
+                            migrateToShards(vault);
+                            break;
+                            
+                        case "15":
+                            calibrateKdf(vault, sc);
+                            break;
+
+                        case "16":
+                            scrub(vault, sc);
+                            break;
+
+                        case "17":
+                            syncStore(vault);
                             break;
                             
                         case "0":
+                            vault.wipeFailures().forEach(System.err::println);
+                            int wiping = vault.pendingWipes();
+                            if (wiping > 0) {
+                                System.out.println(wiping + " deleted files are not yet overwritten; that carries on "
+                                        + "from where it stopped the next time the vault is opened.");
+                            }
                             System.out.println("Goodbye! Your files remain securely encrypted.");
                             return;
                             
                         default:
-                            System.err.println("Invalid option. Please choose 0-5.");
+                            System.err.println("Invalid option. Please choose 0-17.");
                     }
                 }
             } finally {
                 sc.close();
+                vault.close();
             }
         } catch (Exception e) {
             System.err.println("Fatal error: " + e.getMessage());
@@ -229,202 +294,630 @@ public class SecureVault {
         }
     }
 
+
     // ===== Core actions =====
 
-    private static void addFileToVault(Path vaultDir, SecretKeySpec key, Path src, Scanner sc) 
+    private static void addFileToVault(VaultEngine vault, Path src, boolean dedup, Scanner sc) 
             throws IOException, GeneralSecurityException {
         String baseName = src.getFileName().toString();
-        String timestamp = String.valueOf(System.currentTimeMillis());
-        String vaultName = sanitizeName(baseName + "_" + timestamp) + VAULT_EXT;
-        Path dest = vaultDir.resolve(vaultName);
-
         long fileSize = Files.size(src);
         System.out.println("File to encrypt: " + baseName + " (" + formatFileSize(fileSize) + ")");
-        
-        byte[] iv = new byte[GCM_IV_BYTES];
-        RNG.nextBytes(iv);
-
-        try (InputStream in = Files.newInputStream(src);
-             OutputStream rawOut = Files.newOutputStream(dest, StandardOpenOption.CREATE_NEW);
-             BufferedOutputStream bout = new BufferedOutputStream(rawOut)) {
-
-            // Write header: MAGIC(4) | VERSION(1) | IV(12) | nameLen(2) | name | size(8)
-            bout.write(MAGIC);
-            bout.write(VERSION);
-            bout.write(iv);
-            byte[] nameBytes = baseName.getBytes(StandardCharsets.UTF_8);
-            if (nameBytes.length > 65535) throw new IOException("Filename too long");
-            bout.write(ByteBuffer.allocate(2).putShort((short) nameBytes.length).array());
-            bout.write(nameBytes);
-            long origSize = Files.size(src);
-            bout.write(ByteBuffer.allocate(8).putLong(origSize).array());
-
-            // Encrypt stream (AES/GCM/NoPadding)
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
-
-            try (CipherOutputStream cout = new CipherOutputStream(bout, cipher)) {
-                copy(in, cout);
-            }
-        }
 
-        System.out.println("Successfully encrypted and added to vault: " + baseName + " -> " + dest.getFileName());
+        int level = dedup ? 0 : promptCompressionLevel(sc);
+        if (level < 0) return;
+
+        String vaultName = vault.add(src, dedup, level);
+
+        System.out.println("Successfully encrypted and added to vault: " + baseName + " -> " + vaultName);
+        VaultIndex.Entry added = vault.entry(vaultName);
+        if (added != null && added.compressed) {
+            System.out.printf(Locale.ROOT, "Compressed %s to %s (%.2f:1)%n", formatFileSize(added.originalSize),
+                    formatFileSize(added.storedSize), ratio(added.originalSize, added.storedSize));
+        } else if (level > 0 && Compression.levelFor(fileSize, level) == 0) {
+            System.out.println("Stored without compression: files over " + formatFileSize(Compression.MAX_INPUT_BYTES)
+                    + " keep fast byte-range reads and parallel encryption.");
+        } else if (level > 0) {
+            System.out.println("Content looks incompressible; stored without compression.");
+        }
         
         // Ask if user wants to securely delete the original
         System.out.print("Do you want to securely delete the original file? (yes/no): ");
         String deleteOrig = sc.nextLine().trim().toLowerCase();
         if (deleteOrig.equals("yes") || deleteOrig.equals("y")) {
-            secureDeleteFile(src);
+            vault.secureDeleteFile(src);
             System.out.println("Original file securely deleted.");
         }
     }
 
-    private static void listVault(Path vaultDir) throws IOException {
-        System.out.println("\n=== Vault Contents ===");
-        try (DirectoryStream<Path> ds = Files.newDirectoryStream(vaultDir, "*" + VAULT_EXT)) {
-            int count = 0;
-            for (Path p : ds) {
-                try (InputStream in = Files.newInputStream(p)) {
-                    VaultHeader hdr = readHeader(in);
-                    String ts = TS_FMT.format(Instant.ofEpochMilli(Files.getLastModifiedTime(p).toMillis()));
-                    System.out.printf(Locale.ROOT, "%-32s  |  %-25s  |  %10s  |  %s%n",
-                            p.getFileName().toString(), hdr.originalName, 
-                            formatFileSize(hdr.originalSize), ts);
-                    count++;
-                } catch (Exception e) {
-                    System.out.println(p.getFileName() + "  |  <invalid/corrupt>");
+    /**
+     * Imports a whole directory tree (or a list file with one path per line) on a bounded pool of
+     * workers. The queue in front of the pool is small, so walking a huge tree never holds more
+     * than a few pending paths in memory; when it is full the walking thread encrypts too.
+     */
+    private static void bulkImport(VaultEngine vault, Scanner sc) throws IOException, InterruptedException {
+        System.out.print("Directory to import, or @file with one path per line: ");
+        String source = sc.nextLine().trim();
+        if (source.isEmpty()) {
+            System.err.println("No source provided.");
+            return;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        int defaultWorkers = Math.min(cores, VaultEngine.MAX_DEFAULT_WORKERS);
+        System.out.print("Worker threads (Enter for " + defaultWorkers + "; use fewer for spinning disks): ");
+        String w = sc.nextLine().trim();
+        int workers;
+        try {
+            workers = w.isEmpty() ? defaultWorkers : Math.max(1, Integer.parseInt(w));
+        } catch (NumberFormatException e) {
+            System.err.println("Worker count must be a whole number.");
+            return;
+        }
+        System.out.print("Deduplicate through the chunk store? (yes/no): ");
+        String d = sc.nextLine().trim().toLowerCase();
+        boolean dedup = d.equals("yes") || d.equals("y");
+        int level = dedup ? 0 : promptCompressionLevel(sc);
+        if (level < 0) return;
+
+        Stream<Path> sources;
+        try {
+            if (source.startsWith("@")) {
+                sources = Files.lines(Paths.get(source.substring(1)), StandardCharsets.UTF_8)
+                        .map(String::trim).filter(l -> !l.isEmpty()).map(l -> Paths.get(l).toAbsolutePath());
+            } else {
+                Path dir = Paths.get(source).toAbsolutePath();
+                if (!Files.isDirectory(dir)) {
+                    System.err.println("Not a directory: " + dir);
+                    return;
                 }
+                sources = Files.walk(dir);
             }
-            if (count == 0) {
-                System.out.println("(vault is empty)");
-            } else {
-                System.out.println("Total items: " + count);
+        } catch (InvalidPathException | NoSuchFileException e) {
+            System.err.println("Invalid source: " + e.getMessage());
+            return;
+        }
+
+        AtomicLong done = new AtomicLong();
+        AtomicLong bytes = new AtomicLong();
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
+        Path vaultAbs = vault.directory().toAbsolutePath();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workers * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        long start = System.nanoTime();
+        try (Stream<Path> s = sources) {
+            s.filter(p -> !p.startsWith(vaultAbs) && Files.isRegularFile(p)).forEach(p -> pool.execute(() -> {
+                try {
+                    long size = Files.size(p);
+                    vault.add(p, dedup, level);
+                    bytes.addAndGet(size);
+                    long n = done.incrementAndGet();
+                    if (n % 1000 == 0) System.out.println("  ... " + n + " files imported");
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                    failures.add(p + ": " + e.getMessage());
+                }
+            }));
+        } catch (UncheckedIOException e) {
+            System.err.println("Stopped walking the source: " + e.getCause().getMessage());
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        double secs = Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+
+        System.out.printf(Locale.ROOT, "Imported %d files (%s) in %.1fs with %d workers: %.1f MB/s, %.0f files/s%n",
+                done.get(), formatFileSize(bytes.get()), secs, workers,
+                bytes.get() / (1024.0 * 1024) / secs, done.get() / secs);
+        if (!failures.isEmpty()) {
+            System.err.println(failures.size() + " file(s) failed:");
+            failures.stream().limit(20).forEach(f -> System.err.println("  " + f));
+            if (failures.size() > 20) System.err.println("  ...");
+        }
+    }
+
+    /** Asks for a Deflate level; returns 0 for none, or -1 (after saying why) on bad input. */
+    private static int promptCompressionLevel(Scanner sc) {
+        System.out.print("Compression level 0-9 (Enter = " + Compression.DEFAULT_LEVEL
+                + ", 0 = off; only files up to " + formatFileSize(Compression.MAX_INPUT_BYTES)
+                + " are compressed, and they lose fast byte-range reads): ");
+        String s = sc.nextLine().trim();
+        try {
+            int level = s.isEmpty() ? Compression.DEFAULT_LEVEL : Integer.parseInt(s);
+            if (level >= 0 && level <= 9) return level;
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        System.err.println("Compression level must be a number from 0 to 9.");
+        return -1;
+    }
+
+    private static void listVault(VaultEngine vault) {
+        System.out.println("\n=== Vault Contents ===");
+        List<VaultIndex.Entry> entries = vault.list();
+        for (VaultIndex.Entry e : entries) {
+            String ts = TS_FMT.format(Instant.ofEpochMilli(e.addedMillis));
+            String note = e.compressed ? String.format(Locale.ROOT, "  |  deflate %.2f:1", ratio(e.originalSize, e.storedSize))
+                    : e.deduplicated ? "  |  dedup" : "";
+            System.out.printf(Locale.ROOT, "%-32s  |  %-25s  |  %10s  |  %s%s%n",
+                    e.itemName, e.originalName, formatFileSize(e.originalSize), ts, note);
+        }
+        if (entries.isEmpty()) {
+            System.out.println("(vault is empty)");
+        } else {
+            System.out.println("Total items: " + entries.size());
+        }
+        long dedupItems = 0, logical = 0;
+        for (VaultIndex.Entry e : entries) {
+            if (e.deduplicated) {
+                dedupItems++;
+                logical += e.originalSize;
             }
         }
+        if (dedupItems > 0 || vault.chunkCount() > 0) {
+            long stored = vault.chunkBytes();
+            System.out.printf(Locale.ROOT, "Deduplicated: %d items, %s logical in %d chunks (%s stored), ratio %.2f:1%n",
+                    dedupItems, formatFileSize(logical), vault.chunkCount(), formatFileSize(stored),
+                    ratio(logical, stored));
+        }
+        long compressedItems = 0, compressedLogical = 0, compressedStored = 0;
+        for (VaultIndex.Entry e : entries) {
+            if (e.compressed) {
+                compressedItems++;
+                compressedLogical += e.originalSize;
+                compressedStored += e.storedSize;
+            }
+        }
+        if (compressedItems > 0) {
+            System.out.printf(Locale.ROOT, "Compressed: %d items, %s logical in %s stored, ratio %.2f:1%n",
+                    compressedItems, formatFileSize(compressedLogical), formatFileSize(compressedStored),
+                    ratio(compressedLogical, compressedStored));
+        }
+    }
+
+    private static double ratio(long logical, long stored) {
+        return stored == 0 ? 0.0 : (double) logical / stored;
     }
 
-    private static void extractFromVault(Path vaultDir, SecretKeySpec key, String vaultItemName, Path outDir)
+    private static void rebuildIndex(VaultEngine vault) throws IOException, GeneralSecurityException {
+        System.out.println("Indexing vault items...");
+        int[] r = vault.rebuildIndex();
+        System.out.println("Indexed " + r[0] + " items." + (r[1] > 0 ? " Skipped " + r[1] + " invalid/corrupt file(s)." : ""));
+    }
+
+    private static void extractFromVault(VaultEngine vault, String vaultItemName, Path outDir)
             throws IOException, GeneralSecurityException {
-        Path src = vaultDir.resolve(vaultItemName);
-        if (!Files.exists(src)) {
+        try {
+            Path out = vault.extract(vaultItemName, outDir);
+            System.out.println("Successfully extracted to: " + out.toAbsolutePath());
+            System.out.println("Original file size: " + formatFileSize(Files.size(out)));
+        } catch (NoSuchFileException e) {
             System.err.println("No such vault item: " + vaultItemName);
+        } catch (GeneralSecurityException e) {
+            System.err.println("Decryption failed. File may be corrupted or password incorrect.");
+            throw e;
+        }
+    }
+
+    /**
+     * Restores a set of items (names, a glob over original names, or everything) concurrently into
+     * one directory. A corrupt or unreadable item is recorded and skipped; the rest keep going.
+     */
+    private static void bulkExtract(VaultEngine vault, Scanner sc) throws IOException, InterruptedException {
+        System.out.print("Items to restore: 'all', glob:<pattern> over original names, or item names separated by commas: ");
+        List<VaultIndex.Entry> selected = selectItems(vault, sc.nextLine().trim());
+        if (selected.isEmpty()) {
+            System.err.println("Nothing selected.");
             return;
         }
-        
-        try (InputStream rawIn = Files.newInputStream(src);
-             BufferedInputStream bin = new BufferedInputStream(rawIn)) {
 
-            VaultHeader hdr = readHeader(bin);
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, hdr.iv));
+        System.out.print("Target directory: ");
+        String target = sc.nextLine().trim();
+        if (target.isEmpty()) {
+            System.err.println("No target directory provided.");
+            return;
+        }
+        Path outDir = Paths.get(target).toAbsolutePath();
+        Files.createDirectories(outDir);
+        int workers = Math.min(Runtime.getRuntime().availableProcessors(), VaultEngine.MAX_DEFAULT_WORKERS);
+
+        AtomicLong bytes = new AtomicLong();
+        Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        long start = System.nanoTime();
+        for (VaultIndex.Entry e : selected) {
+            pool.execute(() -> {
+                long t0 = System.nanoTime();
+                try {
+                    vault.extract(e.itemName, outDir);
+                    bytes.addAndGet(e.originalSize);
+                    latencies.add(System.nanoTime() - t0);
+                } catch (GeneralSecurityException ex) {
+                    failures.add(e.itemName + ": authentication failed (" + ex.getClass().getSimpleName() + ")");
+                } catch (IOException | RuntimeException ex) {
+                    failures.add(e.itemName + ": " + ex.getMessage());
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double secs = Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+
+        long[] lat = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf(Locale.ROOT, "Restored %d of %d items (%s) in %.1fs with %d workers: %.1f MB/s%n",
+                lat.length, selected.size(), formatFileSize(bytes.get()), secs, workers,
+                bytes.get() / (1024.0 * 1024) / secs);
+        if (lat.length > 0) {
+            System.out.printf(Locale.ROOT, "Per-item latency: p50 %.1f ms, p95 %.1f ms, max %.1f ms%n",
+                    percentile(lat, 50) / 1e6, percentile(lat, 95) / 1e6, lat[lat.length - 1] / 1e6);
+        }
+        if (!failures.isEmpty()) {
+            System.err.println(failures.size() + " item(s) failed:");
+            failures.forEach(f -> System.err.println("  " + f));
+        }
+    }
 
-            Path out = outDir.resolve(hdr.originalName);
-            // ensure unique filename if exists
-            out = uniquePath(out);
+    /** Items named by {@code sel}: "all", "glob:" over original names, or item names separated by commas. */
+    private static List<VaultIndex.Entry> selectItems(VaultEngine vault, String sel) {
+        List<VaultIndex.Entry> selected = new ArrayList<>();
+        if (sel.equalsIgnoreCase("all")) {
+            selected.addAll(vault.list());
+        } else if (sel.startsWith("glob:")) {
+            PathMatcher m;
+            try {
+                m = FileSystems.getDefault().getPathMatcher(sel);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid glob: " + e.getMessage());
+                return selected;
+            }
+            for (VaultIndex.Entry e : vault.list()) {
+                try {
+                    if (m.matches(Paths.get(e.originalName))) selected.add(e);
+                } catch (InvalidPathException ignored) {
+                    // original name not representable as a path here; it cannot match a glob
+                }
+            }
+        } else {
+            for (String name : sel.split(",")) {
+                name = name.trim();
+                if (name.isEmpty()) continue;
+                VaultIndex.Entry e = vault.entry(name);
+                if (e == null) {
+                    System.err.println("No such vault item: " + name);
+                } else {
+                    selected.add(e);
+                }
+            }
+        }
+        return selected;
+    }
 
-            try (CipherInputStream cin = new CipherInputStream(bin, cipher);
-                 OutputStream outFile = Files.newOutputStream(out, StandardOpenOption.CREATE_NEW)) {
-                copy(cin, outFile);
+    /**
+     * Verifies a set of items in parallel without writing any plaintext, or the next 1/N of the
+     * vault for nightly runs, and writes a report of the corrupt ones.
+     */
+    private static void scrub(VaultEngine vault, Scanner sc) throws IOException, InterruptedException {
+        System.out.print("Items to verify: 'next' for the next slice of an incremental scrub, 'all', "
+                + "glob:<pattern> over original names, or item names separated by commas: ");
+        String sel = sc.nextLine().trim();
+        Scrubber scrubber = new Scrubber(vault);
+        Scrubber.Result r;
+        if (sel.equalsIgnoreCase("next")) {
+            int saved = Scrubber.savedSlices(vault.directory());
+            System.out.print("Split the vault into how many slices, one per run? (Enter for " + saved + "): ");
+            String in = sc.nextLine().trim();
+            int slices;
+            try {
+                slices = in.isEmpty() ? saved : Integer.parseInt(in);
+            } catch (NumberFormatException e) {
+                slices = 0;
             }
-            System.out.println("Successfully extracted to: " + out.toAbsolutePath());
-            System.out.println("Original file size: " + formatFileSize(hdr.originalSize));
+            if (slices < 1 || slices > 255) {
+                System.err.println("Slices must be 1-255.");
+                return;
+            }
+            r = scrubber.runNextSlice(slices);
+        } else {
+            List<VaultIndex.Entry> selected = selectItems(vault, sel);
+            if (selected.isEmpty()) {
+                System.err.println("Nothing selected.");
+                return;
+            }
+            r = scrubber.run(selected, sel.equalsIgnoreCase("all") ? "all items" : selected.size() + " selected items");
+        }
+        (r.failures.isEmpty() ? System.out : System.err).println(r.summary());
+    }
+
+    private static long percentile(long[] sorted, int pct) {
+        int i = (int) Math.ceil(pct / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+    }
+
+    private static void extractRangeFromVault(VaultEngine vault, String vaultItemName,
+                                              long offset, long length, Path outFile)
+            throws IOException, GeneralSecurityException {
+        if (Files.exists(outFile)) {
+            System.err.println("Output file already exists: " + outFile);
+            return;
+        }
+        VaultIndex.Entry entry = vault.entry(vaultItemName);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(outFile, StandardOpenOption.CREATE_NEW))) {
+            vault.extractRange(vaultItemName, offset, length, out);
+        } catch (NoSuchFileException | IllegalArgumentException e) {
+            Files.deleteIfExists(outFile);
+            System.err.println(e instanceof NoSuchFileException ? "No such vault item: " + vaultItemName : e.getMessage());
+            return;
         } catch (GeneralSecurityException e) {
+            Files.deleteIfExists(outFile);
             System.err.println("Decryption failed. File may be corrupted or password incorrect.");
             throw e;
         }
+        String name = entry != null ? entry.originalName : vaultItemName;
+        System.out.println("Wrote " + formatFileSize(length) + " of " + name + " to: " + outFile);
     }
 
-    private static void deleteFromVault(Path vaultDir, String vaultItemName) throws IOException {
-        Path target = vaultDir.resolve(vaultItemName);
-        if (!Files.exists(target)) {
+    /**
+     * Deletes an item. Items with their own key are crypto-shredded: the key record is destroyed
+     * and the ciphertext is simply unlinked. Older items (and paranoid mode) are overwritten first.
+     */
+    private static void deleteFromVault(VaultEngine vault, String vaultItemName, boolean paranoid)
+            throws IOException, GeneralSecurityException {
+        VaultIndex.Entry entry = vault.entry(vaultItemName);
+        boolean packed = vault.isPacked(vaultItemName);   // overwritten in place, not queued
+        boolean shredded;
+        try {
+            shredded = vault.delete(vaultItemName, paranoid);
+        } catch (NoSuchFileException e) {
             System.err.println("No such vault item: " + vaultItemName);
             return;
         }
-        
-        secureDeleteFile(target);
-        System.out.println("Securely deleted: " + vaultItemName);
+        System.out.println((shredded ? "Crypto-shredded" : "Deleted") + ": " + vaultItemName);
+        if (!packed && (!shredded || paranoid)) System.out.println("Its ciphertext is being overwritten in the background.");
+        if (entry != null && entry.deduplicated) {
+            System.out.println("Its chunks stay in the chunk store until you prune (option 11).");
+        }
     }
 
-    private static void changeMasterPassword(Path vaultDir, Properties meta, SecretKeySpec oldKey) throws Exception {
-        System.out.println("\n=== Change Master Password ===");
-        char[] current = promptPassword("Enter current password");
-        byte[] salt = Base64.getDecoder().decode(meta.getProperty("salt"));
-        int iters = Integer.parseInt(meta.getProperty("iters"));
-        byte[] expectedHash = Base64.getDecoder().decode(meta.getProperty("hash"));
-        byte[] check = pbkdf2(current, salt, iters, KEY_BYTES);
-        clearPassword(current);
-        
-        if (!MessageDigest.isEqual(expectedHash, check)) {
-            System.err.println("Wrong current password.");
+    private static void pruneChunks(VaultEngine vault) throws IOException {
+        long[] r;
+        try {
+            r = vault.pruneChunks();
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println(e.getMessage());
             return;
         }
-        
+        System.out.println("Scanned " + r[0] + " manifests; removed " + r[1] + " chunks, freed "
+                + formatFileSize(r[2]) + ". " + vault.chunkCount() + " chunks (" + formatFileSize(vault.chunkBytes())
+                + ") remain.");
+    }
+
+    private static void compactPacks(VaultEngine vault) {
+        long[] r;
+        try {
+            r = vault.compactPacks();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        long[] s = vault.packStats();
+        System.out.println("Removed " + r[0] + " pack files, freed " + formatFileSize(r[1]) + ". " + s[1]
+                + " small items in " + s[0] + " pack files (" + formatFileSize(s[2]) + ") remain.");
+    }
+
+    private static void migrateToShards(VaultEngine vault) {
+        System.out.println("Moving items into sharded directories...");
+        long t0 = System.nanoTime();
+        int[] r;
+        try {
+            r = vault.migrateToShards();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        System.out.printf(Locale.ROOT, "Moved %d items in %.1f s.%n", r[0], (System.nanoTime() - t0) / 1e9);
+        if (r[1] > 0) {
+            System.err.println(r[1] + " items could not be moved and stay where they are; run this again to retry.");
+        }
+    }
+
+    private static void syncStore(VaultEngine vault) {
+        if (vault.store() == null) {
+            System.err.println("No object store is configured; set store= in " + VaultEngine.META_FILE_NAME
+                    + " (file:<directory> or s3).");
+            return;
+        }
+        System.out.println("Syncing items with " + vault.store() + "...");
+        long t0 = System.nanoTime();
+        int[] r;
+        try {
+            r = vault.syncStore();
+        } catch (IOException e) {
+            System.err.println("Sync failed: " + e.getMessage());
+            return;
+        }
+        System.out.printf(Locale.ROOT, "Uploaded %d items%s in %.1f s.%n", r[0],
+                r[1] > 0 ? ", dropped " + r[1] + " local copies" : "", (System.nanoTime() - t0) / 1e9);
+        if (r[2] > 0) {
+            System.err.println(r[2] + " items could not be synced and stay local; run this again to retry.");
+        }
+    }
+
+    private static void calibrateKdf(VaultEngine vault, Scanner sc) {
+        System.out.println("Current: " + vault.kdf());
+        System.out.print("Target unlock time in milliseconds (Enter = 1000): ");
+        String ms = sc.nextLine().trim();
+        long target;
+        try {
+            target = ms.isEmpty() ? 1000 : Long.parseLong(ms);
+        } catch (NumberFormatException e) {
+            target = -1;
+        }
+        if (target < 50 || target > 60_000) {
+            System.err.println("Target must be a number of milliseconds from 50 to 60000.");
+            return;
+        }
+        System.out.print("Algorithm: argon2id or pbkdf2 (Enter = argon2id): ");
+        String alg = sc.nextLine().trim().toLowerCase(Locale.ROOT);
+        Kdf.Algorithm algorithm;
+        if (alg.isEmpty() || alg.equals("argon2id")) {
+            algorithm = Kdf.Algorithm.ARGON2ID;
+        } else if (alg.equals("pbkdf2")) {
+            algorithm = Kdf.Algorithm.PBKDF2_SHA256;
+        } else {
+            System.err.println("Unknown algorithm: " + alg);
+            return;
+        }
+        System.out.println("Measuring this machine...");
+        Kdf k;
+        try {
+            k = vault.calibrateKdf(algorithm, target);
+        } catch (IOException e) {
+            System.err.println("Could not save the setting: " + e.getMessage());
+            return;
+        }
+        System.out.println("Chosen: " + k + " (" + k.measureMillis() + " ms here).");
+        System.out.println("The vault switches to it the next time it is unlocked.");
+    }
+
+    private static void verifyItem(VaultEngine vault, String vaultItemName) {
+        long t0 = System.nanoTime();
+        try {
+            long n = vault.verify(vaultItemName);
+            System.out.printf(Locale.ROOT, "OK: %s (%s authenticated in %.1f ms)%n", vaultItemName, formatFileSize(n),
+                    (System.nanoTime() - t0) / 1e6);
+        } catch (NoSuchFileException e) {
+            System.err.println("No such vault item: " + vaultItemName);
+        } catch (GeneralSecurityException e) {
+            System.err.println("FAILED: " + vaultItemName + ": authentication failed (" + e.getMessage() + ")");
+        } catch (IOException e) {
+            System.err.println("FAILED: " + vaultItemName + ": " + e.getMessage());
+        }
+    }
+
+    private static void changeMasterPassword(VaultEngine vault) throws Exception {
+        System.out.println("\n=== Change Master Password ===");
+        char[] current = promptPassword("Enter current password");
         char[] pw1 = promptPassword("New password");
         char[] pw2 = promptPassword("Confirm new password");
-        if (!Arrays.equals(pw1, pw2)) {
-            System.err.println("Passwords do not match.");
+        try {
+            if (!Arrays.equals(pw1, pw2)) {
+                System.err.println("Passwords do not match.");
+                return;
+            }
+            vault.changePassword(current, pw1);
+        } catch (VaultEngine.UnlockException e) {
+            System.err.println(e.getMessage());
+            return;
+        } finally {
+            clearPassword(current);
             clearPassword(pw1);
             clearPassword(pw2);
-            return;
         }
-        
-        byte[] newSalt = new byte[SALT_BYTES];
-        RNG.nextBytes(newSalt);
-        byte[] newHash = pbkdf2(pw1, newSalt, PBKDF2_ITERATIONS, KEY_BYTES);
-        clearPassword(pw1);
-        clearPassword(pw2);
-        
-        saveMeta(meta, vaultDir, newSalt, newHash, PBKDF2_ITERATIONS, 0, 0L);
         System.out.println("Master password changed successfully. Existing vault items remain accessible.");
     }
 
-    // ===== Header handling =====
-    private static class VaultHeader {
-        byte[] iv;
-        String originalName;
-        long originalSize;
-    }
-
-    private static VaultHeader readHeader(InputStream in) throws IOException {
-        byte[] magic = in.readNBytes(4);
-        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Bad magic - not a valid vault file");
-        int ver = in.read();
-        if (ver != VERSION) throw new IOException("Unsupported version: " + ver);
-        byte[] iv = in.readNBytes(GCM_IV_BYTES);
-        byte[] nameLenBytes = in.readNBytes(2);
-        int nameLen = ByteBuffer.wrap(nameLenBytes).getShort() & 0xFFFF;
-        byte[] nameBytes = in.readNBytes(nameLen);
-        byte[] sizeBytes = in.readNBytes(8);
-        long size = ByteBuffer.wrap(sizeBytes).getLong();
-        VaultHeader hdr = new VaultHeader();
-        hdr.iv = iv;
-        hdr.originalName = new String(nameBytes, StandardCharsets.UTF_8);
-        hdr.originalSize = size;
-        return hdr;
-    }
+    // ===== Key agent =====
 
-    // ===== Meta (properties) handling =====
-    private static Properties loadMeta(Path vaultDir) throws IOException {
-        Properties p = new Properties();
-        Path metaPath = vaultDir.resolve(META_FILE_NAME);
-        if (Files.exists(metaPath)) {
-            try (InputStream in = Files.newInputStream(metaPath)) { 
-                p.load(in); 
+    /** Holds the unlocked vault for other invocations until it is idle or stopped. */
+    private static void runAgent(VaultEngine vault, String[] args) throws IOException, InterruptedException {
+        long minutes = AGENT_IDLE_MINUTES;
+        if (args.length > 1) {
+            try {
+                minutes = Math.max(1, Long.parseLong(args[1]));
+            } catch (NumberFormatException e) {
+                System.err.println("Idle timeout must be a whole number of minutes.");
+                vault.close();
+                return;
             }
         }
-        return p;
+        System.out.println("Agent listening on " + VaultAgent.socketPath(vault.directory())
+                + "; it exits after " + minutes + " idle minute(s) or on 'java SecureVault stop'.");
+        try {
+            VaultAgent.serve(vault, minutes * 60_000L);
+        } finally {
+            vault.wipeFailures().forEach(System.err::println);
+            vault.close();
+        }
+        System.out.println("Agent stopped; keys dropped.");
     }
 
-    private static void saveMeta(Properties meta, Path vaultDir, byte[] salt, byte[] hash, int iters, int failed, long lockUntil) throws IOException {
-        meta.setProperty("salt", Base64.getEncoder().encodeToString(salt));
-        meta.setProperty("hash", Base64.getEncoder().encodeToString(hash));
-        meta.setProperty("iters", String.valueOf(iters));
-        meta.setProperty("failed", String.valueOf(failed));
-        meta.setProperty("lockUntil", String.valueOf(lockUntil));
-        Path metaPath = vaultDir.resolve(META_FILE_NAME);
-        try (OutputStream out = Files.newOutputStream(metaPath)) {
-            meta.store(out, "SecureVault metadata – DO NOT SHARE");
+    /** Runs one command against a running agent; returns the process exit code. */
+    private static int agentCommand(String[] args) {
+        Path sock = VaultAgent.socketPath(Paths.get(System.getProperty("user.home")).resolve(VAULT_DIR_NAME));
+        String usage = "Usage: java SecureVault [agent [idleMinutes] | list | add <file> [level|dedup] "
+                + "| extract <item> [outDir] | verify <item> | scrub [slices|all] | stop]";
+        if (!Arrays.asList("list", "add", "extract", "verify", "scrub", "stop").contains(args[0])) {
+            System.err.println(usage);
+            return 2;
         }
+        if (!VaultAgent.isRunning(sock)) {
+            System.err.println("No agent is running; start one with: java SecureVault agent");
+            return 1;
+        }
+        try {
+            switch (args[0]) {
+                case "list": {
+                    int[] total = new int[1];
+                    VaultAgent.call(sock, VaultAgent.OP_LIST, new byte[0], payload -> {
+                        for (VaultIndex.Entry e : VaultAgent.decodeEntries(payload)) {
+                            System.out.printf(Locale.ROOT, "%-32s  |  %-25s  |  %10s  |  %s%n", e.itemName,
+                                    e.originalName, formatFileSize(e.originalSize),
+                                    TS_FMT.format(Instant.ofEpochMilli(e.addedMillis)));
+                            total[0]++;
+                        }
+                    });
+                    System.out.println("Total items: " + total[0]);
+                    return 0;
+                }
+                case "add": {
+                    if (args.length < 2) break;
+                    boolean dedup = args.length > 2 && args[2].equals("dedup");
+                    int level = args.length > 2 && !dedup ? Integer.parseInt(args[2]) : 0;
+                    if (level < 0 || level > 9) break;
+                    String src = Paths.get(args[1]).toAbsolutePath().toString();
+                    System.out.println(VaultAgent.readUtf(VaultAgent.call(sock, VaultAgent.OP_ADD,
+                            VaultAgent.body(src, dedup, level), null)));
+                    return 0;
+                }
+                case "extract": {
+                    if (args.length < 2) break;
+                    String outDir = Paths.get(args.length > 2 ? args[2] : ".").toAbsolutePath().toString();
+                    System.out.println(VaultAgent.readUtf(VaultAgent.call(sock, VaultAgent.OP_EXTRACT,
+                            VaultAgent.body(args[1], outDir), null)));
+                    return 0;
+                }
+                case "verify": {
+                    if (args.length < 2) break;
+                    byte[] r = VaultAgent.call(sock, VaultAgent.OP_VERIFY, VaultAgent.body(args[1]), null);
+                    System.out.println("OK: " + args[1] + " (" + formatFileSize(ByteBuffer.wrap(r).getLong()) + ")");
+                    return 0;
+                }
+                case "scrub": {
+                    // "scrub" alone continues the incremental scrub; exit status 3 flags corrupt items
+                    String arg = args.length > 1 ? args[1] : "";
+                    int slices = arg.equals("all") ? 0 : arg.isEmpty()
+                            ? Scrubber.savedSlices(Paths.get(System.getProperty("user.home")).resolve(VAULT_DIR_NAME))
+                            : Integer.parseInt(arg);
+                    if (slices < 0 || slices > 255 || arg.equals("0")) break;
+                    DataInputStream r = new DataInputStream(new ByteArrayInputStream(
+                            VaultAgent.call(sock, VaultAgent.OP_SCRUB, VaultAgent.body(slices), null)));
+                    int corrupt = r.readInt();
+                    (corrupt == 0 ? System.out : System.err).println(r.readUTF());
+                    return corrupt == 0 ? 0 : 3;
+                }
+                case "stop":
+                    VaultAgent.call(sock, VaultAgent.OP_STOP, new byte[0], null);
+                    System.out.println("Agent stopped.");
+                    return 0;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException | InvalidPathException e) {
+            // fall through to usage
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+        System.err.println(usage);
+        return 2;
     }
 
     // ===== Helpers =====
@@ -453,79 +946,16 @@ public class SecureVault {
         }
     }
 
-    private static byte[] pbkdf2(char[] password, byte[] salt, int iters, int keyLen) {
-        try {
-            PBEKeySpec spec = new PBEKeySpec(password, salt, iters, keyLen * 8);
-            SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            return skf.generateSecret(spec).getEncoded();
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static void copy(InputStream in, OutputStream out) throws IOException {
-        byte[] buf = new byte[8192];
-        int n;
-        while ((n = in.read(buf)) != -1) {
-            out.write(buf, 0, n);
-        }
-    }
-
-    private static String sanitizeName(String s) {
-        return s.replaceAll("[^A-Za-z0-9._-]", "_");
-    }
-
-    private static Path uniquePath(Path p) throws IOException {
-        if (!Files.exists(p)) return p;
-        String name = p.getFileName().toString();
-        String base; String ext;
-        int dot = name.lastIndexOf('.');
-        if (dot >= 0) { 
-            base = name.substring(0, dot); 
-            ext = name.substring(dot); 
-        } else { 
-            base = name; 
-            ext = ""; 
-        }
-        int i = 1;
-        Path parent = p.getParent();
-        while (true) {
-            Path cand = parent.resolve(base + "(" + i + ")" + ext);
-            if (!Files.exists(cand)) return cand;
-            i++;
-        }
-    }
-    
     private static void clearPassword(char[] password) {
         if (password != null) {
             Arrays.fill(password, '\0');
         }
     }
     
-    private static void secureDeleteFile(Path file) throws IOException {
-        long size = Files.size(file);
-        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
-            // Overwrite with random data multiple times
-            byte[] buf = new byte[8192];
-            for (int pass = 0; pass < 3; pass++) {
-                raf.seek(0);
-                long remaining = size;
-                while (remaining > 0) {
-                    RNG.nextBytes(buf);
-                    int n = (int) Math.min(buf.length, remaining);
-                    raf.write(buf, 0, n);
-                    remaining -= n;
-                }
-                raf.getFD().sync(); // force write to disk
-            }
-        }
-        Files.delete(file);
-    }
-    
     private static String formatFileSize(long bytes) {
         if (bytes < 1024) return bytes + " B";
         if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
         if (bytes < 1024 * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
         return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,226 @@
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Segmented AEAD payload for v2 vault items (STREAM construction).
+ *
+ * The plaintext is cut into fixed-size segments and each segment is sealed on its
+ * own with the item's {@link CipherSuite} (AES/GCM unless the header names another),
+ * so encryption and decryption only ever hold one segment in memory. The nonce of
+ * segment {@code i} is the header IV with the big-endian counter {@code i} XORed
+ * into bytes 7..10 and a final-segment flag XORed into byte 11; a truncated or
+ * reordered payload therefore fails authentication.
+ * Every segment carries the encoded header as AAD.
+ *
+ * Because all segments but the last are exactly {@code segmentSize + TAG_BYTES} bytes
+ * of ciphertext, the header doubles as the segment index: the offset of any segment
+ * is computed from its number, which is what {@link #decryptRange} uses to seek.
+ *
+ * A header may record the payload size as {@link VaultHeader#UNKNOWN_SIZE} when it is
+ * not known up front (e.g. compressed output). The writer and reader then look one
+ * segment ahead to find the final one; the final-segment flag still authenticates the
+ * end of the stream, but such items cannot be read by range.
+ */
+final class SegmentCipher {
+    static final int TAG_BYTES            = CipherSuite.TAG_BYTES;  // AEAD tag per segment
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;  // plaintext bytes per segment
+    static final long MAX_SEGMENTS        = 1L << 32;   // 4-byte counter in the nonce
+
+    /** Where {@link #decryptRange} reads ciphertext: fills {@code buf} from item offset {@code position}. */
+    interface Source {
+        void read(ByteBuffer buf, long position) throws IOException;
+    }
+
+    private SegmentCipher() {}
+
+    /** Number of segments for a payload; an empty payload still has one (final) segment. */
+    static long segmentCount(long size, int segmentSize) {
+        return size == 0 ? 1 : (size + segmentSize - 1) / segmentSize;
+    }
+
+    /** Plaintext length of segment {@code index}. */
+    static int plainLength(long size, int segmentSize, long index) {
+        long start = index * segmentSize;
+        return (int) Math.min(segmentSize, size - start);
+    }
+
+    /** File offset of the ciphertext of segment {@code index}. */
+    static long segmentOffset(VaultHeader hdr, long index) throws IOException {
+        return hdr.length() + index * (long) (hdr.segmentSize + TAG_BYTES);
+    }
+
+    static byte[] segmentNonce(byte[] iv, long index, boolean last) {
+        byte[] nonce = iv.clone();
+        nonce[7]  ^= (byte) (index >>> 24);
+        nonce[8]  ^= (byte) (index >>> 16);
+        nonce[9]  ^= (byte) (index >>> 8);
+        nonce[10] ^= (byte) index;
+        if (last) nonce[11] ^= 1;
+        return nonce;
+    }
+
+    /**
+     * Encrypts exactly {@code hdr.originalSize} bytes from {@code in} (or all of it, for an unknown size);
+     * the header must already be on {@code out}.
+     */
+    static void encrypt(SecretKey key, VaultHeader hdr, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        if (hdr.originalSize == VaultHeader.UNKNOWN_SIZE) {
+            encryptStreaming(key, hdr, in, out);
+            return;
+        }
+        int segSize = hdr.segmentSize;
+        long count = segmentCount(hdr.originalSize, segSize);
+        if (count > MAX_SEGMENTS) throw new IOException("File too large for segment size " + segSize);
+        byte[] aad = hdr.encoded();
+        byte[] pt = new byte[segSize];
+        byte[] ct = new byte[segSize + TAG_BYTES];
+        CipherSuite.Session cipher = hdr.suite().session(key);
+
+        for (long i = 0; i < count; i++) {
+            boolean last = i == count - 1;
+            int len = plainLength(hdr.originalSize, segSize, i);
+            if (in.readNBytes(pt, 0, len) != len) {
+                throw new IOException("Source file shrank while encrypting");
+            }
+            int n = cipher.seal(segmentNonce(hdr.iv, i, last), aad, pt, 0, len, ct, 0);
+            out.write(ct, 0, n);
+        }
+        if (in.read() != -1) {
+            throw new IOException("Source file grew while encrypting");
+        }
+    }
+
+    private static void encryptStreaming(SecretKey key, VaultHeader hdr, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        int segSize = hdr.segmentSize;
+        byte[] aad = hdr.encoded();
+        byte[] cur = new byte[segSize];
+        byte[] next = new byte[segSize];
+        byte[] ct = new byte[segSize + TAG_BYTES];
+        CipherSuite.Session cipher = hdr.suite().session(key);
+
+        int curLen = in.readNBytes(cur, 0, segSize);
+        for (long i = 0; ; i++) {
+            if (i >= MAX_SEGMENTS) throw new IOException("Stream too long for segment size " + segSize);
+            // a short segment is always the last; a full one is last only if nothing follows it
+            int nextLen = curLen == segSize ? in.readNBytes(next, 0, segSize) : 0;
+            boolean last = nextLen == 0;
+            out.write(ct, 0, cipher.seal(segmentNonce(hdr.iv, i, last), aad, cur, 0, curLen, ct, 0));
+            if (last) return;
+            byte[] t = cur;
+            cur = next;
+            next = t;
+            curLen = nextLen;
+        }
+    }
+
+    /** Decrypts the payload following {@code hdr} on {@code in}; plaintext is only released once its segment authenticates. */
+    static void decrypt(SecretKey key, VaultHeader hdr, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        if (hdr.originalSize == VaultHeader.UNKNOWN_SIZE) {
+            decryptStreaming(key, hdr, in, out);
+            return;
+        }
+        int segSize = hdr.segmentSize;
+        long count = segmentCount(hdr.originalSize, segSize);
+        if (count > MAX_SEGMENTS) throw new IOException("Corrupt header: too many segments");
+        byte[] aad = hdr.encoded();
+        byte[] ct = new byte[segSize + TAG_BYTES];
+        byte[] pt = new byte[segSize];
+        CipherSuite.Session cipher = hdr.suite().session(key);
+
+        for (long i = 0; i < count; i++) {
+            int len = plainLength(hdr.originalSize, segSize, i) + TAG_BYTES;
+            if (in.readNBytes(ct, 0, len) != len) {
+                throw new EOFException("Truncated vault item (segment " + i + " of " + count + ")");
+            }
+            int n = openSegment(cipher, hdr, aad, i, i == count - 1, ct, len, pt);
+            out.write(pt, 0, n);
+        }
+        if (in.read() != -1) {
+            throw new IOException("Unexpected trailing data after final segment");
+        }
+    }
+
+    private static void decryptStreaming(SecretKey key, VaultHeader hdr, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        int full = hdr.segmentSize + TAG_BYTES;
+        byte[] aad = hdr.encoded();
+        byte[] cur = new byte[full];
+        byte[] next = new byte[full];
+        byte[] pt = new byte[hdr.segmentSize];
+        CipherSuite.Session cipher = hdr.suite().session(key);
+
+        int curLen = in.readNBytes(cur, 0, full);
+        for (long i = 0; ; i++) {
+            if (i >= MAX_SEGMENTS) throw new IOException("Corrupt item: too many segments");
+            if (curLen < TAG_BYTES) throw new EOFException("Truncated vault item (segment " + i + ")");
+            // if the stream was cut at a segment boundary, this segment was not sealed as final and fails here
+            int nextLen = curLen == full ? in.readNBytes(next, 0, full) : 0;
+            boolean last = nextLen == 0;
+            out.write(pt, 0, openSegment(cipher, hdr, aad, i, last, cur, curLen, pt));
+            if (last) return;
+            byte[] t = cur;
+            cur = next;
+            next = t;
+            curLen = nextLen;
+        }
+    }
+
+    /**
+     * Decrypts plaintext bytes {@code [offset, offset + length)} of the item open on {@code ch},
+     * reading and authenticating only the segments that cover the range.
+     */
+    static void decryptRange(SecretKey key, VaultHeader hdr, FileChannel ch, long offset, long length, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        decryptRange(key, hdr, (buf, position) -> readFully(ch, buf, position), offset, length, out);
+    }
+
+    /** {@link #decryptRange(SecretKey, VaultHeader, FileChannel, long, long, OutputStream)} from any {@link Source}. */
+    static void decryptRange(SecretKey key, VaultHeader hdr, Source src, long offset, long length, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        if (hdr.originalSize == VaultHeader.UNKNOWN_SIZE) {
+            throw new IllegalArgumentException("Item has no fixed segment layout; it can only be read as a whole");
+        }
+        if (offset < 0 || length < 0 || offset > hdr.originalSize || length > hdr.originalSize - offset) {
+            throw new IllegalArgumentException("Range [" + offset + ", " + offset + "+" + length
+                    + ") is outside item of " + hdr.originalSize + " bytes");
+        }
+        if (length == 0) return;
+        int segSize = hdr.segmentSize;
+        long count = segmentCount(hdr.originalSize, segSize);
+        byte[] aad = hdr.encoded();
+        byte[] ct = new byte[segSize + TAG_BYTES];
+        byte[] pt = new byte[segSize];
+        CipherSuite.Session cipher = hdr.suite().session(key);
+
+        long first = offset / segSize;
+        long lastSeg = (offset + length - 1) / segSize;
+        for (long i = first; i <= lastSeg; i++) {
+            int len = plainLength(hdr.originalSize, segSize, i) + TAG_BYTES;
+            src.read(ByteBuffer.wrap(ct, 0, len), segmentOffset(hdr, i));
+            int n = openSegment(cipher, hdr, aad, i, i == count - 1, ct, len, pt);
+            long segStart = i * segSize;
+            int from = (int) Math.max(0, offset - segStart);
+            int to = (int) Math.min(n, offset + length - segStart);
+            out.write(pt, from, to - from);
+        }
+    }
+
+    private static int openSegment(CipherSuite.Session cipher, VaultHeader hdr, byte[] aad, long index, boolean last,
+                                   byte[] ct, int len, byte[] pt) throws GeneralSecurityException {
+        return cipher.open(segmentNonce(hdr.iv, index, last), aad, ct, 0, len, pt, 0);
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position);
+            if (n < 0) throw new EOFException("Truncated vault item");
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Channel-based, multi-core variant of {@link SegmentCipher} for items with a fixed segment layout.
+ *
+ * Segments are independent AEAD messages whose nonces and file offsets follow from their
+ * number, so batches of them can be read with positional {@link FileChannel} reads and
+ * sealed or opened on separate threads. The calling thread is the writer: it takes the
+ * batches back in order and writes them to {@code out}, so the output is byte-for-byte
+ * what the stream path produces. At most {@code 2 * threads} batches are in flight, which
+ * bounds memory to a few buffers per thread whatever the file size.
+ *
+ * A batch is one pooled direct buffer's worth of segments (see {@link BufferPool}): the
+ * kernel reads into it, the cipher works buffer to buffer, and the kernel writes from it,
+ * with no {@code byte[]} staging in between. Small items, or a single thread, run the same
+ * loop inline on the caller's thread.
+ *
+ * Decryption can instead map the ciphertext ({@code mapped}): the file is mapped in windows
+ * of about {@link #MAP_WINDOW_BYTES} and each batch hands a slice of its window straight to
+ * the cipher, so there are no read calls at all. A window is unmapped as soon as the last
+ * batch in it has been opened, which keeps at most a couple of windows of address space in
+ * use however large the item is.
+ *
+ * Streaming items ({@link VaultHeader#UNKNOWN_SIZE}) have no fixed layout and always go
+ * through {@link SegmentCipher}.
+ */
+final class SegmentPipeline {
+    static final int MIN_PARALLEL_BATCHES = 2;   // below this the hand-off to workers costs more than it saves
+    static final int MAP_WINDOW_BYTES     = 64 << 20;
+
+    private SegmentPipeline() {}
+
+    /** Worker threads worth starting on this machine. */
+    static int defaultThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /** True if a v2 payload of {@code size} bytes has the fixed layout this class needs. */
+    static boolean applies(long size) {
+        return size != VaultHeader.UNKNOWN_SIZE;
+    }
+
+    /**
+     * Encrypts {@code hdr.originalSize} bytes of {@code src} starting at {@code srcPos}; the header
+     * must already be on {@code out}. Fails if the source is not exactly that long.
+     */
+    static void encrypt(SecretKey key, VaultHeader hdr, FileChannel src, long srcPos, WritableByteChannel out,
+                        int threads, BufferPool buffers) throws IOException, GeneralSecurityException {
+        encrypt(key, hdr, src, srcPos, 0, out, threads, buffers);
+    }
+
+    /**
+     * As above, but only segments {@code fromSegment} on: {@code out} already holds the header and
+     * the segments before it (a resumed write).
+     */
+    static void encrypt(SecretKey key, VaultHeader hdr, FileChannel src, long srcPos, long fromSegment,
+                        WritableByteChannel out, int threads, BufferPool buffers)
+            throws IOException, GeneralSecurityException {
+        long size = hdr.originalSize;
+        int segSize = hdr.segmentSize;
+        long count = SegmentCipher.segmentCount(size, segSize);
+        if (count > SegmentCipher.MAX_SEGMENTS) throw new IOException("File too large for segment size " + segSize);
+        byte[] aad = hdr.encoded();
+
+        if (fromSegment < 0 || fromSegment > count) throw new IllegalArgumentException("No segment " + fromSegment);
+        run(hdr, key, fromSegment, count, threads, buffers, out, (cipher, slot, first, n) -> {
+            long start = first * segSize;
+            int plain = (int) Math.min((long) n * segSize, size - start);
+            ByteBuffer in = slot.in.clear().limit(plain);
+            if (read(src, in, srcPos + start) != plain) {
+                throw new IOException("Source file shrank while encrypting");
+            }
+            slot.out.clear();
+            for (int j = 0; j < n; j++) {
+                long i = first + j;
+                in.limit(j * segSize + SegmentCipher.plainLength(size, segSize, i)).position(j * segSize);
+                cipher.seal(SegmentCipher.segmentNonce(hdr.iv, i, i == count - 1), aad, in, slot.out);
+            }
+            slot.out.flip();
+        });
+        if (src.size() - srcPos != size) throw new IOException("Source file grew while encrypting");
+    }
+
+    /**
+     * Decrypts the payload of the item open on {@code src} into {@code out}, reading it through
+     * mapped windows if {@code mapped}. As with {@link SegmentCipher#decrypt}, plaintext is only
+     * released once its segment authenticates.
+     */
+    static void decrypt(SecretKey key, VaultHeader hdr, FileChannel src, WritableByteChannel out,
+                        int threads, BufferPool buffers, boolean mapped) throws IOException, GeneralSecurityException {
+        decrypt(key, hdr, src, 0, out, threads, buffers, mapped);
+    }
+
+    /** As above, but only the plaintext of segments {@code fromSegment} on (a resumed extraction). */
+    static void decrypt(SecretKey key, VaultHeader hdr, FileChannel src, long fromSegment, WritableByteChannel out,
+                        int threads, BufferPool buffers, boolean mapped) throws IOException, GeneralSecurityException {
+        long size = hdr.originalSize;
+        int segSize = hdr.segmentSize;
+        int full = segSize + SegmentCipher.TAG_BYTES;
+        long count = SegmentCipher.segmentCount(size, segSize);
+        if (count > SegmentCipher.MAX_SEGMENTS) throw new IOException("Corrupt header: too many segments");
+        long expected = SegmentCipher.segmentOffset(hdr, count - 1)
+                + SegmentCipher.plainLength(size, segSize, count - 1) + SegmentCipher.TAG_BYTES;
+        long actual = src.size();
+        if (actual < expected) throw new EOFException("Truncated vault item");
+        if (actual > expected) throw new IOException("Unexpected trailing data after final segment");
+        if (fromSegment < 0 || fromSegment > count) throw new IllegalArgumentException("No segment " + fromSegment);
+        byte[] aad = hdr.encoded();
+        int perBatch = batchSegments(hdr, buffers);
+        MappedWindows windows = mapped && fromSegment < count
+                ? new MappedWindows(src, SegmentCipher.segmentOffset(hdr, fromSegment), expected,
+                        (long) perBatch * full, MAP_WINDOW_BYTES)
+                : null;
+
+        try {
+            run(hdr, key, fromSegment, count, threads, buffers, out, (cipher, slot, first, n) -> {
+                long start = first * segSize;
+                int ct = (int) Math.min((long) n * segSize, size - start) + n * SegmentCipher.TAG_BYTES;
+                long batch = (first - fromSegment) / perBatch;
+                ByteBuffer in;
+                if (windows != null) {
+                    in = windows.slice(batch, ct);
+                } else {
+                    in = slot.in.clear().limit(ct);
+                    if (read(src, in, SegmentCipher.segmentOffset(hdr, first)) != ct) {
+                        throw new EOFException("Truncated vault item");
+                    }
+                }
+                slot.out.clear();
+                try {
+                    for (int j = 0; j < n; j++) {
+                        long i = first + j;
+                        in.limit(j * full + SegmentCipher.plainLength(size, segSize, i) + SegmentCipher.TAG_BYTES)
+                          .position(j * full);
+                        cipher.open(SegmentCipher.segmentNonce(hdr.iv, i, i == count - 1), aad, in, slot.out);
+                    }
+                } catch (InternalError e) {
+                    // the JVM's report of a fault on a mapped page, e.g. the file was truncated underneath us
+                    throw new IOException("Vault item changed while it was being read", e);
+                } finally {
+                    if (windows != null) windows.done(batch);
+                }
+                slot.out.flip();
+            });
+        } finally {
+            if (windows != null) windows.close();
+        }
+    }
+
+    // ===== Scheduling =====
+
+    /** One batch's work: fill {@code slot.out} (flipped, ready to write) for segments {@code [first, first+n)}. */
+    private interface BatchTask {
+        void run(CipherSuite.Session cipher, Slot slot, long first, int n) throws IOException, GeneralSecurityException;
+    }
+
+    private static final class Slot {
+        final ByteBuffer in;
+        final ByteBuffer out;
+        volatile boolean abandoned;   // its worker did not stop in time; the GC gets the buffers
+
+        Slot(BufferPool buffers, int bytes) {
+            in = buffers.acquire(bytes);
+            out = buffers.acquire(bytes);
+        }
+
+        void release(BufferPool buffers) {
+            if (abandoned) return;
+            buffers.release(in);
+            buffers.release(out);
+        }
+    }
+
+    /** Segments per batch: as many as fit in one pooled buffer. */
+    private static int batchSegments(VaultHeader hdr, BufferPool buffers) {
+        return Math.max(1, buffers.bufferSize() / (hdr.segmentSize + SegmentCipher.TAG_BYTES));
+    }
+
+    /** Runs {@code task} over segments {@code [from, count)} in batches and writes the results in order. */
+    private static void run(VaultHeader hdr, SecretKey key, long from, long count, int threads, BufferPool buffers,
+                            WritableByteChannel out, BatchTask task) throws IOException, GeneralSecurityException {
+        int full = hdr.segmentSize + SegmentCipher.TAG_BYTES;
+        int perBatch = batchSegments(hdr, buffers);
+        long batches = (count - from + perBatch - 1) / perBatch;
+        int workers = batches < MIN_PARALLEL_BATCHES ? 1 : (int) Math.max(1, Math.min(threads, batches));
+        int window = workers == 1 ? 1 : (int) Math.min(2L * workers, batches);
+
+        Slot[] slots = new Slot[window];
+        try {
+            for (int s = 0; s < window; s++) slots[s] = new Slot(buffers, perBatch * full);
+            if (workers == 1) {
+                CipherSuite.Session cipher = hdr.suite().session(key);
+                for (long b = 0; b < batches; b++) {
+                    long first = from + b * perBatch;
+                    task.run(cipher, slots[0], first, (int) Math.min(perBatch, count - first));
+                    write(out, slots[0].out);
+                }
+            } else {
+                runParallel(hdr, key, from, count, perBatch, batches, workers, slots, out, task);
+            }
+        } finally {
+            for (Slot s : slots) {
+                if (s != null) s.release(buffers);
+            }
+        }
+    }
+
+    private static void runParallel(VaultHeader hdr, SecretKey key, long from, long count, int perBatch, long batches,
+                                    int workers, Slot[] slots, WritableByteChannel out, BatchTask task)
+            throws IOException, GeneralSecurityException {
+        int window = slots.length;
+        // cipher sessions are not thread-safe; a worker borrows one for the length of a batch
+        BlockingQueue<CipherSuite.Session> sessions = new ArrayBlockingQueue<>(workers);
+        for (int t = 0; t < workers; t++) sessions.add(hdr.suite().session(key));
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "vault-segments");
+            t.setDaemon(true);
+            return t;
+        });
+        // batch b always uses slot b % window: the writer has drained b - window before b is submitted
+        ArrayDeque<Future<Slot>> inFlight = new ArrayDeque<>(window);
+        try {
+            for (long b = 0; b < batches; b++) {
+                if (inFlight.size() == window) writeNext(inFlight, out);
+                Slot slot = slots[(int) (b % window)];
+                long first = from + b * perBatch;
+                int n = (int) Math.min(perBatch, count - first);
+                inFlight.add(pool.submit(() -> {
+                    CipherSuite.Session cipher = sessions.take();
+                    try {
+                        task.run(cipher, slot, first, n);
+                        return slot;
+                    } finally {
+                        sessions.add(cipher);
+                    }
+                }));
+            }
+            while (!inFlight.isEmpty()) writeNext(inFlight, out);
+        } finally {
+            pool.shutdownNow();
+            boolean stopped = false;
+            try {
+                // workers may still be filling slots that are about to go back to the pool
+                stopped = pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!stopped) {
+                // a worker may still write to its slot: never hand those buffers to anyone else
+                for (Slot s : slots) s.abandoned = true;
+            }
+        }
+    }
+
+    /** Waits for the oldest batch and writes it out. */
+    private static void writeNext(ArrayDeque<Future<Slot>> inFlight, WritableByteChannel out)
+            throws IOException, GeneralSecurityException {
+        Slot slot;
+        try {
+            slot = inFlight.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for segment workers");
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) throw (IOException) c;
+            if (c instanceof GeneralSecurityException) throw (GeneralSecurityException) c;
+            if (c instanceof RuntimeException) throw (RuntimeException) c;
+            if (c instanceof Error) throw (Error) c;
+            throw new IOException(c);
+        }
+        write(out, slot.out);
+    }
+
+    /** Fills {@code buf} from {@code position} on, then flips it; returns how many bytes were available. */
+    private static int read(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) break;
+        }
+        buf.flip();
+        return buf.limit();
+    }
+
+    static void write(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) out.write(buf);
+    }
+
+    /**
+     * Read-only mappings of a file region in windows of whole batches. Batches take slices of their
+     * window; the window is unmapped when every batch in it has reported {@link #done}. Touching an
+     * unmapped page crashes the JVM rather than throwing, so nothing is unmapped while a batch that
+     * took a slice has not reported done.
+     */
+    private static final class MappedWindows {
+        private final FileChannel ch;
+        private final long base;          // file offset of batch 0
+        private final long end;           // end of the mapped region
+        private final long batchBytes;
+        private final long batchesPerWindow;
+        private final Map<Long, Window> open = new HashMap<>();
+        private final Set<Long> reading = new HashSet<>();   // batches holding a slice
+        private boolean closed;
+
+        private static final class Window {
+            final MappedByteBuffer buf;
+            long pending;                 // batches of this window not yet done
+
+            Window(MappedByteBuffer buf, long pending) {
+                this.buf = buf;
+                this.pending = pending;
+            }
+        }
+
+        MappedWindows(FileChannel ch, long base, long end, long batchBytes, long windowBytes) {
+            this.ch = ch;
+            this.base = base;
+            this.end = end;
+            this.batchBytes = batchBytes;
+            this.batchesPerWindow = Math.max(1, windowBytes / batchBytes);
+        }
+
+        /** The {@code len} bytes of batch {@code batch}, mapping its window if needed. */
+        synchronized ByteBuffer slice(long batch, int len) throws IOException {
+            if (closed) throw new InterruptedIOException("Mapped read was abandoned");
+            long w = batch / batchesPerWindow;
+            Window win = open.get(w);
+            if (win == null) {
+                long from = base + w * batchesPerWindow * batchBytes;
+                long size = Math.min(batchesPerWindow * batchBytes, end - from);
+                long batches = (size + batchBytes - 1) / batchBytes;
+                win = new Window(ch.map(FileChannel.MapMode.READ_ONLY, from, size), batches);
+                open.put(w, win);
+            }
+            int off = (int) ((batch % batchesPerWindow) * batchBytes);
+            reading.add(batch);
+            return win.buf.duplicate().position(off).limit(off + len).slice();
+        }
+
+        /** Batch {@code batch} no longer reads its slice. */
+        synchronized void done(long batch) {
+            reading.remove(batch);
+            long w = batch / batchesPerWindow;
+            Window win = open.get(w);
+            if (win != null && --win.pending == 0) {
+                open.remove(w);
+                unmap(win.buf);
+            }
+        }
+
+        /**
+         * Releases windows left over by a failed run. If a worker that did not stop still reads one,
+         * the windows are only dropped, and the GC unmaps them once it lets go.
+         */
+        synchronized void close() {
+            if (reading.isEmpty()) {
+                for (Window win : open.values()) unmap(win.buf);
+            }
+            open.clear();
+            closed = true;
+        }
+
+        // MappedByteBuffer has no public unmap before the foreign memory API; the JDK's own cleaner
+        // is reachable through sun.misc.Unsafe, and without it the mapping goes when the GC frees it.
+        private static final Object UNSAFE;
+        private static final java.lang.reflect.Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            java.lang.reflect.Method m = null;
+            try {
+                Class<?> c = Class.forName("sun.misc.Unsafe");
+                java.lang.reflect.Field f = c.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                unsafe = f.get(null);
+                m = c.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                unsafe = null;
+                m = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = m;
+        }
+
+        private static void unmap(MappedByteBuffer buf) {
+            if (INVOKE_CLEANER == null) return;
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buf);
+            } catch (ReflectiveOperationException e) {
+                // left to the GC
+            }
+        }
+    }
+}
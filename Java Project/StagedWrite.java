@@ -0,0 +1,262 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A file written under a temporary ".part" name and published with fsync + an atomic link or
+ * rename, so a crash never leaves a truncated file under the real name and publishing never
+ * replaces a file already there.
+ *
+ * A segment-aligned write can also keep a journal beside the part file ("name.part.journal", a
+ * properties file): every {@link #CHECKPOINT_BYTES} the data is forced to disk and then the number
+ * of complete segments is recorded, so an interrupted write can carry on from the last checkpoint
+ * instead of from byte zero. The journal also holds whatever the caller needs to recognise the
+ * same transfer again (source path, size, ...).
+ */
+final class StagedWrite implements Closeable {
+    static final String PART_SUFFIX    = ".part";
+    static final String JOURNAL_SUFFIX = ".journal";
+    static final long CHECKPOINT_BYTES = 64L << 20;
+
+    private static final String SEGMENTS = "segments";
+
+    private final Path part;
+    private final Path journalPath;      // null: not journaled
+    private final Properties journal;    // the fields, journaled or not
+    private final FileChannel channel;
+
+    private StagedWrite(Path part, Properties journal, boolean journaled, FileChannel channel) {
+        this.part = part;
+        this.journalPath = journaled ? journalFor(part) : null;
+        this.journal = journal;
+        this.channel = channel;
+    }
+
+    /** Claims {@code part} (which must not exist) for a new write, journaled if {@code journal} is not null. */
+    static StagedWrite create(Path part, Properties journal) throws IOException {
+        return create(part, journal != null ? journal : new Properties(), journal != null);
+    }
+
+    /**
+     * Claims {@code part} for a new write that carries {@code fields}; when {@code journaled} they
+     * are written out before any data so the transfer can be found again.
+     */
+    static StagedWrite create(Path part, Properties fields, boolean journaled) throws IOException {
+        FileChannel ch = FileChannel.open(part, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        StagedWrite w = new StagedWrite(part, fields, journaled, ch);
+        try {
+            fields.setProperty(SEGMENTS, "0");
+            if (journaled) w.saveJournal();
+        } catch (IOException | RuntimeException e) {
+            w.discard();
+            throw e;
+        }
+        return w;
+    }
+
+    /** Reopens the part file of a journaled write for resuming. */
+    static StagedWrite resume(Path journalPath) throws IOException {
+        Properties journal = readJournal(journalPath);
+        Path part = partFor(journalPath);
+        return new StagedWrite(part, journal, true, FileChannel.open(part, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    static Properties readJournal(Path journalPath) throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(journalPath)) {
+            p.load(in);
+        }
+        return p;
+    }
+
+    /** Journals in {@code dir} whose {@code field} is {@code value}, for finding a transfer to resume. */
+    static List<Path> findJournals(Path dir, String field, String value) throws IOException {
+        List<Path> found = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return found;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + PART_SUFFIX + JOURNAL_SUFFIX)) {
+            for (Path j : ds) {
+                try {
+                    if (value.equals(readJournal(j).getProperty(field))) found.add(j);
+                } catch (IOException | IllegalArgumentException e) {
+                    // unreadable journal: not a match
+                }
+            }
+        }
+        return found;
+    }
+
+    static Path journalFor(Path part) {
+        return part.resolveSibling(part.getFileName() + JOURNAL_SUFFIX);
+    }
+
+    static Path partFor(Path journalPath) {
+        String n = journalPath.getFileName().toString();
+        return journalPath.resolveSibling(n.substring(0, n.length() - JOURNAL_SUFFIX.length()));
+    }
+
+    Path part() {
+        return part;
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    String get(String field) {
+        return journal.getProperty(field);
+    }
+
+    /** Segments known to be on disk (0 for a new or unjournaled write). */
+    long segmentsDone() {
+        return Long.parseLong(journal.getProperty(SEGMENTS, "0"));
+    }
+
+    /** The part file as a channel that streams may close without ending the staged write. */
+    WritableByteChannel output() throws IOException {
+        return appendSegments(0, 1);
+    }
+
+    /**
+     * Drops anything after the last checkpoint and returns a channel that appends from there,
+     * checkpointing as it goes: the file holds {@code base} bytes, then segments of {@code unit}.
+     */
+    WritableByteChannel appendSegments(long base, long unit) throws IOException {
+        long resumeAt = base + segmentsDone() * unit;
+        if (channel.size() < resumeAt) throw new EOFException("Part file " + part + " is shorter than its journal says");
+        channel.truncate(resumeAt);
+        channel.position(resumeAt);
+        return new WritableByteChannel() {
+            private long lastCheckpoint = resumeAt;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int n = src.remaining();
+                SegmentPipeline.write(channel, src);
+                long pos = channel.position();
+                if (journalPath != null && pos - lastCheckpoint >= CHECKPOINT_BYTES) {
+                    channel.force(false);   // data first, then the claim that it is there
+                    journal.setProperty(SEGMENTS, String.valueOf((pos - base) / unit));
+                    saveJournal();
+                    lastCheckpoint = pos;
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() {
+                // the staged write owns the channel
+            }
+        };
+    }
+
+    /**
+     * Forces the data to disk and publishes the part file as {@code target}; FileAlreadyExistsException
+     * if something is there already, which is never replaced. The journal goes once the name is durable.
+     */
+    void publish(Path target) throws IOException {
+        channel.force(true);
+        channel.close();
+        claim(target);
+        forceDirectory(target.getParent());
+        if (journalPath != null) Files.deleteIfExists(journalPath);
+    }
+
+    /**
+     * Like {@link #publish}, but takes the first free name of {@code wanted}, "name(1).ext",
+     * "name(2).ext", ... and returns it. Two writes racing for a name each end up with their own.
+     */
+    Path publishUnique(Path wanted) throws IOException {
+        channel.force(true);
+        channel.close();
+        for (int n = 0; ; n++) {
+            Path target = variant(wanted, n);
+            try {
+                claim(target);
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            forceDirectory(target.getParent());
+            if (journalPath != null) Files.deleteIfExists(journalPath);
+            return target;
+        }
+    }
+
+    /** {@code p} for n = 0, otherwise "name(n).ext" beside it. */
+    static Path variant(Path p, int n) {
+        if (n == 0) return p;
+        String name = p.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot >= 0 ? name.substring(0, dot) : name;
+        String ext = dot >= 0 ? name.substring(dot) : "";
+        return p.resolveSibling(base + "(" + n + ")" + ext);
+    }
+
+    /**
+     * Gives the part file the name {@code target} only if that name is free: a hard link cannot
+     * replace anything, unlike a rename. Where there are no hard links the name is claimed with an
+     * empty placeholder first and the rename replaces just that.
+     */
+    private void claim(Path target) throws IOException {
+        try {
+            Files.createLink(target, part);
+            Files.delete(part);
+            return;
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // no hard links on this file system
+        }
+        Files.newByteChannel(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+        try {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);   // still our placeholder
+            throw e;
+        }
+    }
+
+    /** Deletes the part file and journal: the write is abandoned for good. */
+    void discard() throws IOException {
+        channel.close();
+        if (journalPath != null) Files.deleteIfExists(journalPath);
+        Files.deleteIfExists(part);
+    }
+
+    /** Closes the file, leaving part file and journal for a later {@link #resume}. */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void saveJournal() throws IOException {
+        Path tmp = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        journal.store(bos, "SecureVault transfer journal");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            SegmentPipeline.write(ch, ByteBuffer.wrap(bos.toByteArray()));
+            ch.force(true);
+        }
+        Files.move(tmp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Makes a rename in {@code dir} durable where the platform allows syncing a directory. */
+    static void forceDirectory(Path dir) {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // not supported here (e.g. Windows); the rename is still atomic, just not yet durable
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token-bucket rate limiter over bytes: tokens accrue at {@code bytesPerSecond} up to one
+ * second's worth, and {@link #acquire} blocks until the bytes it asks for have been earned. A
+ * request larger than the bucket is allowed through and paid back by the callers after it.
+ */
+final class TokenBucket {
+    private final long bytesPerSecond;
+    private long tokens;
+    private long lastRefill = System.nanoTime();
+
+    TokenBucket(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) throw new IllegalArgumentException("Rate must be positive");
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+    }
+
+    /** Blocks until {@code bytes} may be written. */
+    synchronized void acquire(long bytes) throws InterruptedException {
+        refill();
+        tokens -= bytes;
+        if (tokens < 0) {
+            TimeUnit.NANOSECONDS.sleep(-tokens * 1_000_000_000L / bytesPerSecond);
+            refill();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long elapsed = Math.min(now - lastRefill, 1_000_000_000L);   // a full bucket; also keeps this from overflowing
+        long earned = elapsed * bytesPerSecond / 1_000_000_000L;
+        if (earned > 0) {
+            tokens = Math.min(bytesPerSecond, tokens + earned);
+            lastRefill = now;
+        }
+    }
+}
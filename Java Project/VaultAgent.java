@@ -0,0 +1,318 @@
+import java.io.*;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+/**
+ * Key agent: keeps one unlocked {@link VaultEngine} in memory and serves short-lived CLI
+ * invocations over a Unix domain socket, so they skip the password prompt and key derivation.
+ *
+ * <pre>
+ * frame:    len(4) | type(1) | body                   (len counts type + body)
+ * request:  type = op;  body = DataOutput fields for the op
+ * response: type = OK | MORE | ERROR;  MORE frames precede the final OK (used by list)
+ * </pre>
+ *
+ * The socket lives in the vault directory and is made owner-only; where the platform
+ * reports peer credentials, connections from other users are refused as well. The agent
+ * exits (dropping the keys) after {@code idle} without requests, or on {@link #OP_STOP}.
+ * Paths in requests are resolved by the agent, so clients send absolute paths.
+ */
+final class VaultAgent {
+    static final String SOCKET_NAME = "agent.sock";
+
+    static final byte OP_LIST    = 1;
+    static final byte OP_ADD     = 2;   // path, dedup(1), level(1)           -> item name
+    static final byte OP_EXTRACT = 3;   // item name, output directory        -> output path
+    static final byte OP_VERIFY  = 4;   // item name                          -> logical size
+    static final byte OP_SCRUB   = 5;   // slices(1), 0 for all               -> corrupt count(4), summary
+    static final byte OP_STOP    = 9;
+
+    private static final byte OK    = 0;
+    private static final byte MORE  = 1;
+    private static final byte ERROR = 2;
+
+    private static final int MAX_FRAME = 1 << 20;
+    private static final int LIST_BATCH = 1000;
+
+    private VaultAgent() {}
+
+    static Path socketPath(Path vaultDir) {
+        return vaultDir.resolve(SOCKET_NAME);
+    }
+
+    // ===== Agent side =====
+
+    /** Serves requests for {@code vault} until it has been idle for {@code idleMillis} or is stopped. */
+    static void serve(VaultEngine vault, long idleMillis) throws IOException, InterruptedException {
+        Path sock = socketPath(vault.directory());
+        if (isRunning(sock)) throw new IOException("An agent is already running for this vault");
+        Files.deleteIfExists(sock);   // left behind by an agent that died
+
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(sock));
+            try {
+                Files.setPosixFilePermissions(sock, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system; the vault directory's own permissions apply
+            }
+            UserPrincipal owner = Files.getOwner(sock);
+
+            AtomicLong lastActive = new AtomicLong(System.currentTimeMillis());
+            AtomicInteger busy = new AtomicInteger();   // requests in progress; a long scrub is not idleness
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "vault-agent-idle");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleWithFixedDelay(() -> {
+                if (busy.get() == 0 && System.currentTimeMillis() - lastActive.get() >= idleMillis) closeQuietly(server);
+            }, 1, 1, TimeUnit.SECONDS);
+            ExecutorService workers = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "vault-agent");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                while (true) {
+                    SocketChannel client;
+                    try {
+                        client = server.accept();
+                    } catch (ClosedChannelException e) {
+                        break;   // idle timeout or stop request
+                    }
+                    lastActive.set(System.currentTimeMillis());
+                    busy.incrementAndGet();
+                    workers.execute(() -> {
+                        try (SocketChannel c = client) {
+                            if (!samePeer(c, owner)) return;
+                            handle(vault, c, server);
+                        } catch (IOException e) {
+                            // client went away mid-request; nothing to report to
+                        } finally {
+                            lastActive.set(System.currentTimeMillis());
+                            busy.decrementAndGet();
+                        }
+                    });
+                }
+            } finally {
+                timer.shutdownNow();
+                workers.shutdown();
+                workers.awaitTermination(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            closeQuietly(server);
+            Files.deleteIfExists(sock);
+        }
+    }
+
+    private static void handle(VaultEngine vault, SocketChannel c, ServerSocketChannel server) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(c));
+        byte[] req = readFrame(in);
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(req, 1, req.length - 1));
+        try {
+            switch (req[0]) {
+                case OP_LIST: {
+                    List<VaultIndex.Entry> entries = vault.list();
+                    for (int i = 0; i < entries.size(); i += LIST_BATCH) {
+                        List<VaultIndex.Entry> batch = entries.subList(i, Math.min(entries.size(), i + LIST_BATCH));
+                        writeFrame(out, MORE, encodeEntries(batch));
+                    }
+                    writeFrame(out, OK, new byte[0]);
+                    break;
+                }
+                case OP_ADD: {
+                    Path src = Paths.get(body.readUTF());
+                    boolean dedup = body.readBoolean();
+                    int level = body.readUnsignedByte();
+                    writeFrame(out, OK, utf(vault.add(src, dedup, level)));
+                    break;
+                }
+                case OP_EXTRACT: {
+                    String item = body.readUTF();
+                    Path outDir = Files.createDirectories(Paths.get(body.readUTF()));
+                    writeFrame(out, OK, utf(vault.extract(item, outDir).toString()));
+                    break;
+                }
+                case OP_VERIFY:
+                    writeFrame(out, OK, ByteBuffer.allocate(8).putLong(vault.verify(body.readUTF())).array());
+                    break;
+                case OP_SCRUB: {
+                    int slices = body.readUnsignedByte();
+                    Scrubber s = new Scrubber(vault);
+                    Scrubber.Result r;
+                    try {
+                        r = slices == 0 ? s.run(vault.list(), "all items") : s.runNextSlice(slices);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Scrub interrupted");
+                    }
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    DataOutputStream d = new DataOutputStream(bos);
+                    d.writeInt(r.failures.size());
+                    d.writeUTF(r.summary());
+                    writeFrame(out, OK, bos.toByteArray());
+                    break;
+                }
+                case OP_STOP:
+                    writeFrame(out, OK, new byte[0]);
+                    closeQuietly(server);
+                    break;
+                default:
+                    writeFrame(out, ERROR, utf("Unknown request " + req[0]));
+            }
+        } catch (NoSuchFileException e) {
+            writeFrame(out, ERROR, utf("No such file or vault item: " + e.getFile()));
+        } catch (GeneralSecurityException e) {
+            writeFrame(out, ERROR, utf("Authentication failed: " + e.getMessage()));
+        } catch (IOException | RuntimeException e) {
+            writeFrame(out, ERROR, utf(String.valueOf(e.getMessage())));
+        }
+        out.flush();
+    }
+
+    /** True unless the platform reports the peer's user and it is not the socket's owner. */
+    private static boolean samePeer(SocketChannel c, UserPrincipal owner) {
+        try {
+            UnixDomainPrincipal peer = c.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            return owner.getName().equals(peer.user().getName());
+        } catch (UnsupportedOperationException | IOException e) {
+            return true;   // no peer credentials here; the socket's file permissions are the guard
+        }
+    }
+
+    private static byte[] encodeEntries(List<VaultIndex.Entry> batch) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(batch.size() * 96);
+        DataOutputStream d = new DataOutputStream(bos);
+        d.writeInt(batch.size());
+        for (VaultIndex.Entry e : batch) {
+            d.writeUTF(e.itemName);
+            d.writeUTF(e.originalName);
+            d.writeLong(e.originalSize);
+            d.writeLong(e.storedSize);
+            d.writeLong(e.addedMillis);
+            d.writeByte((e.deduplicated ? 1 : 0) | (e.compressed ? 2 : 0));
+        }
+        return bos.toByteArray();
+    }
+
+    // ===== Client side =====
+
+    /** True if an agent answers on {@code sock}. */
+    static boolean isRunning(Path sock) {
+        if (!Files.exists(sock)) return false;
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(sock)).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Sends one request and returns the body of the final OK frame; MORE frames go to {@code more}. */
+    static byte[] call(Path sock, byte op, byte[] body, FrameHandler more) throws IOException {
+        try (SocketChannel c = SocketChannel.open(UnixDomainSocketAddress.of(sock))) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(c));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+            writeFrame(out, op, body);
+            out.flush();
+            while (true) {
+                byte[] f = readFrame(in);
+                byte[] payload = Arrays.copyOfRange(f, 1, f.length);
+                if (f[0] == OK) return payload;
+                if (f[0] == ERROR) throw new IOException(new DataInputStream(new ByteArrayInputStream(payload)).readUTF());
+                if (f[0] != MORE || more == null) throw new IOException("Unexpected reply from agent");
+                more.frame(payload);
+            }
+        } catch (SocketException e) {
+            throw new IOException("Agent is not reachable: " + e.getMessage(), e);
+        }
+    }
+
+    interface FrameHandler {
+        void frame(byte[] payload) throws IOException;
+    }
+
+    /** Decodes one MORE frame of a list reply. */
+    static List<VaultIndex.Entry> decodeEntries(byte[] payload) throws IOException {
+        DataInputStream d = new DataInputStream(new ByteArrayInputStream(payload));
+        int n = d.readInt();
+        List<VaultIndex.Entry> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            VaultIndex.Entry e = new VaultIndex.Entry();
+            e.itemName = d.readUTF();
+            e.originalName = d.readUTF();
+            e.originalSize = d.readLong();
+            e.storedSize = d.readLong();
+            e.addedMillis = d.readLong();
+            int flags = d.readUnsignedByte();
+            e.deduplicated = (flags & 1) != 0;
+            e.compressed = (flags & 2) != 0;
+            out.add(e);
+        }
+        return out;
+    }
+
+    /** Request body built from DataOutput fields. */
+    static byte[] body(Object... fields) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(bos);
+        for (Object f : fields) {
+            if (f instanceof String) d.writeUTF((String) f);
+            else if (f instanceof Boolean) d.writeBoolean((Boolean) f);
+            else if (f instanceof Integer) d.writeByte((Integer) f);
+            else throw new IllegalArgumentException("Unsupported field " + f);
+        }
+        return bos.toByteArray();
+    }
+
+    static String readUtf(byte[] payload) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(payload)).readUTF();
+    }
+
+    // ===== Framing =====
+
+    private static void writeFrame(OutputStream out, byte type, byte[] body) throws IOException {
+        out.write(ByteBuffer.allocate(5).putInt(body.length + 1).put(type).array());
+        out.write(body);
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 1 || len > MAX_FRAME) throw new IOException("Bad frame length " + len);
+        byte[] f = new byte[len];
+        in.readFully(f);
+        return f;
+    }
+
+    private static byte[] utf(String s) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(s.length() + 2);
+        new DataOutputStream(bos).writeUTF(s);
+        return bos.toByteArray();
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException ignored) {
+            // already closed
+        }
+    }
+}
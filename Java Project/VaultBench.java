@@ -0,0 +1,668 @@
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.stream.Stream;
+
+/**
+ * Micro-benchmarks for the vault's hot paths, runnable straight from the sources:
+ *
+ * <pre>
+ *   javac VaultBench.java && java VaultBench [--quick] [--only prefix] [--out results.json] [--dir scratch]
+ * </pre>
+ *
+ * Each benchmark is warmed up, then measured over several timed iterations; the score is
+ * the mean throughput with a 99.9% confidence half-width. Results are written as a JSON
+ * array shaped like JMH's ({@code benchmark}, {@code params}, {@code primaryMetric}) so
+ * two runs can be diffed or fed to the usual JMH result viewers.
+ *
+ * File-backed benchmarks use a scratch directory (default: a temp dir, deleted afterwards);
+ * point {@code --dir} at the disk the vault lives on to measure that disk. A fixture is only
+ * built when {@code --only} selects at least one benchmark that uses it.
+ *
+ * The JMH module under {@code src/jmh} (see build.gradle) runs the same cases under JMH: it
+ * asks {@link #fixture} for one case and times its operation itself.
+ */
+final class VaultBench {
+    private static final SecureRandom RNG = new SecureRandom();
+
+    private final boolean quick;
+    private final String only;
+    private final Path scratch;
+    private final List<String> results = new ArrayList<>();
+    /** For {@link #fixture}: the params the wanted case must have; null when measuring. */
+    private final List<String> caseParams;
+    private final List<Closeable> cleanups = new ArrayList<>();
+    private Fixture captured;
+
+    /** One benchmark invocation; returns the bytes it processed (0 if throughput in bytes is meaningless). */
+    private interface Op {
+        long run() throws Exception;
+    }
+
+    /** Untimed preparation before each invocation (e.g. recreating the file a wipe destroys). */
+    private interface Setup {
+        void run() throws Exception;
+    }
+
+    private VaultBench(boolean quick, String only, Path scratch, List<String> caseParams) {
+        this.quick = quick;
+        this.only = only;
+        this.scratch = scratch;
+        this.caseParams = caseParams;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean quick = false;
+        String only = "";
+        Path out = Paths.get("vault-bench.json");
+        Path dir = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--quick": quick = true; break;
+                case "--only":  only = args[++i]; break;
+                case "--out":   out = Paths.get(args[++i]); break;
+                case "--dir":   dir = Paths.get(args[++i]); break;
+                default:
+                    System.err.println("Usage: java VaultBench [--quick] [--only prefix] [--out file.json] [--dir scratch]");
+                    System.exit(2);
+            }
+        }
+        boolean ownScratch = dir == null;
+        Path scratch = ownScratch ? Files.createTempDirectory("vault-bench") : Files.createDirectories(dir);
+        VaultBench b = new VaultBench(quick, only, scratch, null);
+        try {
+            b.segmentCipher();
+            b.segmentPipeline();
+            b.ioPaths();
+            b.rawCiphers();
+            b.copyBuffers();
+            b.headerParse();
+            b.listing();
+            b.kdf();
+            b.wipe();
+            b.store();
+        } finally {
+            if (ownScratch) deleteTree(scratch);
+        }
+        Files.write(out, ("[\n" + String.join(",\n", b.results) + "\n]\n").getBytes(StandardCharsets.UTF_8));
+        System.out.println("Results written to " + out.toAbsolutePath());
+    }
+
+    /**
+     * Builds one case in {@code scratch} without measuring it, for an external harness. The case is
+     * the benchmark called {@code name} whose params include every name/value pair in {@code kv}.
+     * Store benchmarks are not available this way: their server lives only as long as {@link #store}.
+     */
+    static Fixture fixture(Path scratch, String name, Object... kv) throws Exception {
+        List<String> wanted = new ArrayList<>();
+        for (int i = 0; i < kv.length; i += 2) wanted.add(params(kv[i], kv[i + 1]));
+        VaultBench b = new VaultBench(false, name, scratch, wanted);
+        try {
+            b.segmentCipher();
+            b.segmentPipeline();
+            b.ioPaths();
+            b.rawCiphers();
+            b.copyBuffers();
+            b.headerParse();
+            b.listing();
+            b.kdf();
+            b.wipe();
+        } catch (Exception | Error e) {
+            b.runCleanups();
+            throw e;
+        }
+        if (b.captured == null) {
+            b.runCleanups();
+            throw new IllegalArgumentException("No benchmark " + name + " with {" + String.join(", ", wanted)
+                    + "} on this host");
+        }
+        return b.captured;
+    }
+
+    /** One case built by {@link #fixture}: {@link #call} is the timed operation, {@link #close} deletes its files. */
+    static final class Fixture implements Callable<Long>, Closeable {
+        private final String name;
+        private final Setup setup;
+        private final Op op;
+        private final List<Closeable> cleanups;
+
+        private Fixture(String name, Setup setup, Op op, List<Closeable> cleanups) {
+            this.name = name;
+            this.setup = setup;
+            this.op = op;
+            this.cleanups = cleanups;
+        }
+
+        /** Untimed preparation the case needs before every call (recreating the file a wipe destroys). */
+        public void prepare() throws Exception {
+            if (setup != null) setup.run();
+        }
+
+        /** Runs the operation once; returns the bytes it processed. */
+        @Override
+        public Long call() throws Exception {
+            long b = op.run();
+            if (b < 0) throw new IllegalStateException(name + " returned a wrong result");
+            return b;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Closeable c : cleanups) c.close();
+        }
+    }
+
+    // ===== Benchmarks =====
+
+    /** Item encrypt/decrypt through SegmentCipher, in memory, across payload sizes, segment sizes and suites. */
+    private void segmentCipher() throws Exception {
+        if (!wants("segment.")) return;
+        int[] sizes = quick ? new int[]{4 << 10, 1 << 20} : new int[]{4 << 10, 1 << 20, 64 << 20};
+        int[] segs = {16 << 10, SegmentCipher.DEFAULT_SEGMENT_SIZE, 1 << 20};
+        SecretKey key = new SecretKeySpec(random(32), "AES");
+        for (int size : sizes) {
+            byte[] plain = random(size);
+            for (int seg : segs) for (CipherSuite suite : CipherSuite.values()) {
+                String params = params("fileSize", size, "segmentSize", seg, "suite", suite.name());
+                if (!suite.isAvailable() || !wants("segment.", params)) continue;
+                VaultHeader hdr = VaultHeader.create("bench.bin", size, random(VaultHeader.IV_BYTES), seg);
+                hdr.setSuite(suite);
+                ByteArrayOutputStream ct = new ByteArrayOutputStream(size + 1024);
+                SegmentCipher.encrypt(key, hdr, new ByteArrayInputStream(plain), ct);
+                byte[] sealed = ct.toByteArray();
+                run("segment.encrypt", params, () -> {
+                    SegmentCipher.encrypt(key, hdr, new ByteArrayInputStream(plain), OutputStream.nullOutputStream());
+                    return size;
+                });
+                run("segment.decrypt", params, () -> {
+                    SegmentCipher.decrypt(key, hdr, new ByteArrayInputStream(sealed), OutputStream.nullOutputStream());
+                    return size;
+                });
+            }
+        }
+    }
+
+    /** File-to-file item encrypt/decrypt through SegmentPipeline at 1, 2, 4, ... worker threads up to the core count. */
+    private void segmentPipeline() throws Exception {
+        if (!wants("pipeline.")) return;
+        int size = quick ? 32 << 20 : 256 << 20;
+        PipelineFiles f = new PipelineFiles(size);
+        int cores = SegmentPipeline.defaultThreads();
+        BufferPool buffers = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, 4 * cores);
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            int t = threads;
+            String params = params("fileSize", size, "threads", t, "suite", f.hdr.suite().name());
+            run("pipeline.encrypt", params, () -> f.encryptChannel(t, buffers));
+            run("pipeline.decrypt", params, () -> f.decryptChannel(t, buffers, false));
+            run("pipeline.decryptMapped", params, () -> f.decryptChannel(t, buffers, true));
+            if (threads >= cores) break;
+        }
+        cleanup(f::delete);
+    }
+
+    /**
+     * Single-threaded file-to-file item encrypt/decrypt: the stream path (buffered streams, heap
+     * arrays) against the channel path (FileChannel, pooled direct buffers) at several buffer sizes,
+     * and for decryption the mapped path (ciphertext read through mapped windows).
+     */
+    private void ioPaths() throws Exception {
+        if (!wants("io.")) return;
+        int size = quick ? 32 << 20 : 256 << 20;
+        PipelineFiles f = new PipelineFiles(size);
+        String suite = f.hdr.suite().name();
+        run("io.encrypt", params("fileSize", size, "path", "stream", "bufferSize", SegmentCipher.DEFAULT_SEGMENT_SIZE,
+                "suite", suite), f::encryptStream);
+        run("io.decrypt", params("fileSize", size, "path", "stream", "bufferSize", SegmentCipher.DEFAULT_SEGMENT_SIZE,
+                "suite", suite), f::decryptStream);
+        for (int buf : new int[]{256 << 10, 1 << 20, 4 << 20}) {
+            BufferPool buffers = new BufferPool(buf, 4);
+            String params = params("fileSize", size, "path", "channel", "bufferSize", buf, "suite", suite);
+            run("io.encrypt", params, () -> f.encryptChannel(1, buffers));
+            run("io.decrypt", params, () -> f.decryptChannel(1, buffers, false));
+            run("io.decrypt", params("fileSize", size, "path", "mapped", "bufferSize", buf, "suite", suite),
+                    () -> f.decryptChannel(1, buffers, true));
+        }
+        cleanup(f::delete);
+    }
+
+    /** Source, item and output files shared by the file-to-file item benchmarks. */
+    private final class PipelineFiles {
+        final int size;
+        final SecretKey key = new SecretKeySpec(random(32), "AES");
+        final Path src = scratch.resolve("item-src.bin");
+        final Path item = scratch.resolve("item.sv");
+        final Path dst = scratch.resolve("item-dst.bin");
+        final VaultHeader hdr;
+
+        PipelineFiles(int size) throws IOException {
+            this.size = size;
+            writeRandomFile(src, size);
+            hdr = VaultHeader.create("bench.bin", size, random(VaultHeader.IV_BYTES), SegmentCipher.DEFAULT_SEGMENT_SIZE);
+            hdr.setSuite(CipherSuite.probe(300));
+            try {
+                encryptChannel(1, new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, 2));   // decrypt runs need an item even with --only
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        long encryptChannel(int threads, BufferPool buffers) throws IOException, GeneralSecurityException {
+            try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(item, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                SegmentPipeline.write(out, ByteBuffer.wrap(hdr.encoded()));
+                SegmentPipeline.encrypt(key, hdr, in, 0, out, threads, buffers);
+            }
+            return size;
+        }
+
+        long decryptChannel(int threads, BufferPool buffers, boolean mapped) throws Exception {
+            try (FileChannel in = FileChannel.open(item, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(dst, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                VaultHeader h = VaultHeader.read(Channels.newInputStream(in));
+                SegmentPipeline.decrypt(key, h, in, out, threads, buffers, mapped);
+            }
+            return size;
+        }
+
+        long encryptStream() throws Exception {
+            int buf = SegmentCipher.DEFAULT_SEGMENT_SIZE;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(src), buf);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(item), buf + SegmentCipher.TAG_BYTES)) {
+                out.write(hdr.encoded());
+                SegmentCipher.encrypt(key, hdr, in, out);
+            }
+            return size;
+        }
+
+        long decryptStream() throws Exception {
+            int buf = SegmentCipher.DEFAULT_SEGMENT_SIZE + SegmentCipher.TAG_BYTES;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(item), buf);
+                 OutputStream out = Files.newOutputStream(dst)) {
+                SegmentCipher.decrypt(key, VaultHeader.read(in), in, out);
+            }
+            return size;
+        }
+
+        void delete() throws IOException {
+            Files.deleteIfExists(src);
+            Files.deleteIfExists(item);
+            Files.deleteIfExists(dst);
+        }
+    }
+
+    /** Raw JCA throughput of candidate cipher suites over one 64 KiB segment. */
+    private void rawCiphers() throws Exception {
+        if (!wants("cipher.")) return;
+        int seg = SegmentCipher.DEFAULT_SEGMENT_SIZE;
+        byte[] plain = random(seg);
+        byte[] out = new byte[seg + 64];
+        SecretKeySpec aes = new SecretKeySpec(random(32), "AES");
+        SecretKeySpec chacha = new SecretKeySpec(random(32), "ChaCha20");
+        SecretKeySpec hmac = new SecretKeySpec(random(32), "HmacSHA256");
+        byte[] nonce = random(12);
+
+        Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding");
+        run("cipher.encrypt", params("suite", "AES-GCM", "segmentSize", seg), () -> {
+            nonce[0]++;
+            gcm.init(Cipher.ENCRYPT_MODE, aes, new GCMParameterSpec(128, nonce));
+            gcm.doFinal(plain, 0, seg, out, 0);
+            return seg;
+        });
+        Cipher cc;
+        try {
+            cc = Cipher.getInstance("ChaCha20-Poly1305");
+        } catch (java.security.NoSuchAlgorithmException e) {
+            cc = null;
+            System.out.println("  (ChaCha20-Poly1305 not available on this JDK; skipped)");
+        }
+        if (cc != null) {
+            Cipher chachaCipher = cc;
+            run("cipher.encrypt", params("suite", "ChaCha20-Poly1305", "segmentSize", seg), () -> {
+                nonce[0]++;
+                chachaCipher.init(Cipher.ENCRYPT_MODE, chacha, new IvParameterSpec(nonce));
+                chachaCipher.doFinal(plain, 0, seg, out, 0);
+                return seg;
+            });
+        }
+        Cipher ctr = Cipher.getInstance("AES/CTR/NoPadding");
+        Mac mac = Mac.getInstance("HmacSHA256");
+        byte[] iv16 = random(16);
+        run("cipher.encrypt", params("suite", "AES-CTR+HMAC-SHA256", "segmentSize", seg), () -> {
+            iv16[0]++;
+            ctr.init(Cipher.ENCRYPT_MODE, aes, new IvParameterSpec(iv16));
+            int n = ctr.doFinal(plain, 0, seg, out, 0);
+            mac.init(hmac);
+            mac.update(out, 0, n);
+            mac.doFinal();
+            return seg;
+        });
+    }
+
+    /** File-to-file copy through VaultEngine.copy, pooled direct buffers, and buffered streams of various sizes. */
+    private void copyBuffers() throws Exception {
+        if (!wants("copy.")) return;
+        int size = quick ? 16 << 20 : 128 << 20;
+        Path src = scratch.resolve("copy-src.bin");
+        writeRandomFile(src, size);
+        Path dst = scratch.resolve("copy-dst.bin");
+        run("copy.svcopy", params("fileSize", size, "bufferSize", 8192), () -> {
+            try (InputStream in = Files.newInputStream(src); OutputStream out = Files.newOutputStream(dst)) {
+                VaultEngine.copy(in, out);
+            }
+            return size;
+        });
+        for (int buf : new int[]{64 << 10, 1 << 20, 4 << 20}) {
+            BufferPool buffers = new BufferPool(buf, 1);
+            run("copy.channel", params("fileSize", size, "bufferSize", buf), () -> {
+                ByteBuffer b = buffers.acquire(buf);
+                try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(dst, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (in.read(b.clear()) >= 0) SegmentPipeline.write(out, b.flip());
+                } finally {
+                    buffers.release(b);
+                }
+                return size;
+            });
+        }
+        for (int buf : new int[]{8 << 10, 64 << 10, 1 << 20}) {
+            run("copy.buffered", params("fileSize", size, "bufferSize", buf), () -> {
+                byte[] b = new byte[buf];
+                try (InputStream in = Files.newInputStream(src); OutputStream out = Files.newOutputStream(dst)) {
+                    int n;
+                    while ((n = in.read(b)) != -1) out.write(b, 0, n);
+                }
+                return size;
+            });
+        }
+        cleanup(() -> {
+            Files.deleteIfExists(src);
+            Files.deleteIfExists(dst);
+        });
+    }
+
+    /** Cost of parsing one item header (v2 with the usual key-id extension). */
+    private void headerParse() throws Exception {
+        if (!wants("header.")) return;
+        VaultHeader hdr = VaultHeader.create("quarterly-report-final-v3.pdf", 1_234_567, random(VaultHeader.IV_BYTES),
+                SegmentCipher.DEFAULT_SEGMENT_SIZE);
+        hdr.ext.put(VaultHeader.EXT_KEY_ID, random(KeyTable.KEY_ID_BYTES));
+        byte[] enc = hdr.encoded();
+        run("header.parse", params("headerBytes", enc.length), () -> {
+            VaultHeader.read(new ByteArrayInputStream(enc));
+            return 0;
+        });
+    }
+
+    /**
+     * Listing cost against synthetic vaults: replaying the encrypted index (what option 2 does)
+     * at 1k/100k/1M items, and the header scan it replaced (what a rebuild does) at 1k items.
+     */
+    private void listing() throws Exception {
+        SecretKey key = new SecretKeySpec(random(32), "AES");
+        int[] counts = quick ? new int[]{1_000, 100_000} : new int[]{1_000, 100_000, 1_000_000};
+        for (int n : counts) {
+            if (!wants("list.index", params("items", n))) continue;
+            Path file = scratch.resolve("index-" + n + ".log");
+            List<VaultIndex.Entry> entries = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                VaultHeader hdr = VaultHeader.create("file-" + i + ".dat", 10_000L + i, random(VaultHeader.IV_BYTES),
+                        SegmentCipher.DEFAULT_SEGMENT_SIZE);
+                entries.add(VaultIndex.Entry.of("file-" + i + ".dat_" + (1_700_000_000_000L + i) + ".sv", hdr,
+                        10_100L + i, 1_700_000_000_000L + i));
+            }
+            try (VaultIndex idx = VaultIndex.open(file, key)) {
+                idx.replaceAll(entries);
+            }
+            entries = null;
+            run("list.index", params("items", n), () -> {
+                try (VaultIndex idx = VaultIndex.open(file, key)) {
+                    return idx.list().size() == n ? 0 : -1;
+                }
+            });
+            cleanup(() -> Files.deleteIfExists(file));
+        }
+
+        int n = 1_000;
+        if (!wants("list.headerScan", params("items", n))) return;
+        Path dir = Files.createDirectories(scratch.resolve("scan"));
+        for (int i = 0; i < n; i++) {
+            VaultHeader hdr = VaultHeader.create("file-" + i + ".dat", 0, random(VaultHeader.IV_BYTES),
+                    SegmentCipher.DEFAULT_SEGMENT_SIZE);
+            Files.write(dir.resolve("file-" + i + ".sv"), hdr.encoded());
+        }
+        run("list.headerScan", params("items", n), () -> {
+            int seen = 0;
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.sv")) {
+                for (Path p : ds) {
+                    try (InputStream in = new BufferedInputStream(Files.newInputStream(p), 4096)) {
+                        VaultHeader.read(in);
+                        seen++;
+                    }
+                }
+            }
+            return seen == n ? 0 : -1;
+        });
+        cleanup(() -> deleteTree(dir));
+    }
+
+    /** Password-to-key latency: PBKDF2 as older vaults use it, default Argon2id on 1..lanes threads. */
+    private void kdf() throws Exception {
+        if (!wants("kdf.")) return;
+        char[] pw = "correct horse battery staple".toCharArray();
+        byte[] salt = random(16);
+        Kdf pbkdf2 = Kdf.pbkdf2(Kdf.PBKDF2_DEFAULT_ITERATIONS);
+        run("kdf.pbkdf2", params("iterations", pbkdf2.iterations), () -> {
+            pbkdf2.derive(pw, salt, 32);
+            return 0;
+        });
+        Kdf argon = Kdf.DEFAULT;
+        byte[] pwBytes = new String(pw).getBytes(StandardCharsets.UTF_8);
+        for (int t = 1; t <= argon.threads(); t++) {
+            int threads = t;
+            run("kdf.argon2id", params("passes", argon.iterations, "memoryKiB", argon.memoryKiB, "lanes", argon.lanes,
+                    "threads", threads), () -> {
+                Argon2id.hash(pwBytes, salt, new byte[0], new byte[0], argon.iterations, argon.memoryKiB, argon.lanes,
+                        32, threads);
+                return 0;
+            });
+        }
+    }
+
+    /** Throughput of the default 3-pass overwrite used for originals and legacy items (file creation not timed). */
+    private void wipe() throws Exception {
+        if (!wants("wipe.")) return;
+        int size = quick ? 8 << 20 : 64 << 20;
+        byte[] data = random(1 << 20);
+        Path f = scratch.resolve("wipe.bin");
+        measure("wipe.secureDelete", params("fileSize", size, "passes", Wiper.DEFAULT.passes()), () -> {
+            try (OutputStream out = Files.newOutputStream(f)) {
+                for (int off = 0; off < size; off += data.length) out.write(data, 0, Math.min(data.length, size - off));
+            }
+        }, () -> {
+            Wiper.DEFAULT.destroy(f);
+            return size;
+        });
+    }
+
+    /**
+     * Item upload, download and header-sized ranged reads against a directory store and the
+     * in-process fake S3 server, one part in flight versus several.
+     */
+    private void store() throws Exception {
+        if (!wants("store.")) return;
+        int size = quick ? 24 << 20 : 96 << 20;
+        int partSize = 8 << 20;
+        Path src = scratch.resolve("store-src.bin");
+        Path dst = scratch.resolve("store-dst.bin");
+        writeRandomFile(src, size);
+        try (FakeS3Server server = FakeS3Server.start(0)) {
+            try (VaultStore local = new LocalStore(scratch.resolve("store"))) {
+                storeOps(local, "local", 1, src, dst, size);
+            }
+            for (int threads : new int[]{1, 4}) {
+                try (VaultStore s3 = server.store("bench", partSize, threads)) {
+                    storeOps(s3, "s3-fake", threads, src, dst, size);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(src);
+            Files.deleteIfExists(dst);
+        }
+    }
+
+    private void storeOps(VaultStore store, String backend, int threads, Path src, Path dst, int size) throws Exception {
+        String key = "items/bench.sv";
+        String params = params("fileSize", size, "backend", backend, "threads", threads);
+        run("store.put", params, () -> {
+            store.put(key, src);
+            return size;
+        });
+        run("store.fetch", params, () -> {
+            store.fetch(key, dst);
+            return Files.size(dst) == size ? size : -1;
+        });
+        run("store.getRange", params("length", VaultHeader.MAX_LENGTH, "backend", backend, "threads", threads), () -> {
+            byte[] b = store.getRange(key, 0, VaultHeader.MAX_LENGTH);
+            return b.length;
+        });
+        store.delete(key);
+    }
+
+    // ===== Harness =====
+
+    private void run(String name, String params, Op op) throws Exception {
+        measure(name, params, null, op);
+    }
+
+    /**
+     * Warms up, then runs timed iterations of {@code op}. Without {@code setup}, each iteration calls
+     * {@code op} in a loop for a fixed time; with it, each call is timed on its own and setup is not.
+     */
+    private void measure(String name, String params, Setup setup, Op op) throws Exception {
+        if (!name.startsWith(only)) return;
+        if (caseParams != null) {
+            if (captured == null && name.equals(only) && hasParams(params)) captured = new Fixture(name, setup, op, cleanups);
+            return;
+        }
+        int warmups = quick ? 1 : 3;
+        int iterations = quick ? 3 : 5;
+        long iterNanos = (quick ? 300 : 1000) * 1_000_000L;
+
+        double[] opsPerSec = new double[iterations];
+        long bytesPerOp = 0;
+        for (int it = -warmups; it < iterations; it++) {
+            long ops = 0, timed = 0, bytes = 0;
+            long start = System.nanoTime();
+            do {
+                if (setup != null) setup.run();
+                long t0 = System.nanoTime();
+                long b = op.run();
+                timed += System.nanoTime() - t0;
+                if (b < 0) throw new IllegalStateException(name + " returned a wrong result");
+                bytes += b;
+                ops++;
+            } while (System.nanoTime() - start < iterNanos);
+            if (it >= 0) {
+                opsPerSec[it] = ops / (timed / 1e9);
+                bytesPerOp = bytes / ops;
+            }
+        }
+        double mean = Arrays.stream(opsPerSec).average().orElse(0);
+        double var = Arrays.stream(opsPerSec).map(x -> (x - mean) * (x - mean)).sum() / Math.max(1, iterations - 1);
+        double err = 3.29 * Math.sqrt(var / iterations);   // 99.9% normal approximation
+
+        String line = bytesPerOp > 0
+                ? String.format(Locale.ROOT, "%-22s %-60s %12.1f ops/s  %10.1f MB/s", name, params, mean,
+                        mean * bytesPerOp / (1024 * 1024))
+                : String.format(Locale.ROOT, "%-22s %-60s %12.1f ops/s  %10.3f ms/op", name, params, mean, 1000 / mean);
+        System.out.println(line);
+
+        StringBuilder raw = new StringBuilder();
+        for (double x : opsPerSec) raw.append(raw.length() == 0 ? "" : ", ").append(num(x));
+        results.add("  {\"benchmark\": \"" + name + "\", \"mode\": \"thrpt\", \"warmupIterations\": " + warmups
+                + ", \"measurementIterations\": " + iterations + ", \"params\": {" + params + "}"
+                + ", \"bytesPerOp\": " + bytesPerOp
+                + ", \"primaryMetric\": {\"score\": " + num(mean) + ", \"scoreError\": " + num(err)
+                + ", \"scoreUnit\": \"ops/s\", \"rawData\": [[" + raw + "]]}}");
+    }
+
+    /** Whether {@code --only} selects any benchmark starting with {@code prefix}, i.e. its fixtures are needed. */
+    private boolean wants(String prefix) {
+        return prefix.startsWith(only) || only.startsWith(prefix);
+    }
+
+    /** {@link #wants(String)}, and when building a {@link #fixture}, the case with these params is the one asked for. */
+    private boolean wants(String prefix, String params) {
+        return wants(prefix) && (caseParams == null || hasParams(params));
+    }
+
+    private boolean hasParams(String params) {
+        for (String p : caseParams) if (!params.contains(p)) return false;
+        return true;
+    }
+
+    /** Deletes a fixture's files once its benchmarks have run; a {@link #fixture} keeps them until it is closed. */
+    private void cleanup(Closeable c) throws IOException {
+        if (caseParams != null) cleanups.add(c);
+        else c.close();
+    }
+
+    private void runCleanups() {
+        for (Closeable c : cleanups) {
+            try {
+                c.close();
+            } catch (IOException ignored) {
+                // best effort: the caller owns the scratch directory
+            }
+        }
+    }
+
+    /** JSON object members from alternating name/value arguments. */
+    private static String params(Object... kv) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < kv.length; i += 2) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append('"').append(kv[i]).append("\": \"").append(kv[i + 1]).append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String num(double x) {
+        return String.format(Locale.ROOT, "%.3f", x);
+    }
+
+    private static byte[] random(int n) {
+        byte[] b = new byte[n];
+        RNG.nextBytes(b);
+        return b;
+    }
+
+    private static void writeRandomFile(Path p, long size) throws IOException {
+        byte[] buf = random(1 << 20);
+        try (OutputStream out = Files.newOutputStream(p)) {
+            for (long off = 0; off < size; off += buf.length) out.write(buf, 0, (int) Math.min(buf.length, size - off));
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) return;
+        try (Stream<Path> s = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(p);
+        }
+    }
+}
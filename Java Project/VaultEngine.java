@@ -0,0 +1,1808 @@
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Deflater;
+
+/**
+ * Headless vault: everything the CLI does, without prompts or console output.
+ *
+ * {@link #open} derives the password key once and unlocks the data key; the returned
+ * engine then serves any number of operations until {@link #close}. All operations are
+ * safe to call from several threads at once. Each has a blocking form and, for the
+ * per-item operations, an {@code ...Async} form that runs on the engine's own bounded
+ * pool and completes a {@link CompletableFuture}. Failures surface as
+ * {@link IOException} (missing item, I/O, corrupt file) or
+ * {@link GeneralSecurityException} (authentication failure, destroyed key).
+ */
+final class VaultEngine implements Closeable {
+    // ===== Vault layout =====
+    static final String VAULT_EXT       = ".sv";                 // encrypted file extension
+    static final String META_FILE_NAME  = "vault.properties";    // properties file
+    static final String KEY_TABLE_NAME  = "keys.tbl";            // wrapped per-item keys
+    static final String INDEX_NAME      = "index.log";           // encrypted item index
+    static final String CHUNK_DIR_NAME  = "chunks";              // deduplicated chunk store
+    static final String PACK_DIR_NAME   = "packs";               // small items appended to pack files
+    static final String ITEM_DIR_NAME   = "items";               // item files, items/ab/cd/<name> by name hash
+    static final String STAGING_DIR_NAME = "staging";            // items being written, with resume journals
+    static final String WIPE_DIR_NAME   = ".wipe";               // files queued for overwriting (see WipeQueue)
+    static final int DEFAULT_WIPE_RATE_MIB = 32;                 // background wipe bandwidth, MiB/s
+    static final String STORE_ITEM_PREFIX = "items/";            // object keys of item files in the VaultStore
+    private static final int STORE_READ_BYTES = 8 << 20;         // one ranged GET when reading an item in the store
+    private static final int SHARD_SCAN_THREADS = 8;  // directory reads are I/O bound; more threads than cores help
+
+    // ===== Crypto configuration =====
+    private static final int SALT_BYTES   = 16;   // for master password hashing
+    private static final int KEY_BYTES    = 32;   // 256-bit AES key
+    private static final int GCM_IV_BYTES = 12;   // recommended for GCM
+    private static final int GCM_TAG_BITS = 128;  // 16 bytes tag
+
+    // ===== Key hierarchy =====
+    // password --Kdf (Argon2id; PBKDF2 on vaults not yet upgraded)--> pwKey --HMAC--> KEK --wraps--> vault data key (encrypts items)
+    private static final String KEK_LABEL     = "SecureVault key-encryption key";
+    private static final byte[] DATA_KEY_AAD  = "SecureVault data key".getBytes(StandardCharsets.UTF_8);
+    // data key --HMAC--> key table key --wraps--> per-item keys (see KeyTable)
+    private static final String KEY_TABLE_LABEL = "SecureVault item key table";
+    private static final String INDEX_LABEL     = "SecureVault item index";
+    private static final String CHUNK_KEY_LABEL = "SecureVault chunk encryption";
+    private static final String CHUNK_ID_LABEL  = "SecureVault chunk id";
+
+    // ===== File format (per item) =====
+    // Header layout lives in VaultHeader; new items are written as VERSION 2 (segmented).
+    static final int SEGMENT_SIZE = SegmentCipher.DEFAULT_SEGMENT_SIZE;
+
+    // ===== Cipher suite for new items =====
+    // vault.properties "cipherSuite" = auto (default) or a CipherSuite name. With auto the suites are
+    // timed once per machine/JVM and the winner is remembered under "probedSuite".
+    private static final long SUITE_PROBE_MILLIS = 300;
+
+    // ===== Concurrency =====
+    static final int MAX_DEFAULT_WORKERS = 8;  // beyond this a single disk rarely keeps up
+
+    // ===== Lockout policy =====
+    private static final int MAX_FAILED_ATTEMPTS = 5;
+    private static final long LOCKOUT_MILLIS     = 60_000L; // 1 minute lock after too many failures
+
+    private static final SecureRandom RNG = new SecureRandom();
+
+    /** Unlock refused: wrong password, or the vault is still locked after too many of them. */
+    static final class UnlockException extends GeneralSecurityException {
+        private static final long serialVersionUID = 1L;
+
+        final int failedAttempts;
+        final long lockedUntilMillis;   // 0 if not locked
+
+        UnlockException(String message, int failedAttempts, long lockedUntilMillis) {
+            super(message);
+            this.failedAttempts = failedAttempts;
+            this.lockedUntilMillis = lockedUntilMillis;
+        }
+    }
+
+    private final Path vaultDir;
+    private final Properties meta;
+    private final SecretKeySpec dataKey;   // unwrapped vault data key
+    private final KeyTable keys;
+    private final VaultIndex index;
+    private final ChunkStore chunks;
+    private final ExecutorService pool;
+    private final List<String> notices;
+    private final CipherSuite suite;
+    private final int pipelineThreads;   // workers for one large item (see SegmentPipeline); "segmentThreads" in meta
+    private final BufferPool buffers;    // direct buffers for the channel paths; "ioBufferSize" in meta
+    private final boolean mappedReads;   // extract/verify through mapped windows; "mappedReads" in meta
+    private final PackStore packs;
+    private final int packMaxItemBytes;  // items up to this size go to a pack file (0: never); "packMaxItemBytes" in meta
+    private final Wiper wiper;           // overwrites for paranoid deletes and originals; "wipe*" in meta
+    private final WipeQueue wipes;       // runs the wiper in the background; "wipeRateMiB" in meta (0: unlimited)
+    private final Parity.Scheme parity;  // sidecars for item and sealed pack files; "parity" (k+m) in meta, null: off
+    private final VaultStore store;      // copies of item files elsewhere; "store" in meta, null: none
+    private final boolean keepLocal;     // keep item files here once stored; "storeKeepLocal" in meta
+    private final Map<String, Object> fetchLocks = new ConcurrentHashMap<>();   // item files coming back from the store
+    private final Object nameLock = new Object();   // item names are unique across files and packs
+    // held shared while an item file is being deleted, exclusively while one moves into its shard
+    private final ReentrantReadWriteLock moveLock = new ReentrantReadWriteLock();
+    // held shared by a dedup add until its manifest is indexed, exclusively while chunks are pruned
+    private final ReentrantReadWriteLock pruneLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final Path stagingDir;
+    private final Set<Path> stagingInUse = ConcurrentHashMap.newKeySet();   // part files a thread is writing
+
+    private VaultEngine(Path vaultDir, Properties meta, SecretKeySpec dataKey, KeyTable keys, VaultIndex index,
+                        ChunkStore chunks, PackStore packs, VaultStore store, List<String> notices, CipherSuite suite) {
+        this.vaultDir = vaultDir;
+        this.store = store;
+        this.keepLocal = store == null || Boolean.parseBoolean(meta.getProperty("storeKeepLocal", "true").trim());
+        this.stagingDir = vaultDir.resolve(STAGING_DIR_NAME);
+        this.packs = packs;
+        this.suite = suite;
+        this.meta = meta;
+        this.dataKey = dataKey;
+        this.keys = keys;
+        this.index = index;
+        this.chunks = chunks;
+        this.notices = notices;
+        this.pipelineThreads = intSetting(meta, "segmentThreads", SegmentPipeline.defaultThreads(), 1, notices);
+        int workers = Math.min(Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_WORKERS);
+        this.buffers = new BufferPool(intSetting(meta, "ioBufferSize", BufferPool.DEFAULT_BUFFER_SIZE,
+                BufferPool.MIN_BUFFER_SIZE, notices), 4 * Math.max(pipelineThreads, workers));
+        this.mappedReads = Boolean.parseBoolean(meta.getProperty("mappedReads", "false").trim());
+        this.packMaxItemBytes = intSetting(meta, "packMaxItemBytes", PackStore.DEFAULT_MAX_ITEM_BYTES, 0, notices);
+        this.wiper = Wiper.configure(intSetting(meta, "wipePasses", Wiper.DEFAULT_PASSES, 1, notices),
+                meta.getProperty("wipePattern"), Boolean.parseBoolean(meta.getProperty("wipeSyncEveryPass", "false").trim()),
+                notices);
+        this.wipes = new WipeQueue(vaultDir.resolve(WIPE_DIR_NAME), wiper,
+                (long) intSetting(meta, "wipeRateMiB", DEFAULT_WIPE_RATE_MIB, 0, notices) << 20);
+        this.parity = paritySetting(meta, notices);
+        packs.protectWith(parity, pipelineThreads);
+        this.pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "vault-engine");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // ===== Session =====
+
+    /** True if {@code vaultDir} holds an initialized vault. */
+    static boolean isInitialized(Path vaultDir) throws IOException {
+        Properties meta = loadMeta(vaultDir);
+        return meta.containsKey("hash") || meta.containsKey("wrappedKey");
+    }
+
+    /** Initializes a new vault under {@code password}; fails if one already exists there. */
+    static void create(Path vaultDir, char[] password) throws IOException, GeneralSecurityException {
+        Files.createDirectories(vaultDir);
+        if (isInitialized(vaultDir)) throw new FileAlreadyExistsException(vaultDir.toString(), null, "Vault already exists");
+        byte[] salt = new byte[SALT_BYTES];
+        RNG.nextBytes(salt);
+        Properties meta = loadMeta(vaultDir);
+        Kdf kdf = Kdf.target(meta, new ArrayList<>());
+        byte[] pwKey = kdf.derive(password, salt, KEY_BYTES);
+        byte[] dataKey = new byte[KEY_BYTES];
+        RNG.nextBytes(dataKey);
+        try {
+            saveMeta(meta, vaultDir, salt, wrapDataKey(pwKey, dataKey), kdf, 0, 0L);
+        } finally {
+            clearKey(pwKey);
+            clearKey(dataKey);
+        }
+    }
+
+    /**
+     * Unlocks the vault in {@code vaultDir}. Wrong passwords are counted and lock the vault for a
+     * while after too many; both cases throw {@link UnlockException}.
+     */
+    static VaultEngine open(Path vaultDir, char[] password) throws IOException, GeneralSecurityException {
+        Properties meta = loadMeta(vaultDir);
+        if (!meta.containsKey("hash") && !meta.containsKey("wrappedKey")) {
+            throw new NoSuchFileException(vaultDir.toString(), null, "No vault has been set up here");
+        }
+        long lockUntil = Long.parseLong(meta.getProperty("lockUntil", "0"));
+        long now = System.currentTimeMillis();
+        int failed = Integer.parseInt(meta.getProperty("failed", "0"));
+        if (now < lockUntil) {
+            long seconds = (lockUntil - now + 999) / 1000;
+            throw new UnlockException("Vault is temporarily locked due to failed attempts. Try again in " + seconds + "s.",
+                    failed, lockUntil);
+        }
+
+        byte[] salt = Base64.getDecoder().decode(meta.getProperty("salt"));
+        Kdf kdf;
+        try {
+            kdf = Kdf.stored(meta);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Vault metadata is damaged: " + e.getMessage(), e);
+        }
+        byte[] pwKey = kdf.derive(password, salt, KEY_BYTES);
+        byte[] dataKey = unlockDataKey(meta, pwKey);
+        byte[] wrapped = meta.containsKey("wrappedKey")
+                ? Base64.getDecoder().decode(meta.getProperty("wrappedKey")) : null;
+        List<String> notices = new ArrayList<>();
+
+        if (dataKey == null) {
+            clearKey(pwKey);
+            failed++;
+            long nextLock = failed >= MAX_FAILED_ATTEMPTS ? now + LOCKOUT_MILLIS : 0L;
+            saveMeta(meta, vaultDir, salt, wrapped, kdf, failed, nextLock);
+            throw new UnlockException("Incorrect password. Failed attempts: " + failed
+                    + (nextLock > 0 ? " (vault locked for 60s)" : ""), failed, nextLock);
+        }
+        clearKey(pwKey);
+        Kdf target = Kdf.target(meta, notices);
+        if (wrapped == null || !kdf.equals(target)) {
+            // legacy vault (its key becomes the data key, stored wrapped instead of in the clear) or
+            // derivation settings that changed: re-wrap under a fresh salt while the password is at hand
+            if (wrapped == null) notices.add("Vault upgraded to a wrapped data key.");
+            if (!kdf.equals(target)) notices.add("Password key derivation upgraded to " + target + ".");
+            salt = new byte[SALT_BYTES];
+            RNG.nextBytes(salt);
+            byte[] newPwKey = target.derive(password, salt, KEY_BYTES);
+            wrapped = wrapDataKey(newPwKey, dataKey);
+            clearKey(newPwKey);
+            kdf = target;
+        }
+        CipherSuite suite = chooseSuite(meta, notices);
+        // reset failed/lock
+        saveMeta(meta, vaultDir, salt, wrapped, kdf, 0, 0L);
+
+        SecretKeySpec key = new SecretKeySpec(dataKey, "AES");
+        clearKey(dataKey);
+        KeyTable keys = KeyTable.open(vaultDir.resolve(KEY_TABLE_NAME), KeyWrap.aesKey(key.getEncoded(), KEY_TABLE_LABEL));
+        VaultIndex index = null;
+        PackStore packs = null;
+        VaultStore store = null;
+        try {
+            recoverStaging(vaultDir.resolve(STAGING_DIR_NAME), keys, notices);
+            packs = PackStore.open(vaultDir.resolve(PACK_DIR_NAME));
+            notices.addAll(packs.problems());
+            store = VaultStore.configure(meta, notices);
+            index = openIndex(vaultDir, packs, store, key, notices);
+            byte[] chunkIdKey = KeyWrap.derive(key.getEncoded(), CHUNK_ID_LABEL);
+            ChunkStore chunks = ChunkStore.open(vaultDir.resolve(CHUNK_DIR_NAME),
+                    KeyWrap.aesKey(key.getEncoded(), CHUNK_KEY_LABEL), chunkIdKey);
+            clearKey(chunkIdKey);
+            if (hasFlatItems(vaultDir)) {
+                notices.add("Some items are still stored in the flat vault directory; option 14 moves them into "
+                        + ITEM_DIR_NAME + "/ shards.");
+            }
+            VaultEngine engine = new VaultEngine(vaultDir, meta, key, keys, index, chunks, packs, store, notices, suite);
+            int queued = engine.wipes.start();
+            if (queued > 0) notices.add(queued + " deleted files are still being overwritten in the background.");
+            engine.compactInBackground();
+            return engine;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            keys.close();
+            if (index != null) index.close();
+            if (packs != null) packs.close();
+            if (store != null) store.close();
+            throw e;
+        }
+    }
+
+    Path directory() {
+        return vaultDir;
+    }
+
+    /** Suite new items are sealed with; existing items keep whatever their header records. */
+    CipherSuite suite() {
+        return suite;
+    }
+
+    /** Things worth telling the user that happened while opening (upgrades, index rebuilds). */
+    List<String> notices() {
+        return Collections.unmodifiableList(notices);
+    }
+
+    /** Re-wraps the data key under {@code newPassword}; no item is touched. */
+    synchronized void changePassword(char[] currentPassword, char[] newPassword)
+            throws IOException, GeneralSecurityException {
+        byte[] salt = Base64.getDecoder().decode(meta.getProperty("salt"));
+        byte[] check = Kdf.stored(meta).derive(currentPassword, salt, KEY_BYTES);
+        byte[] unlocked = unlockDataKey(meta, check);
+        clearKey(check);
+        if (unlocked == null) throw new UnlockException("Wrong current password.", 0, 0L);
+        clearKey(unlocked);
+
+        byte[] newSalt = new byte[SALT_BYTES];
+        RNG.nextBytes(newSalt);
+        Kdf kdf = Kdf.target(meta, new ArrayList<>());
+        byte[] newPwKey = kdf.derive(newPassword, newSalt, KEY_BYTES);
+        // re-wrap the unchanged data key: constant work
+        byte[] raw = dataKey.getEncoded();
+        byte[] wrapped = wrapDataKey(newPwKey, raw);
+        clearKey(raw);
+        clearKey(newPwKey);
+        saveMeta(meta, vaultDir, newSalt, wrapped, kdf, 0, 0L);
+    }
+
+    /** How the stored data key is currently derived from the password. */
+    synchronized Kdf kdf() {
+        return Kdf.stored(meta);
+    }
+
+    /**
+     * Measures this host and records derivation settings for {@code algorithm} that take about
+     * {@code targetMillis}; the next unlock (or password change) re-wraps the data key with them.
+     */
+    synchronized Kdf calibrateKdf(Kdf.Algorithm algorithm, long targetMillis) throws IOException {
+        Kdf k = Kdf.calibrate(algorithm, targetMillis);
+        meta.setProperty("kdfTarget", k.spec());
+        writeMeta(meta, vaultDir);
+        return k;
+    }
+
+    @Override
+    public void close() throws IOException {
+        wipes.close();
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            keys.close();
+        } finally {
+            try {
+                index.close();
+            } finally {
+                packs.close();
+                if (store != null) store.close();
+            }
+        }
+    }
+
+    // ===== Items =====
+
+    /**
+     * Encrypts {@code src} into a new item and returns the item name. With {@code dedup} the content
+     * goes to the chunk store and the item holds only its manifest; otherwise a {@code level} above 0
+     * deflates it first, unless it is over {@link Compression#MAX_INPUT_BYTES} or a sample shows it
+     * is incompressible.
+     */
+    String add(Path src, boolean dedup, int level) throws IOException, GeneralSecurityException {
+        if (level < 0 || level > 9) throw new IllegalArgumentException("Compression level must be 0-9");
+        String name = src.getFileName().toString();
+        try (FileChannel ch = FileChannel.open(src, StandardOpenOption.READ)) {
+            long size = ch.size();
+            level = Compression.levelFor(size, level);
+            if (!dedup && level > 0) {
+                ByteBuffer sample = ByteBuffer.allocate((int) Math.min(size, Compression.SAMPLE_BYTES));
+                while (sample.hasRemaining() && ch.read(sample, sample.position()) >= 0) {
+                    // positional reads: the channel stays at 0 for the stream below
+                }
+                if (!Compression.worthCompressing(Arrays.copyOf(sample.array(), sample.position()))) level = 0;
+            }
+            if (!dedup && level == 0) {
+                // a plain file: read it positionally into direct buffers and seal its segments on all cores;
+                // one big enough to checkpoint is journaled, and an earlier add of it that was cut short
+                // carries on from its last checkpoint
+                boolean journaled = size > StagedWrite.CHECKPOINT_BYTES;
+                if (journaled) {
+                    String resumed = resumeAdd(src, ch);
+                    if (resumed != null) return resumed;
+                }
+                return encryptPayload(null, ch, journaled ? src : null, size, name, -1, 0);
+            }
+            return store(name, Channels.newInputStream(ch), size, dedup, level);
+        }
+    }
+
+    /** Encrypts exactly {@code size} bytes of {@code in} as a new item named after {@code name}. */
+    String add(String name, InputStream in, long size, boolean dedup, int level)
+            throws IOException, GeneralSecurityException {
+        if (level < 0 || level > 9) throw new IllegalArgumentException("Compression level must be 0-9");
+        level = Compression.levelFor(size, level);
+        if (!dedup && level > 0) {
+            in = new BufferedInputStream(in, SEGMENT_SIZE);
+            in.mark(Compression.SAMPLE_BYTES);
+            byte[] sample = in.readNBytes(Compression.SAMPLE_BYTES);
+            in.reset();
+            if (!Compression.worthCompressing(sample)) level = 0;
+        }
+        return store(name, in, size, dedup, level);
+    }
+
+    /** {@link #add(String, InputStream, long, boolean, int)} once the compression level is settled. */
+    private String store(String name, InputStream in, long size, boolean dedup, int level)
+            throws IOException, GeneralSecurityException {
+        if (size < 0) throw new IllegalArgumentException("Size must not be negative");
+        BufferedInputStream bin = new BufferedInputStream(in, dedup ? Chunker.MAX_SIZE : SEGMENT_SIZE);
+        if (!dedup) {
+            return encryptPayload(bin, null, null, size, name, -1, level);
+        }
+        Path manifest = Files.createTempFile(vaultDir, ".manifest-", ".tmp");
+        // a chunk this add finds already stored may be referenced by nothing indexed yet
+        pruneLock.readLock().lock();
+        try {
+            ChunkStore.StoreResult r;
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(manifest))) {
+                r = chunks.store(bin, out);
+            }
+            if (r.logicalBytes != size) throw new IOException("Source changed size while encrypting");
+            try (FileChannel min = FileChannel.open(manifest, StandardOpenOption.READ)) {
+                return encryptPayload(null, min, null, min.size(), name, r.logicalBytes, 0);
+            }
+        } finally {
+            pruneLock.readLock().unlock();
+            Files.deleteIfExists(manifest);
+        }
+    }
+
+    CompletableFuture<String> addAsync(Path src, boolean dedup, int level) {
+        return async(() -> add(src, dedup, level));
+    }
+
+    /** Items in name order, from the index. */
+    List<VaultIndex.Entry> list() {
+        return index.list();
+    }
+
+    /** The index entry for {@code itemName}, or null. */
+    VaultIndex.Entry entry(String itemName) {
+        return index.get(itemName);
+    }
+
+    /**
+     * Decrypts one item into {@code outDir} under its original name (made unique) and returns the
+     * file. A failed item leaves no partial file behind. If the item fails to read and has parity,
+     * the damaged blocks are rebuilt in place and the extraction tried once more.
+     */
+    Path extract(String itemName, Path outDir) throws IOException, GeneralSecurityException {
+        try {
+            return extractOnce(itemName, outDir);
+        } catch (IOException | GeneralSecurityException e) {
+            if (e instanceof NoSuchFileException || e instanceof InterruptedIOException || !repaired(itemName)) throw e;
+            return extractOnce(itemName, outDir);
+        }
+    }
+
+    private Path extractOnce(String itemName, Path outDir) throws IOException, GeneralSecurityException {
+        byte[] packed = packs.read(itemName);
+        try (FileChannel ch = packed == null ? FileChannel.open(localItem(itemName), StandardOpenOption.READ) : null) {
+            InputStream in = packed != null ? new ByteArrayInputStream(packed) : Channels.newInputStream(ch);
+            VaultHeader hdr = VaultHeader.read(in);
+            // plain segmented items big enough to checkpoint keep a journal, so an extraction cut short
+            // resumes from its last checkpoint
+            boolean resumable = packed == null && hdr.version != VaultHeader.VERSION_1
+                    && hdr.originalSize > StagedWrite.CHECKPOINT_BYTES
+                    && SegmentPipeline.applies(hdr.originalSize) && !hdr.isManifest();
+            StagedWrite staged = resumable ? resumeExtract(outDir, itemName, ch.size()) : null;
+            if (staged == null) {
+                Properties journal = null;
+                if (resumable) {
+                    journal = new Properties();
+                    journal.setProperty("item", itemName);
+                    journal.setProperty("itemBytes", String.valueOf(ch.size()));
+                }
+                staged = newStagedOutput(outDir.resolve(hdr.originalName), journal);
+            }
+            try {
+                if (resumable) {
+                    SegmentPipeline.decrypt(itemKey(hdr), hdr, ch, staged.segmentsDone(),
+                            staged.appendSegments(0, hdr.segmentSize), pipelineThreads, buffers, mappedReads);
+                } else if (packed != null) {
+                    decryptPayload(hdr, in, Channels.newOutputStream(staged.output()));
+                } else {
+                    decryptPayload(hdr, ch, staged.output());
+                }
+                return staged.publishUnique(outDir.resolve(hdr.originalName));
+            } catch (IOException e) {
+                // an I/O failure after a checkpoint leaves the part file for the next attempt to resume
+                if (staged.segmentsDone() > 0) {
+                    staged.close();
+                } else {
+                    staged.discard();
+                }
+                throw e;
+            } catch (GeneralSecurityException | RuntimeException e) {
+                staged.discard();
+                throw e;
+            } finally {
+                stagingInUse.remove(staged.part());
+            }
+        }
+    }
+
+    /** The part file of an interrupted extraction of {@code itemName} into {@code outDir}, reopened; or null. */
+    private StagedWrite resumeExtract(Path outDir, String itemName, long itemBytes) throws IOException {
+        for (Path j : StagedWrite.findJournals(outDir, "item", itemName)) {
+            Path part = StagedWrite.partFor(j);
+            if (!stagingInUse.add(part)) continue;   // another thread is writing it
+            try {
+                StagedWrite staged = StagedWrite.resume(j);
+                if (String.valueOf(itemBytes).equals(staged.get("itemBytes"))) return staged;
+                staged.discard();
+            } catch (NoSuchFileException e) {
+                Files.deleteIfExists(j);
+            }
+            stagingInUse.remove(part);
+        }
+        return null;
+    }
+
+    /** A new part file for output that will be published as {@code wanted} (or a free variant of it). */
+    private StagedWrite newStagedOutput(Path wanted, Properties journal) throws IOException {
+        Path part = wanted.resolveSibling(wanted.getFileName() + StagedWrite.PART_SUFFIX);
+        for (int n = 0; ; n++) {
+            Path cand = StagedWrite.variant(part, n);
+            try {
+                StagedWrite w = StagedWrite.create(cand, journal);
+                stagingInUse.add(cand);
+                return w;
+            } catch (FileAlreadyExistsException e) {
+                // taken by an earlier or concurrent extraction; try the next
+            }
+        }
+    }
+
+    /**
+     * Writes the plaintext of {@code itemName} to {@code out} (left open). Data reaches {@code out}
+     * as segments authenticate, so on failure the caller must discard what was written.
+     */
+    void extract(String itemName, OutputStream out) throws IOException, GeneralSecurityException {
+        byte[] packed = packs.read(itemName);
+        if (packed != null) {
+            InputStream in = new ByteArrayInputStream(packed);
+            decryptPayload(VaultHeader.read(in), in, out);
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(localItem(itemName), StandardOpenOption.READ)) {
+            decryptPayload(VaultHeader.read(Channels.newInputStream(ch)), ch, Channels.newChannel(out));
+        }
+    }
+
+    CompletableFuture<Path> extractAsync(String itemName, Path outDir) {
+        return async(() -> extract(itemName, outDir));
+    }
+
+    /**
+     * Writes logical bytes {@code [offset, offset+length)} of {@code itemName} to {@code out}. Plain
+     * v2 items only decrypt the segments covering the range; compressed items are inflated from the
+     * start, and v1 items cannot be read by range.
+     */
+    void extractRange(String itemName, long offset, long length, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        byte[] packed = packs.read(itemName);
+        if (packed != null) {
+            // packed items are small: decrypt the whole item and keep the range
+            VaultHeader hdr = VaultHeader.read(new ByteArrayInputStream(packed));
+            long size = hdr.logicalSize();
+            if (offset < 0 || length < 0 || offset > size || length > size - offset) {
+                throw new IllegalArgumentException("Range is outside the file (size " + size + " bytes).");
+            }
+            ByteArrayOutputStream plain = new ByteArrayOutputStream((int) size);
+            extract(itemName, plain);
+            plain.writeTo(new FilterOutputStream(out) {
+                private long pos;
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    long s = Math.max(pos, offset), e = Math.min(pos + len, offset + length);
+                    if (s < e) out.write(b, off + (int) (s - pos), (int) (e - s));
+                    pos += len;
+                }
+            });
+            return;
+        }
+        if (storeOnly(itemName)) {
+            // plain v2 items are read by range straight from the store; other kinds are fetched back below
+            StoreReader src = new StoreReader(storeKey(itemName));
+            src.limit(VaultHeader.MAX_LENGTH);
+            VaultHeader hdr = VaultHeader.read(src);
+            if (hdr.version != VaultHeader.VERSION_1 && !hdr.isManifest() && !hdr.isCompressed()) {
+                long size = hdr.logicalSize();
+                if (offset < 0 || length < 0 || offset > size || length > size - offset) {
+                    throw new IllegalArgumentException("Range is outside the file (size " + size + " bytes).");
+                }
+                if (length > 0 && hdr.originalSize != VaultHeader.UNKNOWN_SIZE) {
+                    long last = (offset + length - 1) / hdr.segmentSize;
+                    src.limit(SegmentCipher.segmentOffset(hdr, last) + SegmentCipher.TAG_BYTES
+                            + SegmentCipher.plainLength(hdr.originalSize, hdr.segmentSize, last));
+                }
+                SegmentCipher.decryptRange(itemKey(hdr), hdr, src, offset, length, out);
+                return;
+            }
+        }
+        try (FileChannel ch = FileChannel.open(localItem(itemName), StandardOpenOption.READ)) {
+            VaultHeader hdr = VaultHeader.read(Channels.newInputStream(ch));
+            if (hdr.version == VaultHeader.VERSION_1) {
+                throw new IllegalArgumentException("Byte ranges need a version 2 item; extract it fully or re-add it to the vault.");
+            }
+            long size = hdr.logicalSize();
+            if (offset < 0 || length < 0 || offset > size || length > size - offset) {
+                throw new IllegalArgumentException("Range is outside the file (size " + size + " bytes).");
+            }
+            if (hdr.isManifest()) {
+                // the manifest is small; walk it and fetch only the chunks overlapping the range
+                OutputStream sink = chunks.manifestSink(out, size, offset, length);
+                SegmentCipher.decrypt(itemKey(hdr), hdr,
+                        new BufferedInputStream(Channels.newInputStream(ch), SEGMENT_SIZE), sink);
+                sink.close();
+            } else if (hdr.isCompressed()) {
+                // no fixed mapping from file offsets to segments: inflate from the start and keep the range
+                OutputStream sink = Compression.inflatingSink(out, size, offset, length);
+                SegmentCipher.decrypt(itemKey(hdr), hdr,
+                        new BufferedInputStream(Channels.newInputStream(ch), SEGMENT_SIZE), sink);
+                sink.close();
+            } else {
+                SegmentCipher.decryptRange(itemKey(hdr), hdr, ch, offset, length, out);
+            }
+        }
+    }
+
+    /**
+     * Deletes an item and returns true if it was crypto-shredded (its key record destroyed and the
+     * ciphertext unlinked). Older items without their own key, and {@code paranoid} deletes, get
+     * queued for overwriting by the configured {@link Wiper} instead or as well; the item is gone
+     * from its name when this returns, the overwrite runs in the background. Copies in the object
+     * store are deleted, not overwritten: for them, shredding the key is what counts.
+     */
+    boolean delete(String itemName, boolean paranoid) throws IOException, GeneralSecurityException {
+        byte[] keyId = null;
+        try (InputStream in = openHeader(itemName)) {
+            keyId = VaultHeader.read(in).ext.get(VaultHeader.EXT_KEY_ID);
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (IOException e) {
+            // unreadable header: nothing to shred, fall back to overwriting
+        }
+        if (store != null && !packs.contains(itemName)) {
+            store.delete(storeKey(itemName) + Parity.SUFFIX);
+            store.delete(storeKey(itemName));
+        }
+        if (keyId != null) {
+            keys.shred(keyId);
+        }
+        if (packs.delete(itemName, paranoid || keyId == null)) {
+            index.remove(itemName);
+            compactInBackground();
+            return keyId != null;
+        }
+        moveLock.readLock().lock();
+        try {
+            Path target;
+            try {
+                target = itemPath(itemName);
+            } catch (NoSuchFileException e) {
+                if (store == null || index.get(itemName) == null) throw e;
+                target = null;   // it was only in the store
+            }
+            if (target == null) {
+                // nothing local to remove
+            } else if (paranoid || keyId == null) {
+                wipes.add(target);
+                Path side = Parity.sidecar(target);
+                if (Files.exists(side)) wipes.add(side);   // parity is a function of the ciphertext
+            } else {
+                Files.delete(target);
+                Files.deleteIfExists(Parity.sidecar(target));
+            }
+        } finally {
+            moveLock.readLock().unlock();
+        }
+        index.remove(itemName);
+        return keyId != null;
+    }
+
+    CompletableFuture<Boolean> deleteAsync(String itemName, boolean paranoid) {
+        return async(() -> delete(itemName, paranoid));
+    }
+
+    /**
+     * Decrypts and authenticates the whole item (and, for deduplicated items, every chunk it
+     * references) without writing the plaintext anywhere, and checks the sizes its header records
+     * against the file and the decrypted length. Returns the logical size.
+     */
+    long verify(String itemName) throws IOException, GeneralSecurityException {
+        long[] n = new long[1];
+        OutputStream counter = new OutputStream() {
+            @Override
+            public void write(int b) {
+                n[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                n[0] += len;
+            }
+        };
+        VaultHeader hdr;
+        if (storeOnly(itemName)) {
+            // stream it through ranged reads rather than fetching a local copy just to check it
+            String key = storeKey(itemName);
+            InputStream in = new StoreReader(key);
+            hdr = VaultHeader.read(in);
+            checkLayout(hdr, store.size(key));
+            decryptPayload(hdr, in, counter);
+        } else {
+            try (InputStream in = openItem(itemName)) {
+                hdr = VaultHeader.read(in);
+            }
+            if (!packs.contains(itemName)) checkLayout(hdr, Files.size(localItem(itemName)));
+            extract(itemName, counter);
+        }
+        long expected = hdr.logicalSize();
+        if (expected >= 0 && n[0] != expected) {
+            throw new IOException("Item decrypted to " + n[0] + " bytes but its header says " + expected);
+        }
+        return n[0];
+    }
+
+    /** Fails if a fixed-layout item file is not exactly as long as its header implies. */
+    private static void checkLayout(VaultHeader hdr, long actual) throws IOException {
+        if (hdr.version == VaultHeader.VERSION_1 || hdr.originalSize == VaultHeader.UNKNOWN_SIZE) return;
+        long expected = hdr.length() + hdr.originalSize
+                + SegmentCipher.segmentCount(hdr.originalSize, hdr.segmentSize) * SegmentCipher.TAG_BYTES;
+        if (actual != expected) {
+            throw new IOException("Item file is " + actual + " bytes but its header implies " + expected
+                    + (actual < expected ? " (truncated)" : " (data appended)"));
+        }
+    }
+
+    CompletableFuture<Long> verifyAsync(String itemName) {
+        return async(() -> verify(itemName));
+    }
+
+    /**
+     * Checks the file holding {@code itemName} (its item file, or its sealed pack) against its
+     * parity sidecar and rebuilds damaged blocks in place. Returns null if that file has no parity.
+     * Chunks of deduplicated items have none; only their manifest is covered.
+     */
+    Parity.Report repair(String itemName) throws IOException {
+        if (packs.contains(itemName)) return packs.repair(itemName);
+        moveLock.readLock().lock();
+        try {
+            return Parity.repair(itemPath(itemName), true, pipelineThreads);
+        } finally {
+            moveLock.readLock().unlock();
+        }
+    }
+
+    /** True if {@link #repair} rebuilt {@code itemName} completely, so reading it again may succeed. */
+    private boolean repaired(String itemName) {
+        try {
+            Parity.Report r = repair(itemName);
+            return r != null && (r.repaired > 0 || r.lengthFixed) && r.unrepairableGroups == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the parity sidecar of the file holding {@code itemName} if parity is on and it has
+     * none yet; only call this for an item that has just verified. Returns true if one was written.
+     */
+    boolean ensureParity(String itemName) throws IOException {
+        if (parity == null) return false;
+        if (packs.contains(itemName)) return packs.ensureParity(itemName);
+        moveLock.readLock().lock();
+        try {
+            Path file = itemPath(itemName);
+            if (Files.exists(Parity.sidecar(file))) return false;
+            Parity.create(file, parity, pipelineThreads);
+            return true;
+        } finally {
+            moveLock.readLock().unlock();
+        }
+    }
+
+    /** The parity scheme new items get, or null if parity is off. */
+    Parity.Scheme parity() {
+        return parity;
+    }
+
+    // ===== Maintenance =====
+
+    /** Rebuilds the index from the item headers; returns {items indexed, unreadable files skipped}. */
+    int[] rebuildIndex() throws IOException, GeneralSecurityException {
+        return rebuildIndex(vaultDir, packs, store, index);
+    }
+
+    /**
+     * Mark and sweep over the chunk store: reads every manifest, then deletes chunks none of them
+     * reference; returns {manifests scanned, chunks removed, bytes freed}. If any manifest cannot be
+     * read nothing is deleted, since its chunks would be lost. Dedup adds wait while it runs.
+     */
+    long[] pruneChunks() throws IOException, GeneralSecurityException {
+        pruneLock.writeLock().lock();
+        try {
+            return markAndSweep();
+        } finally {
+            pruneLock.writeLock().unlock();
+        }
+    }
+
+    private long[] markAndSweep() throws IOException, GeneralSecurityException {
+        Set<ByteBuffer> referenced = new HashSet<>();
+        long manifests = 0;
+        for (VaultIndex.Entry e : index.list()) {
+            if (!e.deduplicated) continue;
+            try (InputStream in = openItem(e.itemName)) {
+                VaultHeader hdr = VaultHeader.read(in);
+                OutputStream refs = ChunkStore.refCollector(referenced);
+                SegmentCipher.decrypt(itemKey(hdr), hdr, in, refs);
+                refs.close();
+                manifests++;
+            } catch (IOException ex) {
+                throw new IOException("Cannot read manifest " + e.itemName + " (" + ex.getMessage() + "); prune aborted.", ex);
+            } catch (GeneralSecurityException ex) {
+                throw new GeneralSecurityException("Cannot read manifest " + e.itemName + " (" + ex.getMessage()
+                        + "); prune aborted.", ex);
+            }
+        }
+        long[] r = chunks.prune(referenced);
+        return new long[]{manifests, r[0], r[1]};
+    }
+
+    long chunkCount() {
+        return chunks.chunkCount();
+    }
+
+    long chunkBytes() {
+        return chunks.chunkBytes();
+    }
+
+    /** Rewrites mostly-dead pack files now; returns {pack files removed, bytes reclaimed}. */
+    long[] compactPacks() throws IOException {
+        return packs.compact();
+    }
+
+    /** {pack files, packed items, pack bytes on disk, bytes of live items}. */
+    long[] packStats() {
+        return packs.stats();
+    }
+
+    /** Starts a compaction on the engine's pool if packs need one and none is running. */
+    private void compactInBackground() {
+        if (!packs.needsCompaction() || !compacting.compareAndSet(false, true)) return;
+        async(() -> {
+            try {
+                return packs.compact();
+            } finally {
+                compacting.set(false);
+            }
+        });
+    }
+
+    // ===== Internals =====
+
+    /** The item's bytes from its header on: from its pack if it is packed, else from its own file. */
+    private InputStream openItem(String itemName) throws IOException {
+        byte[] packed = packs.read(itemName);
+        if (packed != null) return new ByteArrayInputStream(packed);
+        return new BufferedInputStream(Files.newInputStream(localItem(itemName)), SEGMENT_SIZE);
+    }
+
+    /** {@link #itemPath}, fetching the item file back from the store if only the store has it. */
+    private Path localItem(String itemName) throws IOException {
+        try {
+            return itemPath(itemName);
+        } catch (NoSuchFileException e) {
+            if (store == null || index.get(itemName) == null) throw e;
+            return fetch(itemName, e);
+        }
+    }
+
+    /**
+     * Downloads item file {@code itemName} (and its parity, if stored) into its shard through the
+     * staging directory, so a cut-short download never looks like an item.
+     */
+    private Path fetch(String itemName, NoSuchFileException missing) throws IOException {
+        Object lock = fetchLocks.computeIfAbsent(itemName, k -> new Object());
+        synchronized (lock) {
+            try {
+                return itemPath(itemName);   // fetched by the thread before us
+            } catch (NoSuchFileException e) {
+                // still only in the store
+            }
+            Path dest = shardPath(vaultDir, itemName);
+            Path part = stagingDir.resolve(itemName + ".fetch.tmp");
+            try {
+                store.fetch(storeKey(itemName), part);
+            } catch (NoSuchFileException e) {
+                Files.deleteIfExists(part);
+                throw missing;
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(part);
+                throw e;
+            }
+            Files.createDirectories(dest.getParent());
+            Path sidePart = stagingDir.resolve(itemName + Parity.SUFFIX + ".fetch.tmp");
+            try {
+                store.fetch(storeKey(itemName) + Parity.SUFFIX, sidePart);
+                Files.move(sidePart, Parity.sidecar(dest), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.deleteIfExists(sidePart);   // parity is optional
+            }
+            Files.move(part, dest, StandardCopyOption.ATOMIC_MOVE);
+            // a failed fetch keeps its lock, so whoever retries never races another thread on the part file
+            fetchLocks.remove(itemName, lock);
+            return dest;
+        }
+    }
+
+    /** True if {@code itemName} is an indexed item file that only the store holds. */
+    private boolean storeOnly(String itemName) throws IOException {
+        if (store == null || index.get(itemName) == null || packs.contains(itemName)) return false;
+        try {
+            itemPath(itemName);
+            return false;
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+    }
+
+    /**
+     * An item file in the store, read through ranged GETs of up to {@link #STORE_READ_BYTES} rather
+     * than fetched whole: in order as a stream, or by position as a {@link SegmentCipher.Source}.
+     * No GET reaches past the {@link #limit} unless a single read asks for more.
+     */
+    private final class StoreReader extends InputStream implements SegmentCipher.Source {
+        private final String key;
+        private byte[] window = new byte[0];
+        private long windowStart;
+        private long pos;   // stream position
+        private long limit = Long.MAX_VALUE;
+
+        StoreReader(String key) {
+            this.key = key;
+        }
+
+        /** Reads from here on fetch nothing at or past {@code end} beyond what they ask for. */
+        void limit(long end) {
+            limit = end;
+        }
+
+        /** Makes the window hold byte {@code at}, with {@code length} bytes or more; false at the end of the object. */
+        private boolean load(long at, int length) throws IOException {
+            if (at >= windowStart && at < windowStart + window.length) return true;
+            window = store.getRange(key, at, (int) Math.max(length, Math.min(STORE_READ_BYTES, limit - at)));
+            windowStart = at;
+            return window.length > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!load(pos, 1)) return -1;
+            return window[(int) (pos++ - windowStart)] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!load(pos, 1)) return -1;
+            int n = (int) Math.min(len, windowStart + window.length - pos);
+            System.arraycopy(window, (int) (pos - windowStart), b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void read(ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) {
+                if (!load(position, buf.remaining())) throw new EOFException("Truncated vault item");
+                int n = (int) Math.min(buf.remaining(), windowStart + window.length - position);
+                buf.put(window, (int) (position - windowStart), n);
+                position += n;
+            }
+        }
+    }
+
+    /** The item's header bytes, read from the store rather than fetching an item only the store has. */
+    private InputStream openHeader(String itemName) throws IOException {
+        try {
+            return openItem(itemName);
+        } catch (NoSuchFileException e) {
+            if (store == null || index.get(itemName) == null) throw e;
+            try {
+                return new ByteArrayInputStream(store.getRange(storeKey(itemName), 0, VaultHeader.MAX_LENGTH));
+            } catch (NoSuchFileException e2) {
+                throw e;
+            }
+        }
+    }
+
+    private static String storeKey(String itemName) {
+        return STORE_ITEM_PREFIX + itemName;
+    }
+
+    /**
+     * Copies item file {@code itemName} (at {@code file}) and its parity to the store unless
+     * {@code stored} (key to size) shows them there already, then drops the local copies unless
+     * "storeKeepLocal". Returns true if it uploaded anything.
+     */
+    private boolean push(String itemName, Path file, Map<String, Long> stored) throws IOException {
+        String key = storeKey(itemName);
+        Path side = Parity.sidecar(file);
+        boolean uploaded = false;
+        if (!Long.valueOf(Files.size(file)).equals(stored.get(key))) {
+            store.put(key, file);
+            uploaded = true;
+        }
+        if (Files.exists(side) && !Long.valueOf(Files.size(side)).equals(stored.get(key + Parity.SUFFIX))) {
+            store.put(key + Parity.SUFFIX, side);
+            uploaded = true;
+        }
+        if (!keepLocal) {
+            Files.deleteIfExists(side);
+            Files.delete(file);
+        }
+        return uploaded;
+    }
+
+    /** Copies a newly added item file to the store. Best effort: {@link #syncStore} uploads anything missed. */
+    private void upload(String itemName) {
+        if (store == null) return;
+        moveLock.readLock().lock();
+        try {
+            push(itemName, itemPath(itemName), Collections.emptyMap());
+        } catch (IOException | RuntimeException e) {
+            // stays local until the next sync
+        } finally {
+            moveLock.readLock().unlock();
+        }
+    }
+
+    /** Resolves an item name, refusing anything that is not a plain item file name inside the vault. */
+    private Path itemPath(String itemName) throws IOException {
+        Path flat;
+        try {
+            flat = vaultDir.resolve(itemName);
+        } catch (InvalidPathException e) {
+            throw new NoSuchFileException(itemName, null, "No such vault item");
+        }
+        if (!itemName.endsWith(VAULT_EXT) || !flat.getParent().equals(vaultDir)) {
+            throw new NoSuchFileException(itemName, null, "No such vault item");
+        }
+        // sharded first; the second look covers a migration moving the file in between
+        Path sharded = shardPath(vaultDir, itemName);
+        if (Files.isRegularFile(sharded)) return sharded;
+        if (Files.isRegularFile(flat)) return flat;
+        if (Files.isRegularFile(sharded)) return sharded;
+        throw new NoSuchFileException(itemName, null, "No such vault item");
+    }
+
+    /**
+     * Where item file {@code itemName} lives in the sharded layout: two levels of directories
+     * named from the first bytes of the SHA-256 of the name, so no directory holds more than a
+     * few thousand entries even with millions of items.
+     */
+    static Path shardPath(Path vaultDir, String itemName) {
+        byte[] h;
+        try {
+            h = MessageDigest.getInstance("SHA-256").digest(itemName.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        return vaultDir.resolve(ITEM_DIR_NAME)
+                .resolve(String.format(Locale.ROOT, "%02x", h[0] & 0xFF))
+                .resolve(String.format(Locale.ROOT, "%02x", h[1] & 0xFF))
+                .resolve(itemName);
+    }
+
+    /**
+     * Writes {@code payload} as a new item; {@code logicalSize >= 0} marks a manifest, {@code level > 0} deflates.
+     * With a {@code source} channel instead of a stream (uncompressed items only) the payload goes through
+     * {@link SegmentPipeline}: direct buffers, and the segments sealed in parallel; a {@code sourcePath}
+     * as well journals the write, so adding that file again after a crash resumes it.
+     */
+    private String encryptPayload(InputStream payload, FileChannel source, Path sourcePath, long size, String baseName,
+                                  long logicalSize, int level)
+            throws IOException, GeneralSecurityException {
+        byte[] iv = new byte[GCM_IV_BYTES];
+        RNG.nextBytes(iv);
+
+        // fresh per-item key, recorded in the key table before any ciphertext exists; it is synced
+        // (with the keys of adds running alongside) only before the item is published, unless a
+        // journal could checkpoint the item first
+        byte[] keyId = new byte[KeyTable.KEY_ID_BYTES];
+        RNG.nextBytes(keyId);
+        byte[] rawItemKey = new byte[KEY_BYTES];
+        RNG.nextBytes(rawItemKey);
+        long keyTicket = keys.append(keyId, rawItemKey);
+        if (sourcePath != null) keys.sync(keyTicket);
+        SecretKeySpec itemKey = new SecretKeySpec(rawItemKey, "AES");
+        clearKey(rawItemKey);
+
+        // the deflated length is only known once it has been written
+        VaultHeader hdr = VaultHeader.create(baseName, level > 0 ? VaultHeader.UNKNOWN_SIZE : size, iv, SEGMENT_SIZE);
+        hdr.ext.put(VaultHeader.EXT_KEY_ID, keyId);
+        if (logicalSize >= 0) hdr.markManifest(logicalSize);
+        if (level > 0) hdr.markCompressed(level, size);
+        hdr.setSuite(suite);
+
+        StagedWrite staged = null;
+        String vaultName = null;
+        long stored = 0;
+        Deflater deflater = level > 0 ? new Deflater(level) : null;
+        try {
+            // Write header (see VaultHeader for layout), then the segmented payload
+            if (size != VaultHeader.UNKNOWN_SIZE && size <= packMaxItemBytes) {
+                // small item: sealed in memory and appended to a pack file rather than given its own
+                ByteArrayOutputStream buf = new ByteArrayOutputStream((int) size + 1024);
+                buf.write(hdr.encoded());
+                InputStream in = source != null ? Channels.newInputStream(source.position(0)) : payload;
+                SegmentCipher.encrypt(itemKey, hdr, deflater != null ? Compression.deflating(in, deflater) : in, buf);
+                if (deflater != null && deflater.getBytesRead() != size) {
+                    throw new IOException("Source changed size while encrypting");
+                }
+                keys.sync(keyTicket);
+                vaultName = newPackedItem(baseName, buf.toByteArray());
+                stored = buf.size();
+            } else if (source != null) {
+                // written to a part file in the staging directory, published once complete; with a
+                // source path it is journaled, so adding the same file again can resume it
+                staged = newStagedItem(baseName, sourcePath == null ? null : sourceJournal(sourcePath, source));
+                SegmentPipeline.write(staged.channel(), ByteBuffer.wrap(hdr.encoded()));
+                SegmentPipeline.encrypt(itemKey, hdr, source, 0, 0,
+                        staged.appendSegments(hdr.length(), SEGMENT_SIZE + SegmentCipher.TAG_BYTES), pipelineThreads, buffers);
+            } else {
+                staged = newStagedItem(baseName, null);
+                try (BufferedOutputStream bout = new BufferedOutputStream(Channels.newOutputStream(staged.output()),
+                        SEGMENT_SIZE + SegmentCipher.TAG_BYTES)) {
+                    bout.write(hdr.encoded());
+                    SegmentCipher.encrypt(itemKey, hdr, deflater != null ? Compression.deflating(payload, deflater) : payload, bout);
+                }
+                if (deflater != null && deflater.getBytesRead() != size) {
+                    throw new IOException("Source changed size while encrypting");
+                }
+            }
+            if (staged != null) {
+                keys.sync(keyTicket);
+                vaultName = staged.get("item");
+                stored = Files.size(publishItem(staged, vaultName));
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            if (staged != null && e instanceof IOException && staged.segmentsDone() > 0) {
+                staged.close();   // past a checkpoint: adding the same file again resumes from there
+            } else {
+                if (staged != null) staged.discard();
+                keys.shred(keyId);
+            }
+            throw e;
+        } finally {
+            if (deflater != null) deflater.end();
+            if (staged != null) stagingInUse.remove(staged.part());
+        }
+        index.put(VaultIndex.Entry.of(vaultName, hdr, stored, System.currentTimeMillis()));
+        if (staged != null) upload(vaultName);
+        return vaultName;
+    }
+
+    /**
+     * Decrypts the item open on {@code ch} (positioned after its header). Fixed-layout payloads go through
+     * {@link SegmentPipeline}; streaming and v1 items through the stream path.
+     */
+    private void decryptPayload(VaultHeader hdr, FileChannel ch, WritableByteChannel out)
+            throws IOException, GeneralSecurityException {
+        if (hdr.version == VaultHeader.VERSION_1 || !SegmentPipeline.applies(hdr.originalSize)) {
+            decryptPayload(hdr, new BufferedInputStream(Channels.newInputStream(ch), SEGMENT_SIZE + SegmentCipher.TAG_BYTES),
+                    Channels.newOutputStream(out));
+        } else if (hdr.isManifest()) {
+            OutputStream sink = chunks.manifestSink(Channels.newOutputStream(out), hdr.logicalSize(), 0, hdr.logicalSize());
+            SegmentPipeline.decrypt(itemKey(hdr), hdr, ch, Channels.newChannel(sink), pipelineThreads, buffers,
+                    mappedReads);
+            sink.close();
+        } else {
+            SegmentPipeline.decrypt(itemKey(hdr), hdr, ch, out, pipelineThreads, buffers, mappedReads);
+        }
+    }
+
+    private void decryptPayload(VaultHeader hdr, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        if (hdr.version == VaultHeader.VERSION_1) {
+            // legacy single-message item: the JDK buffers the whole plaintext until the tag is checked
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, dataKey, new GCMParameterSpec(GCM_TAG_BITS, hdr.iv));
+            try (CipherInputStream cin = new CipherInputStream(in, cipher)) {
+                copy(cin, out);
+            }
+        } else if (hdr.isManifest()) {
+            OutputStream sink = chunks.manifestSink(out, hdr.logicalSize(), 0, hdr.logicalSize());
+            SegmentCipher.decrypt(itemKey(hdr), hdr, in, sink);
+            sink.close();
+        } else if (hdr.isCompressed()) {
+            OutputStream sink = Compression.inflatingSink(out, hdr.logicalSize(), 0, hdr.logicalSize());
+            SegmentCipher.decrypt(itemKey(hdr), hdr, in, sink);
+            sink.close();
+        } else {
+            SegmentCipher.decrypt(itemKey(hdr), hdr, in, out);
+        }
+    }
+
+    /**
+     * Claims a unique item name for {@code baseName} by creating its part file in the staging
+     * directory; the name is recorded in the staged write (and its journal, if any) as "item".
+     */
+    private StagedWrite newStagedItem(String baseName, Properties journal) throws IOException {
+        String stem = sanitizeName(baseName + "_" + System.currentTimeMillis());
+        Properties fields = journal != null ? journal : new Properties();
+        synchronized (nameLock) {
+            for (int n = 0; ; n++) {
+                String name = n == 0 ? stem + VAULT_EXT : stem + "-" + n + VAULT_EXT;
+                if (nameTaken(name)) continue;
+                fields.setProperty("item", name);
+                try {
+                    StagedWrite w = StagedWrite.create(stagingDir.resolve(name + StagedWrite.PART_SUFFIX), fields,
+                            journal != null);
+                    stagingInUse.add(w.part());
+                    return w;
+                } catch (FileAlreadyExistsException e) {
+                    // same name and millisecond as another add; try the next suffix
+                }
+            }
+        }
+    }
+
+    /** True if an item, packed, standalone or still being written, already has {@code name}. */
+    private boolean nameTaken(String name) {
+        return packs.contains(name) || Files.exists(vaultDir.resolve(name)) || Files.exists(shardPath(vaultDir, name))
+                || Files.exists(stagingDir.resolve(name + StagedWrite.PART_SUFFIX));
+    }
+
+    /** Moves a complete staged item into its shard. */
+    private Path publishItem(StagedWrite staged, String name) throws IOException {
+        Path dest = shardPath(vaultDir, name);
+        Files.createDirectories(dest.getParent());
+        staged.publish(dest);
+        protect(dest);
+        return dest;
+    }
+
+    /**
+     * Writes the parity sidecar of item file {@code file} if parity is on. Best effort: the item
+     * is complete without it, and a scrub writes any that are missing.
+     */
+    private void protect(Path file) {
+        if (parity == null) return;
+        try {
+            Parity.create(file, parity, pipelineThreads);
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(Parity.sidecar(file));   // never leave one that does not match
+            } catch (IOException ignored) {
+                // repair checks the recorded length and CRCs before trusting it anyway
+            }
+        }
+    }
+
+    /** What identifies an add of {@code src} in its journal: path, size and modification time. */
+    private static Properties sourceJournal(Path src, FileChannel ch) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("source", src.toAbsolutePath().normalize().toString());
+        p.setProperty("sourceSize", String.valueOf(ch.size()));
+        p.setProperty("sourceModified", String.valueOf(Files.getLastModifiedTime(src).toMillis()));
+        return p;
+    }
+
+    /**
+     * Finishes an earlier add of {@code src} that was cut short, from its last checkpoint. Returns
+     * null if there is none; one whose source has changed since is dropped.
+     */
+    private String resumeAdd(Path src, FileChannel source) throws IOException, GeneralSecurityException {
+        Properties now = sourceJournal(src, source);
+        for (Path j : StagedWrite.findJournals(stagingDir, "source", now.getProperty("source"))) {
+            Path part = StagedWrite.partFor(j);
+            if (!stagingInUse.add(part)) continue;   // another thread is writing it
+            try {
+                StagedWrite staged;
+                try {
+                    staged = StagedWrite.resume(j);
+                } catch (NoSuchFileException e) {
+                    Files.deleteIfExists(j);
+                    continue;
+                }
+                VaultHeader hdr = stagedHeader(staged);
+                if (hdr == null || hdr.originalSize != source.size()
+                        || !now.getProperty("sourceSize").equals(staged.get("sourceSize"))
+                        || !now.getProperty("sourceModified").equals(staged.get("sourceModified"))) {
+                    discardStaged(staged, hdr);
+                    continue;
+                }
+                String name = staged.get("item");
+                try {
+                    SegmentPipeline.encrypt(itemKey(hdr), hdr, source, 0, staged.segmentsDone(),
+                            staged.appendSegments(hdr.length(), hdr.segmentSize + SegmentCipher.TAG_BYTES),
+                            pipelineThreads, buffers);
+                    long stored = Files.size(publishItem(staged, name));
+                    index.put(VaultIndex.Entry.of(name, hdr, stored, System.currentTimeMillis()));
+                    upload(name);
+                    return name;
+                } catch (IOException e) {
+                    staged.close();   // keep it for the next attempt
+                    throw e;
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    discardStaged(staged, hdr);
+                    throw e;
+                }
+            } finally {
+                stagingInUse.remove(part);
+            }
+        }
+        return null;
+    }
+
+    /** The header at the start of a staged item, or null if it cannot be read. */
+    private static VaultHeader stagedHeader(StagedWrite staged) {
+        try {
+            return VaultHeader.read(new BufferedInputStream(Channels.newInputStream(staged.channel().position(0)), 4096));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Abandons a staged item for good, destroying its item key. */
+    private void discardStaged(StagedWrite staged, VaultHeader hdr) throws IOException {
+        byte[] keyId = hdr == null ? null : hdr.ext.get(VaultHeader.EXT_KEY_ID);
+        if (keyId != null) keys.shred(keyId);
+        staged.discard();
+    }
+
+    /**
+     * Cleans up after adds that were cut short: part files without a journal are deleted (and their
+     * item keys destroyed); journaled ones are kept for resuming.
+     */
+    private static void recoverStaging(Path stagingDir, KeyTable keys, List<String> notices) throws IOException {
+        Files.createDirectories(stagingDir);
+        int resumable = 0, dropped = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(stagingDir)) {
+            for (Path p : ds) {
+                String n = p.getFileName().toString();
+                if (n.endsWith(StagedWrite.JOURNAL_SUFFIX)) {
+                    if (Files.exists(StagedWrite.partFor(p))) {
+                        resumable++;
+                    } else {
+                        Files.deleteIfExists(p);
+                    }
+                } else if (n.endsWith(StagedWrite.PART_SUFFIX) && !Files.exists(StagedWrite.journalFor(p))) {
+                    try (InputStream in = new BufferedInputStream(Files.newInputStream(p), 4096)) {
+                        byte[] keyId = VaultHeader.read(in).ext.get(VaultHeader.EXT_KEY_ID);
+                        if (keyId != null) keys.shred(keyId);
+                    } catch (IOException e) {
+                        // header never made it to disk: no ciphertext under that key either
+                    }
+                    Files.delete(p);
+                    dropped++;
+                } else if (n.endsWith(".tmp")) {
+                    Files.delete(p);   // journal rewrite that did not finish
+                }
+            }
+        }
+        if (dropped > 0) notices.add("Removed " + dropped + " incomplete items left by interrupted adds.");
+        if (resumable > 0) {
+            notices.add(resumable + " interrupted adds can resume: add the same files again to continue where they stopped.");
+        }
+    }
+
+    /** Appends a sealed item to the pack store under a unique name for {@code baseName} and returns the name. */
+    private String newPackedItem(String baseName, byte[] item) throws IOException {
+        String stem = sanitizeName(baseName + "_" + System.currentTimeMillis());
+        synchronized (nameLock) {
+            for (int n = 0; ; n++) {
+                String name = n == 0 ? stem + VAULT_EXT : stem + "-" + n + VAULT_EXT;
+                if (nameTaken(name)) continue;
+                packs.append(name, item);
+                return name;
+            }
+        }
+    }
+
+    /** Key that decrypts a v2 item: its own key from the table, or the vault data key for items without one. */
+    private SecretKey itemKey(VaultHeader hdr) throws IOException, GeneralSecurityException {
+        byte[] keyId = hdr.ext.get(VaultHeader.EXT_KEY_ID);
+        if (keyId == null) return dataKey;
+        SecretKey k = keys.get(keyId);
+        if (k == null) throw new GeneralSecurityException("Item key has been destroyed (item was deleted)");
+        return k;
+    }
+
+    private <T> CompletableFuture<T> async(Callable<T> task) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        try {
+            pool.execute(() -> {
+                try {
+                    f.complete(task.call());
+                } catch (Throwable t) {
+                    f.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            f.completeExceptionally(new IOException("Vault engine is closed", e));
+        }
+        return f;
+    }
+
+    /** Opens the item index, rebuilding it from the item headers if it is missing or unreadable. */
+    private static VaultIndex openIndex(Path vaultDir, PackStore packs, VaultStore store, SecretKeySpec dataKey,
+                                        List<String> notices)
+            throws IOException, GeneralSecurityException {
+        Path file = vaultDir.resolve(INDEX_NAME);
+        SecretKey indexKey = KeyWrap.aesKey(dataKey.getEncoded(), INDEX_LABEL);
+        boolean rebuild = !Files.exists(file);
+        VaultIndex index;
+        try {
+            index = VaultIndex.open(file, indexKey);
+        } catch (IOException | GeneralSecurityException e) {
+            notices.add("Vault index was unreadable (" + e.getMessage() + "); rebuilt it from the item headers.");
+            Files.delete(file);
+            index = VaultIndex.open(file, indexKey);
+            rebuild = true;
+        }
+        if (rebuild) {
+            try {
+                rebuildIndex(vaultDir, packs, store, index);
+            } catch (IOException | GeneralSecurityException e) {
+                index.close();
+                throw e;
+            }
+        }
+        return index;
+    }
+
+    private static int[] rebuildIndex(Path vaultDir, PackStore packs, VaultStore store, VaultIndex index)
+            throws IOException, GeneralSecurityException {
+        List<VaultIndex.Entry> entries = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger skipped = new AtomicInteger();
+        // the flat directory of older vaults, then each top-level shard, each listed on its own thread
+        List<Path> dirs = new ArrayList<>();
+        dirs.add(vaultDir);
+        Path shards = vaultDir.resolve(ITEM_DIR_NAME);
+        if (Files.isDirectory(shards)) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(shards, Files::isDirectory)) {
+                ds.forEach(dirs::add);
+            }
+        }
+        ExecutorService scanners = Executors.newFixedThreadPool(Math.min(SHARD_SCAN_THREADS, dirs.size()), r -> {
+            Thread t = new Thread(r, "vault-scan");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> scans = new ArrayList<>(dirs.size());
+            for (Path dir : dirs) {
+                int depth = dir.equals(vaultDir) ? 0 : 1;
+                scans.add(scanners.submit(() -> {
+                    scanItemFiles(dir, depth, entries, skipped);
+                    return null;
+                }));
+            }
+            for (Future<?> f : scans) f.get();
+            if (store != null) {
+                // items only the store holds: read just their headers
+                Set<String> local = new HashSet<>();
+                for (VaultIndex.Entry e : entries) local.add(e.itemName);
+                scans.clear();
+                for (VaultStore.StoredObject o : store.list(STORE_ITEM_PREFIX)) {
+                    String name = o.key.substring(STORE_ITEM_PREFIX.length());
+                    if (!name.endsWith(VAULT_EXT) || name.contains("/") || local.contains(name)) continue;
+                    scans.add(scanners.submit(() -> {
+                        try {
+                            byte[] head = store.getRange(o.key, 0, VaultHeader.MAX_LENGTH);
+                            entries.add(VaultIndex.Entry.of(name, VaultHeader.read(new ByteArrayInputStream(head)),
+                                    o.size, o.modifiedMillis));
+                        } catch (IOException e) {
+                            skipped.incrementAndGet();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : scans) f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while listing vault items");
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) throw (IOException) c;
+            if (c instanceof RuntimeException) throw (RuntimeException) c;
+            if (c instanceof Error) throw (Error) c;
+            throw new IOException(c);
+        } finally {
+            scanners.shutdownNow();
+        }
+        for (String name : packs.names()) {
+            try {
+                byte[] item = packs.read(name);
+                if (item == null) continue;   // deleted meanwhile
+                entries.add(VaultIndex.Entry.of(name, VaultHeader.read(new ByteArrayInputStream(item)), item.length,
+                        packs.addedMillis(name)));
+            } catch (IOException e) {
+                skipped.incrementAndGet();
+            }
+        }
+        index.replaceAll(entries);
+        return new int[]{entries.size(), skipped.get()};
+    }
+
+    /** Adds an entry for every item file in {@code dir}, descending {@code depth} more directory levels. */
+    private static void scanItemFiles(Path dir, int depth, List<VaultIndex.Entry> entries, AtomicInteger skipped)
+            throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                if (depth > 0 && Files.isDirectory(p)) {
+                    scanItemFiles(p, depth - 1, entries, skipped);
+                } else if (name.endsWith(VAULT_EXT) && Files.isRegularFile(p)) {
+                    try (InputStream in = new BufferedInputStream(Files.newInputStream(p), 4096)) {
+                        VaultHeader hdr = VaultHeader.read(in);
+                        entries.add(VaultIndex.Entry.of(name, hdr, Files.size(p), Files.getLastModifiedTime(p).toMillis()));
+                    } catch (IOException e) {
+                        skipped.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /** True if any item file sits directly in the vault directory (the layout before shards). */
+    private static boolean hasFlatItems(Path vaultDir) throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(vaultDir, "*" + VAULT_EXT)) {
+            return ds.iterator().hasNext();
+        }
+    }
+
+    /**
+     * Brings the object store up to date: uploads the item files (and parity) it lacks or holds at
+     * a different size and, without "storeKeepLocal", drops the local copies it holds. Packed items
+     * stay in their packs. Returns {items uploaded, local copies dropped, items that failed}.
+     */
+    int[] syncStore() throws IOException {
+        if (store == null) throw new IOException("No object store is configured (\"store\" in " + META_FILE_NAME + ").");
+        Map<String, Long> stored = new HashMap<>();
+        for (VaultStore.StoredObject o : store.list(STORE_ITEM_PREFIX)) stored.put(o.key, o.size);
+        int uploaded = 0, dropped = 0, failed = 0;
+        for (VaultIndex.Entry e : index.list()) {
+            if (packs.contains(e.itemName)) continue;
+            moveLock.readLock().lock();
+            try {
+                Path file;
+                try {
+                    file = itemPath(e.itemName);
+                } catch (NoSuchFileException ex) {
+                    continue;   // only in the store already, or deleted meanwhile
+                }
+                if (push(e.itemName, file, stored)) uploaded++;
+                if (!keepLocal) dropped++;
+            } catch (IOException ex) {
+                if (ex instanceof InterruptedIOException) throw ex;
+                failed++;
+            } finally {
+                moveLock.readLock().unlock();
+            }
+        }
+        return new int[]{uploaded, dropped, failed};
+    }
+
+    /** Where item files are copied to, or null if there is no store. */
+    VaultStore store() {
+        return store;
+    }
+
+    /**
+     * Moves item files from the flat vault directory into their shards while the vault stays in
+     * use; each move is one atomic rename. Returns {items moved, items that could not be moved}.
+     */
+    int[] migrateToShards() throws IOException {
+        int moved = 0, failed = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(vaultDir, "*" + VAULT_EXT)) {
+            for (Path flat : ds) {
+                if (!Files.isRegularFile(flat)) continue;
+                Path sharded = shardPath(vaultDir, flat.getFileName().toString());
+                moveLock.writeLock().lock();
+                try {
+                    if (Files.exists(sharded)) {
+                        failed++;   // a rename would silently replace it
+                        continue;
+                    }
+                    Files.createDirectories(sharded.getParent());
+                    Files.move(flat, sharded, StandardCopyOption.ATOMIC_MOVE);
+                    moved++;
+                    if (Files.exists(Parity.sidecar(flat))) {
+                        Files.move(Parity.sidecar(flat), Parity.sidecar(sharded), StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } catch (NoSuchFileException e) {
+                    // deleted meanwhile
+                } catch (IOException e) {
+                    failed++;
+                } finally {
+                    moveLock.writeLock().unlock();
+                }
+            }
+        }
+        return new int[]{moved, failed};
+    }
+
+    /** Applies the "cipherSuite" setting, probing (and recording the result in {@code meta}) when it is auto. */
+    private static CipherSuite chooseSuite(Properties meta, List<String> notices) {
+        String setting = meta.getProperty("cipherSuite", "auto");
+        if (!setting.equalsIgnoreCase("auto")) {
+            try {
+                CipherSuite s = CipherSuite.valueOf(setting.toUpperCase(Locale.ROOT));
+                if (s.isAvailable()) return s;
+                notices.add("Cipher suite " + setting + " is not available on this JVM; using auto selection.");
+            } catch (IllegalArgumentException e) {
+                notices.add("Unknown cipherSuite setting '" + setting + "'; using auto selection.");
+            }
+        }
+        String fingerprint = platformFingerprint();
+        if (fingerprint.equals(meta.getProperty("probeFingerprint"))) {
+            try {
+                CipherSuite s = CipherSuite.valueOf(meta.getProperty("probedSuite", ""));
+                if (s.isAvailable()) return s;
+            } catch (IllegalArgumentException e) {
+                // stale or hand-edited value; probe again
+            }
+        }
+        CipherSuite s = CipherSuite.probe(SUITE_PROBE_MILLIS);
+        meta.setProperty("probedSuite", s.name());
+        meta.setProperty("probeFingerprint", fingerprint);
+        notices.add("Timed the cipher suites on this machine; new items use " + s.displayName + ".");
+        return s;
+    }
+
+    /** Changes when the CPU, the JVM or its crypto intrinsics change, so a remembered probe result goes stale. */
+    private static String platformFingerprint() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(System.getProperty("os.arch")).append('/')
+          .append(System.getProperty("java.vm.name")).append(' ').append(System.getProperty("java.vm.version")).append('/')
+          .append(Runtime.getRuntime().availableProcessors());
+        com.sun.management.HotSpotDiagnosticMXBean hs;
+        try {
+            hs = java.lang.management.ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+        } catch (RuntimeException | LinkageError e) {
+            return sb.toString();   // not HotSpot; the rest still identifies the platform
+        }
+        for (String flag : new String[]{"UseAES", "UseAESIntrinsics", "UseAESCTRIntrinsics", "UseGHASHIntrinsics"}) {
+            String value;
+            try {
+                value = hs.getVMOption(flag).getValue();
+            } catch (IllegalArgumentException e) {
+                value = "n/a";   // flag not exposed on this CPU or JVM
+            }
+            sb.append('/').append(flag).append('=').append(value);
+        }
+        return sb.toString();
+    }
+
+    /** A positive integer tuning property from {@code meta}, or {@code def} (with a notice) if it is unusable. */
+    static int intSetting(Properties meta, String name, int def, int min, List<String> notices) {
+        String v = meta.getProperty(name);
+        if (v == null) return def;
+        try {
+            int n = Integer.parseInt(v.trim());
+            if (n >= min) return n;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        notices.add("Ignoring " + name + "=" + v + " (must be a number >= " + min + "); using " + def + ".");
+        return def;
+    }
+
+    /** The "parity" setting: k+m, or absent / "off" for none. */
+    private static Parity.Scheme paritySetting(Properties meta, List<String> notices) {
+        String v = meta.getProperty("parity");
+        if (v == null || v.trim().isEmpty() || v.trim().equalsIgnoreCase("off")) return null;
+        try {
+            return Parity.Scheme.parse(v);
+        } catch (IllegalArgumentException e) {
+            notices.add("Ignoring parity=" + v + " (" + e.getMessage() + "); items get no parity.");
+            return null;
+        }
+    }
+
+    // ===== Meta (properties) handling =====
+    private static Properties loadMeta(Path vaultDir) throws IOException {
+        Properties p = new Properties();
+        Path metaPath = vaultDir.resolve(META_FILE_NAME);
+        if (Files.exists(metaPath)) {
+            try (InputStream in = Files.newInputStream(metaPath)) {
+                p.load(in);
+            }
+        }
+        return p;
+    }
+
+    private static void saveMeta(Properties meta, Path vaultDir, byte[] salt, byte[] wrappedKey, Kdf kdf, int failed, long lockUntil) throws IOException {
+        meta.setProperty("salt", Base64.getEncoder().encodeToString(salt));
+        if (wrappedKey != null) {
+            meta.setProperty("wrappedKey", Base64.getEncoder().encodeToString(wrappedKey));
+            meta.remove("hash"); // legacy: was the password-derived key itself
+        }
+        kdf.store(meta);
+        meta.setProperty("failed", String.valueOf(failed));
+        meta.setProperty("lockUntil", String.valueOf(lockUntil));
+        writeMeta(meta, vaultDir);
+    }
+
+    /**
+     * Replaces vault.properties atomically: it holds the only copy of the wrapped data key, so a
+     * crash or full disk part-way through must leave the old file, never a truncated one.
+     */
+    private static void writeMeta(Properties meta, Path vaultDir) throws IOException {
+        Path metaPath = vaultDir.resolve(META_FILE_NAME);
+        Path tmp = metaPath.resolveSibling(META_FILE_NAME + ".tmp");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        meta.store(bos, "SecureVault metadata – DO NOT SHARE");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            SegmentPipeline.write(ch, ByteBuffer.wrap(bos.toByteArray()));
+            ch.force(true);
+        }
+        Files.move(tmp, metaPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        StagedWrite.forceDirectory(vaultDir);
+    }
+
+    // ===== Key hierarchy =====
+    private static byte[] wrapDataKey(byte[] pwKey, byte[] dataKey) throws GeneralSecurityException {
+        return KeyWrap.wrap(KeyWrap.aesKey(pwKey, KEK_LABEL), dataKey, DATA_KEY_AAD);
+    }
+
+    /**
+     * Returns the vault data key, or null if {@code pwKey} is not derived from the right password.
+     * Vaults created before key wrapping used the password-derived key itself as the data key
+     * (stored as "hash"); that key is returned as-is so their items stay readable.
+     */
+    private static byte[] unlockDataKey(Properties meta, byte[] pwKey) throws GeneralSecurityException {
+        String wrapped = meta.getProperty("wrappedKey");
+        if (wrapped == null) {
+            byte[] expectedHash = Base64.getDecoder().decode(meta.getProperty("hash"));
+            return MessageDigest.isEqual(expectedHash, pwKey) ? pwKey.clone() : null;
+        }
+        try {
+            return KeyWrap.unwrap(KeyWrap.aesKey(pwKey, KEK_LABEL), Base64.getDecoder().decode(wrapped), DATA_KEY_AAD);
+        } catch (AEADBadTagException e) {
+            return null;
+        }
+    }
+
+    // ===== Helpers =====
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+    }
+
+    private static String sanitizeName(String s) {
+        return s.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static void clearKey(byte[] key) {
+        if (key != null) {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Overwrites {@code file} as configured ("wipePasses", "wipePattern") and deletes it before
+     * returning, at full speed rather than under "wipeRateMiB": it is usually a plaintext original.
+     * If that is cut short the background queue finishes it, from where it stopped.
+     */
+    void secureDeleteFile(Path file) throws IOException {
+        wipes.wipeNow(file);
+    }
+
+    /** True if {@code itemName} is stored in a pack file rather than a file of its own. */
+    boolean isPacked(String itemName) {
+        return packs.contains(itemName);
+    }
+
+    /** Files deleted but not yet overwritten. */
+    int pendingWipes() {
+        return wipes.size();
+    }
+
+    /**
+     * One message per background wipe that failed since the last call. The files stay queued and
+     * are tried again the next time the vault is opened.
+     */
+    List<String> wipeFailures() {
+        return wipes.takeFailures();
+    }
+
+    /** Overwrite passes a paranoid delete makes. */
+    int wipePasses() {
+        return wiper.passes();
+    }
+}
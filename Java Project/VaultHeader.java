@@ -0,0 +1,209 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.*;
+
+/**
+ * Per-item header written at the start of every vault file.
+ *
+ * <pre>
+ * v1: MAGIC(4) | VERSION(1) | IV(12) | nameLen(2) | name | size(8)
+ * v2: MAGIC(4) | VERSION(1) | IV(12) | nameLen(2) | name | size(8) | segSize(4) | extLen(2) | ext
+ * </pre>
+ *
+ * v1 items are one AES/GCM message over the whole payload. v2 items are a sequence of
+ * independently authenticated segments (see {@link SegmentCipher}); the encoded v2 header
+ * is bound to every segment as AAD. The extension area is a list of
+ * {@code tag(1) | len(2) | value} records; tags with the high bit set are critical and
+ * must be understood by the reader.
+ */
+final class VaultHeader {
+    static final byte[] MAGIC = new byte[]{'S','V','L','T'}; // magic bytes
+    static final byte VERSION_1 = 1;                          // single GCM message
+    static final byte VERSION_2 = 2;                          // segmented STREAM payload
+    static final int IV_BYTES   = 12;                         // GCM nonce / STREAM nonce base
+    static final int MAX_LENGTH = 4 + 1 + IV_BYTES + 2 + 0xFFFF + 8 + 4 + 2 + 0xFFFF;   // longest header read() accepts
+    static final long UNKNOWN_SIZE = -1;                      // v2 payload size not known when the header was written
+    static final int MAX_SEGMENT_SIZE = 16 << 20;             // largest v2 segment read() accepts; sized before authentication
+
+    // ===== v2 extension tags (0x80 bit = critical) =====
+    static final int EXT_KEY_ID = 0x81;                       // per-item key id in the KeyTable
+    static final int EXT_MANIFEST = 0x82;                     // payload is a ChunkStore manifest; value = logical size(8)
+    static final int EXT_DEFLATE  = 0x83;                     // payload is zlib-deflated; value = level(1) | logical size(8)
+    static final int EXT_SUITE    = 0x84;                     // CipherSuite id(1); absent = AES-GCM
+
+    int version;
+    byte[] iv;
+    String originalName;
+    long originalSize;
+    int segmentSize;                                  // v2 only: plaintext bytes per segment
+    final SortedMap<Integer, byte[]> ext = new TreeMap<>(); // v2 only: extension records
+    private byte[] encoded;                           // exact header bytes as read/written
+
+    static VaultHeader create(String originalName, long originalSize, byte[] iv, int segmentSize) {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) throw new IllegalArgumentException("Bad segment size");
+        VaultHeader hdr = new VaultHeader();
+        hdr.version = VERSION_2;
+        hdr.iv = iv.clone();
+        hdr.originalName = originalName;
+        hdr.originalSize = originalSize;
+        hdr.segmentSize = segmentSize;
+        return hdr;
+    }
+
+    /** True if the payload is a list of chunk refs rather than the file content itself. */
+    boolean isManifest() {
+        return ext.containsKey(EXT_MANIFEST);
+    }
+
+    /** True if the payload has to be inflated after decryption. */
+    boolean isCompressed() {
+        return ext.containsKey(EXT_DEFLATE);
+    }
+
+    /** Deflate level the payload was written with, or 0 if it is stored uncompressed. */
+    int compressionLevel() {
+        byte[] v = ext.get(EXT_DEFLATE);
+        return v == null ? 0 : v[0];
+    }
+
+    /** Size of the file this item restores to (for manifests and compressed items, not the size of the payload). */
+    long logicalSize() {
+        byte[] v = ext.get(EXT_MANIFEST);
+        if (v != null) return ByteBuffer.wrap(v).getLong();
+        v = ext.get(EXT_DEFLATE);
+        if (v != null) return ByteBuffer.wrap(v, 1, 8).getLong();
+        return originalSize;
+    }
+
+    void markManifest(long logicalSize) {
+        ext.put(EXT_MANIFEST, ByteBuffer.allocate(8).putLong(logicalSize).array());
+    }
+
+    void markCompressed(int level, long logicalSize) {
+        ext.put(EXT_DEFLATE, ByteBuffer.allocate(9).put((byte) level).putLong(logicalSize).array());
+    }
+
+    /** Suite the payload is sealed with. */
+    CipherSuite suite() throws GeneralSecurityException {
+        byte[] v = ext.get(EXT_SUITE);
+        return v == null ? CipherSuite.DEFAULT : CipherSuite.byId(v[0] & 0xFF);
+    }
+
+    /** Records {@code suite}; the default is left implicit so such items stay readable by older versions. */
+    void setSuite(CipherSuite suite) {
+        if (suite == CipherSuite.DEFAULT) {
+            ext.remove(EXT_SUITE);
+        } else {
+            ext.put(EXT_SUITE, new byte[]{(byte) suite.id});
+        }
+    }
+
+    /** Encoded header bytes; for v2 this is also the AAD of every segment. */
+    byte[] encoded() throws IOException {
+        if (encoded == null) {
+            encoded = encode();
+        }
+        return encoded;
+    }
+
+    /** Length of the header on disk, i.e. the offset of the first payload byte. */
+    int length() throws IOException {
+        return encoded().length;
+    }
+
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.write(MAGIC);
+        out.writeByte(version);
+        out.write(iv);
+        byte[] nameBytes = originalName.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 65535) throw new IOException("Filename too long");
+        out.writeShort(nameBytes.length);
+        out.write(nameBytes);
+        out.writeLong(originalSize);
+        if (version >= VERSION_2) {
+            out.writeInt(segmentSize);
+            ByteArrayOutputStream extBytes = new ByteArrayOutputStream();
+            DataOutputStream extOut = new DataOutputStream(extBytes);
+            for (Map.Entry<Integer, byte[]> e : ext.entrySet()) {
+                extOut.writeByte(e.getKey());
+                extOut.writeShort(e.getValue().length);
+                extOut.write(e.getValue());
+            }
+            if (extBytes.size() > 65535) throw new IOException("Header extensions too large");
+            out.writeShort(extBytes.size());
+            extBytes.writeTo(out);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    static VaultHeader read(InputStream in) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(64);
+        byte[] magic = readExactly(in, 4, raw);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Bad magic - not a valid vault file");
+        int ver = readExactly(in, 1, raw)[0];
+        if (ver != VERSION_1 && ver != VERSION_2) throw new IOException("Unsupported version: " + ver);
+        VaultHeader hdr = new VaultHeader();
+        hdr.version = ver;
+        hdr.iv = readExactly(in, IV_BYTES, raw);
+        int nameLen = u16(readExactly(in, 2, raw));
+        hdr.originalName = new String(readExactly(in, nameLen, raw), StandardCharsets.UTF_8);
+        hdr.originalSize = new DataInputStream(new ByteArrayInputStream(readExactly(in, 8, raw))).readLong();
+        if (hdr.originalSize < 0 && !(ver >= VERSION_2 && hdr.originalSize == UNKNOWN_SIZE)) {
+            throw new IOException("Corrupt header: negative size");
+        }
+        if (ver >= VERSION_2) {
+            hdr.segmentSize = new DataInputStream(new ByteArrayInputStream(readExactly(in, 4, raw))).readInt();
+            if (hdr.segmentSize <= 0 || hdr.segmentSize > MAX_SEGMENT_SIZE) {
+                throw new IOException("Corrupt header: bad segment size");
+            }
+            int extLen = u16(readExactly(in, 2, raw));
+            DataInputStream ext = new DataInputStream(new ByteArrayInputStream(readExactly(in, extLen, raw)));
+            while (ext.available() > 0) {
+                int tag = ext.readUnsignedByte();
+                byte[] value = new byte[ext.readUnsignedShort()];
+                ext.readFully(value);
+                hdr.ext.put(tag, value);
+            }
+            for (int tag : hdr.ext.keySet()) {
+                if ((tag & 0x80) != 0 && !isKnownCriticalTag(tag)) {
+                    throw new IOException("Unsupported header extension: 0x" + Integer.toHexString(tag));
+                }
+            }
+            byte[] manifest = hdr.ext.get(EXT_MANIFEST);
+            if (manifest != null && manifest.length != 8) throw new IOException("Corrupt header: bad manifest extension");
+            byte[] deflate = hdr.ext.get(EXT_DEFLATE);
+            if (deflate != null && deflate.length != 9) throw new IOException("Corrupt header: bad compression extension");
+            byte[] suite = hdr.ext.get(EXT_SUITE);
+            if (suite != null) {
+                if (suite.length != 1) throw new IOException("Corrupt header: bad cipher suite extension");
+                try {
+                    CipherSuite.byId(suite[0] & 0xFF);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+        }
+        hdr.encoded = raw.toByteArray();
+        return hdr;
+    }
+
+    private static boolean isKnownCriticalTag(int tag) {
+        return tag == EXT_KEY_ID || tag == EXT_MANIFEST || tag == EXT_DEFLATE || tag == EXT_SUITE;
+    }
+
+    private static byte[] readExactly(InputStream in, int n, ByteArrayOutputStream raw) throws IOException {
+        byte[] b = in.readNBytes(n);
+        if (b.length != n) throw new EOFException("Truncated vault header");
+        raw.write(b);
+        return b;
+    }
+
+    private static int u16(byte[] b) {
+        return ((b[0] & 0xFF) << 8) | (b[1] & 0xFF);
+    }
+}
@@ -0,0 +1,325 @@
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * Encrypted, append-only index of vault items, replayed into memory on open so that
+ * list, lookup and count never touch the item files.
+ *
+ * <pre>
+ * file:   "SVIX" | version(1) | reserved(3) | record*
+ * record: len(4) | nonce(12) | AES/GCM(op | fields) | tag(16)     AAD = record sequence number
+ * </pre>
+ *
+ * Adds and deletes append one record each. Once superseded records outnumber live
+ * entries the log is compacted into a fresh file and atomically swapped in. A torn
+ * record at the tail (crash mid-append) is cut off on open; any other damage makes
+ * {@link #open} fail so the caller can rebuild the index from the item headers.
+ *
+ * Appends are group-committed: {@link #put} and {@link #remove} write their record
+ * under the index lock, then wait outside it until a force covers the record. One
+ * thread forces at a time, covering every record written so far, so concurrent adds
+ * share one sync instead of queueing one each behind the lock.
+ */
+final class VaultIndex implements Closeable {
+    private static final byte[] MAGIC = new byte[]{'S','V','I','X'};
+    private static final byte VERSION = 2;     // v2 added entry flags; older logs are rebuilt
+    private static final int FILE_HDR = 8;
+    private static final int NONCE_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final int MAX_RECORD = 1 << 20;
+    private static final int COMPACT_MIN_DEAD = 1024;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_DEL = 2;
+    private static final int FLAG_DEDUP = 1;
+    private static final int FLAG_COMPRESSED = 2;
+
+    private static final SecureRandom RNG = new SecureRandom();
+
+    /** One indexed item. */
+    static final class Entry {
+        String itemName;       // vault file name, e.g. report.pdf_1723456789.sv
+        String originalName;
+        long originalSize;
+        long storedSize;       // bytes on disk, header included
+        long addedMillis;
+        int version;           // header version
+        int headerLength;      // offset of the first payload byte
+        int segmentSize;       // v2 only
+        boolean deduplicated;  // payload is a ChunkStore manifest; originalSize is the logical size
+        boolean compressed;    // payload is deflated; originalSize is the logical size
+
+        static Entry of(String itemName, VaultHeader hdr, long storedSize, long addedMillis) throws IOException {
+            Entry e = new Entry();
+            e.itemName = itemName;
+            e.originalName = hdr.originalName;
+            e.originalSize = hdr.logicalSize();
+            e.storedSize = storedSize;
+            e.addedMillis = addedMillis;
+            e.version = hdr.version;
+            e.headerLength = hdr.length();
+            e.segmentSize = hdr.segmentSize;
+            e.deduplicated = hdr.isManifest();
+            e.compressed = hdr.isCompressed();
+            return e;
+        }
+    }
+
+    private final Path file;
+    private final SecretKey key;
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+    private FileChannel ch;
+    private long seq;      // records in the log
+    private long dead;     // records superseded by later ones
+    private long written;  // records appended since open, the last ticket handed out
+    private long synced;   // of those, the ones known to be on disk
+    private final Object syncLock = new Object();   // held by the thread forcing the log
+
+    private VaultIndex(Path file, SecretKey key) {
+        this.file = file;
+        this.key = key;
+    }
+
+    /** Opens (or creates) the index; throws if it is corrupt or was written under another key. */
+    static VaultIndex open(Path file, SecretKey key) throws IOException, GeneralSecurityException {
+        VaultIndex idx = new VaultIndex(file, key);
+        idx.ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            idx.load();
+        } catch (IOException | GeneralSecurityException e) {
+            idx.ch.close();
+            throw e;
+        }
+        return idx;
+    }
+
+    private void load() throws IOException, GeneralSecurityException {
+        if (ch.size() == 0) {
+            writeFileHeader(ch);
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch.position(0)), 1 << 16));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Bad magic - not a vault index");
+        if (in.readByte() != VERSION) throw new IOException("Unsupported index version");
+        in.readFully(new byte[3]);
+
+        long pos = FILE_HDR;
+        long size = ch.size();
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        while (pos < size) {
+            if (size - pos < 4) break;                       // torn length
+            int len = in.readInt();
+            if (len <= NONCE_BYTES || len > MAX_RECORD) throw new IOException("Corrupt index record at " + pos);
+            if (size - pos - 4 < len) break;                 // torn body
+            byte[] rec = new byte[len];
+            in.readFully(rec);
+            apply(open(cipher, rec, seq));
+            seq++;
+            pos += 4 + len;
+        }
+        if (pos < size) {
+            ch.truncate(pos);
+            ch.force(true);
+        }
+        ch.position(pos);
+    }
+
+    private void apply(byte[] plain) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+        byte op = in.readByte();
+        if (op == OP_ADD) {
+            Entry e = new Entry();
+            e.itemName = in.readUTF();
+            e.originalName = in.readUTF();
+            e.originalSize = in.readLong();
+            e.storedSize = in.readLong();
+            e.addedMillis = in.readLong();
+            e.version = in.readUnsignedByte();
+            e.headerLength = in.readInt();
+            e.segmentSize = in.readInt();
+            int flags = in.readUnsignedByte();
+            e.deduplicated = (flags & FLAG_DEDUP) != 0;
+            e.compressed = (flags & FLAG_COMPRESSED) != 0;
+            if (entries.put(e.itemName, e) != null) dead++;
+        } else if (op == OP_DEL) {
+            if (entries.remove(in.readUTF()) != null) dead++;
+            dead++;
+        } else {
+            throw new IOException("Unknown index op: " + op);
+        }
+    }
+
+    /** Adds or replaces {@code e}; its record is on disk when this returns. */
+    void put(Entry e) throws IOException, GeneralSecurityException {
+        long ticket;
+        synchronized (this) {
+            ticket = append(encodeAdd(e));
+            if (entries.put(e.itemName, e) != null) dead++;
+            maybeCompact();
+        }
+        sync(ticket);
+    }
+
+    /** Removes {@code itemName}, synced like {@link #put}; false if it was not indexed. */
+    boolean remove(String itemName) throws IOException, GeneralSecurityException {
+        long ticket;
+        synchronized (this) {
+            if (!entries.containsKey(itemName)) return false;
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeByte(OP_DEL);
+            out.writeUTF(itemName);
+            ticket = append(bos.toByteArray());
+            entries.remove(itemName);
+            dead += 2;
+            maybeCompact();
+        }
+        sync(ticket);
+        return true;
+    }
+
+    /** Returns once the record with {@code ticket} (and every one before it) is on disk. */
+    private void sync(long ticket) throws IOException {
+        synchronized (syncLock) {
+            FileChannel c;
+            long upTo;
+            synchronized (this) {
+                if (synced >= ticket) return;   // the force before ours, or a compaction, covered it
+                c = ch;
+                upTo = written;
+            }
+            try {
+                c.force(false);
+            } catch (ClosedChannelException e) {
+                // a compaction swapped the log in meanwhile; it syncs everything it holds
+                synchronized (this) {
+                    if (synced >= ticket) return;
+                }
+                throw e;
+            }
+            synchronized (this) {
+                synced = Math.max(synced, upTo);
+            }
+        }
+    }
+
+    synchronized Entry get(String itemName) {
+        return entries.get(itemName);
+    }
+
+    synchronized List<Entry> list() {
+        return new ArrayList<>(entries.values());
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** Replaces the whole index, e.g. after rebuilding it from the item headers. */
+    synchronized void replaceAll(Collection<Entry> all) throws IOException, GeneralSecurityException {
+        entries.clear();
+        for (Entry e : all) entries.put(e.itemName, e);
+        rewrite();
+    }
+
+    private void maybeCompact() throws IOException, GeneralSecurityException {
+        if (dead >= COMPACT_MIN_DEAD && dead > entries.size()) {
+            rewrite();
+        }
+    }
+
+    /** Writes the live entries to a fresh log and atomically swaps it in. */
+    private void rewrite() throws IOException, GeneralSecurityException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+             OutputStream os = new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16)) {
+            writeFileHeader(out);
+            long n = 0;
+            for (Entry e : entries.values()) {
+                byte[] rec = seal(cipher, encodeAdd(e), n++);
+                os.write(ByteBuffer.allocate(4).putInt(rec.length).array());
+                os.write(rec);
+            }
+            os.flush();
+            out.force(true);
+            seq = n;
+        }
+        ch.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        StagedWrite.forceDirectory(file.getParent());
+        ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ch.position(ch.size());
+        dead = 0;
+        synced = written;
+    }
+
+    /** Writes one record without waiting for the disk; returns its ticket for {@link #sync}. */
+    private long append(byte[] plain) throws IOException, GeneralSecurityException {
+        byte[] rec = seal(Cipher.getInstance("AES/GCM/NoPadding"), plain, seq);
+        ByteBuffer buf = ByteBuffer.allocate(4 + rec.length).putInt(rec.length).put(rec);
+        buf.flip();
+        while (buf.hasRemaining()) ch.write(buf);
+        seq++;
+        return ++written;
+    }
+
+    private static byte[] encodeAdd(Entry e) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(96);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(OP_ADD);
+        out.writeUTF(e.itemName);
+        out.writeUTF(e.originalName);
+        out.writeLong(e.originalSize);
+        out.writeLong(e.storedSize);
+        out.writeLong(e.addedMillis);
+        out.writeByte(e.version);
+        out.writeInt(e.headerLength);
+        out.writeInt(e.segmentSize);
+        out.writeByte((e.deduplicated ? FLAG_DEDUP : 0) | (e.compressed ? FLAG_COMPRESSED : 0));
+        return bos.toByteArray();
+    }
+
+    private byte[] seal(Cipher cipher, byte[] plain, long n) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        RNG.nextBytes(nonce);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+        cipher.updateAAD(ByteBuffer.allocate(8).putLong(n).array());
+        byte[] out = new byte[NONCE_BYTES + cipher.getOutputSize(plain.length)];
+        System.arraycopy(nonce, 0, out, 0, NONCE_BYTES);
+        cipher.doFinal(plain, 0, plain.length, out, NONCE_BYTES);
+        return out;
+    }
+
+    private byte[] open(Cipher cipher, byte[] rec, long n) throws GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, rec, 0, NONCE_BYTES));
+        cipher.updateAAD(ByteBuffer.allocate(8).putLong(n).array());
+        return cipher.doFinal(rec, NONCE_BYTES, rec.length - NONCE_BYTES);
+    }
+
+    private static void writeFileHeader(FileChannel ch) throws IOException {
+        ByteBuffer hdr = ByteBuffer.allocate(FILE_HDR).put(MAGIC).put(VERSION);
+        hdr.clear();
+        while (hdr.hasRemaining()) ch.write(hdr, hdr.position());
+        ch.position(FILE_HDR);
+        ch.force(true);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        ch.close();
+    }
+}
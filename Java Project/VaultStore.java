@@ -0,0 +1,97 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Where item ciphertext is kept besides the vault directory: a flat namespace of whole objects
+ * addressed by key, the model object stores offer. Keys are relative, '/'-separated names such as
+ * {@code items/report.pdf_1792170743663.sv}.
+ *
+ * Everything handed to a store is already encrypted and authenticated, so a store only has to
+ * keep bytes; whatever it returns is checked again when the item is decrypted.
+ *
+ * <pre>
+ * store=file:/mnt/backup/vault   a directory ({@link LocalStore})
+ * store=s3                       an S3-compatible bucket ({@link S3Store}):
+ *   storeBucket=my-bucket          required
+ *   storeRegion=us-east-1
+ *   storeEndpoint=https://host     default: AWS S3 in storeRegion; set it for other S3-compatible services
+ *   storePathStyle=false           bucket in the path rather than the host name (default: true with storeEndpoint)
+ *   storePrefix=                   prepended to every key
+ *   storePartMiB=16                multipart upload part and ranged GET size, at least 5
+ *   storeThreads=4                 parts in flight per upload or download
+ *   credentials come from AWS_ACCESS_KEY_ID, AWS_SECRET_ACCESS_KEY and AWS_SESSION_TOKEN, never from this file
+ * storeKeepLocal=true            false: drop local copies once uploaded; reading an item fetches it back
+ * </pre>
+ */
+interface VaultStore extends Closeable {
+
+    /** One object as listed. */
+    final class StoredObject {
+        final String key;
+        final long size;
+        final long modifiedMillis;
+
+        StoredObject(String key, long size, long modifiedMillis) {
+            this.key = key;
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+        }
+    }
+
+    /** Stores the contents of {@code file} as {@code key}, replacing any object there. */
+    void put(String key, Path file) throws IOException;
+
+    /**
+     * Bytes {@code [offset, offset+length)} of {@code key}; fewer at the end of the object, none
+     * past it. Throws {@link java.nio.file.NoSuchFileException} if there is no such object.
+     */
+    byte[] getRange(String key, long offset, int length) throws IOException;
+
+    /** Copies object {@code key} to {@code target}, replacing it; NoSuchFileException if missing. */
+    void fetch(String key, Path target) throws IOException;
+
+    /** The size of {@code key}, or -1 if there is no such object. */
+    long size(String key) throws IOException;
+
+    /** Every object whose key starts with {@code prefix}, in key order. */
+    List<StoredObject> list(String prefix) throws IOException;
+
+    /** Removes {@code key}; nothing happens if it does not exist. */
+    void delete(String key) throws IOException;
+
+    @Override
+    void close();
+
+    /**
+     * The store the "store" setting describes, or null if there is none. A setting that does not
+     * work out leaves a notice and no store, so the vault stays usable from its own directory.
+     */
+    static VaultStore configure(Properties meta, List<String> notices) {
+        String spec = meta.getProperty("store");
+        if (spec == null || spec.trim().isEmpty() || spec.trim().equalsIgnoreCase("off")) return null;
+        spec = spec.trim();
+        try {
+            if (spec.startsWith("file:")) return new LocalStore(Paths.get(spec.substring("file:".length())));
+            if (spec.equalsIgnoreCase("s3")) return S3Store.configure(meta, notices);
+            throw new IllegalArgumentException("expected file:<directory> or s3");
+        } catch (IOException | IllegalArgumentException e) {
+            notices.add("Ignoring store=" + spec + " (" + e.getMessage() + "); items stay in the vault directory only.");
+            return null;
+        }
+    }
+
+    /** Refuses keys that are empty, absolute or step outside the store. */
+    static String checkKey(String key) {
+        if (key.isEmpty() || key.startsWith("/") || key.endsWith("/") || key.contains("\\")) {
+            throw new IllegalArgumentException("Bad object key: " + key);
+        }
+        for (String part : key.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) throw new IllegalArgumentException("Bad object key: " + key);
+        }
+        return key;
+    }
+}
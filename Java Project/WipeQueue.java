@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Files waiting to be overwritten, worked off by one background thread so deletes return at once.
+ *
+ * The queue is the directory itself, so it survives restarts. A file on the same file system is
+ * renamed into it as {@code NNNNNNNNNNNN-name}, where the number is the queue position. A file
+ * that cannot be renamed there (an original on another disk) is renamed to a hidden
+ * {@code .name.NNNNNNNNNNNN.wipe} beside itself, and the queue gets {@code NNNNNNNNNNNN-name.ref}
+ * holding that path. The ref is written first, so a crash never strands the hidden file.
+ *
+ * Each entry is deleted only once its data has been overwritten and synced. How far a wipe has got
+ * is checkpointed in a hidden {@code .NNNNNNNNNNNN.progress} file (pass and offset), so an
+ * interrupted one carries on from there the next time the vault is opened. The background wiper
+ * writes through a {@link TokenBucket}, so a large wipe does not starve foreground I/O;
+ * {@link #wipeNow} is for files that must not wait, such as plaintext originals.
+ */
+final class WipeQueue {
+    static final String REF_SUFFIX = ".ref";
+
+    private static final String HIDDEN_SUFFIX = ".wipe";
+    private static final String PROGRESS_SUFFIX = ".progress";
+    private static final int SEQ_DIGITS = 12;
+
+    private final Path dir;
+    private final Wiper wiper;
+    private final TokenBucket throttle;    // null: unlimited
+    private final LinkedBlockingQueue<Path> pending = new LinkedBlockingQueue<>();
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final AtomicInteger outstanding = new AtomicInteger();   // queued plus the one being wiped
+    private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+    private volatile Thread worker;
+
+    /** A queue in {@code dir}, wiping at most {@code bytesPerSecond} (0: unlimited). */
+    WipeQueue(Path dir, Wiper wiper, long bytesPerSecond) {
+        this.dir = dir;
+        this.wiper = wiper;
+        this.throttle = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+    }
+
+    /** Picks up entries left from earlier sessions and starts the worker; returns how many there were. */
+    int start() throws IOException {
+        Files.createDirectories(dir);
+        List<Path> found = new ArrayList<>();
+        long maxSeq = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                String n = p.getFileName().toString();
+                if (n.endsWith(REF_SUFFIX + ".tmp")) {
+                    Files.delete(p);   // ref that was never committed; its file was never renamed
+                    continue;
+                }
+                if (n.endsWith(PROGRESS_SUFFIX + ".tmp")) {
+                    Files.delete(p);   // the progress file before it is the one that counts
+                    continue;
+                }
+                long seq = seqOf(n);
+                if (seq < 0) continue;
+                maxSeq = Math.max(maxSeq, seq);
+                found.add(p);
+            }
+        }
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, ".*" + PROGRESS_SUFFIX)) {
+            for (Path p : ds) {
+                boolean orphan = found.stream().noneMatch(e -> progressPath(e).equals(p));
+                if (orphan) Files.delete(p);   // its entry was done before the progress went
+            }
+        }
+        found.sort(null);   // fixed-width sequence numbers: name order is queue order
+        nextSeq.set(maxSeq + 1);
+        outstanding.addAndGet(found.size());
+        pending.addAll(found);
+        Thread t = new Thread(this::run, "vault-wipe");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        worker = t;
+        t.start();
+        return found.size();
+    }
+
+    /** Files not yet overwritten. */
+    int size() {
+        return outstanding.get();
+    }
+
+    /** Messages for background wipes that failed since the last call; those entries wait for the next session. */
+    List<String> takeFailures() {
+        List<String> out = new ArrayList<>();
+        for (String m; (m = failures.poll()) != null; ) out.add(m);
+        return out;
+    }
+
+    /**
+     * Takes {@code file} off its name at once and queues it for overwriting. Throws if it cannot
+     * be moved out of the way at all.
+     */
+    void add(Path file) throws IOException {
+        Path entry = enqueue(file);
+        outstanding.incrementAndGet();
+        pending.add(entry);
+    }
+
+    /**
+     * Takes {@code file} off its name and overwrites it on the calling thread at full speed. It is
+     * queued first, so a wipe cut short (or failing) is finished by the background worker, from its
+     * last checkpoint, now or next time.
+     */
+    void wipeNow(Path file) throws IOException {
+        Path entry = enqueue(file);
+        outstanding.incrementAndGet();
+        try {
+            wipe(entry, null);
+        } catch (IOException | RuntimeException e) {
+            pending.add(entry);
+            throw e;
+        }
+        outstanding.decrementAndGet();
+    }
+
+    /** Moves {@code file} into the queue directory (or hides it and queues a ref) and returns the entry. */
+    private Path enqueue(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        String seq = String.format(Locale.ROOT, "%0" + SEQ_DIGITS + "d", nextSeq.getAndIncrement());
+        Path entry = dir.resolve(seq + "-" + name);
+        try {
+            Files.move(file, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // another file system: hide it where it is and queue a reference to it
+            Path hidden = file.resolveSibling("." + name + "." + seq + HIDDEN_SUFFIX);
+            entry = dir.resolve(seq + "-" + name + REF_SUFFIX);
+            Path tmp = entry.resolveSibling(entry.getFileName() + ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                SegmentPipeline.write(ch, ByteBuffer.wrap(hidden.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8)));
+                ch.force(true);
+            }
+            Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+            try {
+                Files.move(file, hidden, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e2) {
+                Files.deleteIfExists(entry);
+                throw e2;
+            }
+        }
+        StagedWrite.forceDirectory(dir);
+        return entry;
+    }
+
+    /** Stops the worker; a wipe in progress stops at its next checkpoint and resumes next time. */
+    void close() {
+        Thread t = worker;
+        if (t == null) return;
+        t.interrupt();
+        try {
+            t.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Path entry;
+            try {
+                entry = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                wipe(entry, throttle);
+                outstanding.decrementAndGet();
+            } catch (InterruptedIOException | ClosedByInterruptException e) {
+                return;   // the entry stays on disk for the next session
+            } catch (IOException e) {
+                failures.add("Could not wipe " + entry.getFileName() + ": " + e.getMessage()
+                        + " (will retry next time the vault is opened)");
+                outstanding.decrementAndGet();
+            }
+        }
+    }
+
+    private void wipe(Path entry, TokenBucket limit) throws IOException {
+        boolean ref = entry.getFileName().toString().endsWith(REF_SUFFIX);
+        Path target = ref ? Paths.get(new String(Files.readAllBytes(entry), StandardCharsets.UTF_8)) : entry;
+        Path progress = progressPath(entry);
+        if (Files.exists(target)) {
+            int pass = 0;
+            long offset = 0;
+            try {
+                String[] at = new String(Files.readAllBytes(progress), StandardCharsets.US_ASCII).trim().split(" ");
+                pass = Integer.parseInt(at[0]);
+                offset = Long.parseLong(at[1]);
+            } catch (NoSuchFileException e) {
+                // not started yet
+            } catch (RuntimeException e) {
+                pass = 0;   // unreadable: start over
+                offset = 0;
+            }
+            wiper.overwrite(target, limit, pass, offset, (p, o) -> saveProgress(progress, p, o));
+            Files.delete(target);
+        }
+        if (ref) Files.delete(entry);
+        Files.deleteIfExists(progress);
+    }
+
+    private static void saveProgress(Path progress, int pass, long offset) throws IOException {
+        Path tmp = progress.resolveSibling(progress.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            SegmentPipeline.write(ch, ByteBuffer.wrap((pass + " " + offset).getBytes(StandardCharsets.US_ASCII)));
+            ch.force(true);
+        }
+        Files.move(tmp, progress, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** The hidden file recording how far the wipe of {@code entry} has got. */
+    private Path progressPath(Path entry) {
+        return dir.resolve("." + entry.getFileName().toString().substring(0, SEQ_DIGITS) + PROGRESS_SUFFIX);
+    }
+
+    /** The queue position in an entry name, or -1 if it is not an entry. */
+    private static long seqOf(String name) {
+        if (name.length() <= SEQ_DIGITS || name.charAt(SEQ_DIGITS) != '-') return -1;
+        try {
+            return Long.parseLong(name.substring(0, SEQ_DIGITS));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Overwrites files before deleting them.
+ *
+ * Random passes come from an AES-256-CTR keystream seeded once per file from SecureRandom: with
+ * AES-NI that runs at several GB/s, so a wipe is limited by the disk rather than by a shared,
+ * synchronized SecureRandom. Data goes out in page-aligned direct buffers of up to
+ * {@link #BUFFER_SIZE}, and the file is forced to disk once after the last pass (the passes before
+ * it only matter if they reach the platter, which a single final sync does not promise on every
+ * device anyway; {@code wipeSyncEveryPass=true} restores a sync per pass).
+ *
+ * <pre>
+ * wipePasses=3              number of overwrite passes
+ * wipePattern=random        comma-separated pass patterns, cycled over the passes:
+ *                           random, zeros, ones or a byte such as 0x55
+ * wipeSyncEveryPass=false   force the file to disk after every pass instead of once
+ * </pre>
+ */
+final class Wiper {
+    static final int BUFFER_SIZE = 1 << 20;
+    static final int DEFAULT_PASSES = 3;
+    static final long CHECKPOINT_BYTES = 64L << 20;
+    private static final int RANDOM = -1;   // pattern value: keystream instead of a fixed byte
+    /** Three random passes, synced once: what {@code secureDeleteFile} did, minus two syncs. */
+    static final Wiper DEFAULT = new Wiper(DEFAULT_PASSES, new int[]{RANDOM}, false);
+
+    private static final int ALIGN = 4096;
+    private static final SecureRandom RNG = new SecureRandom();
+
+    private final int passes;
+    private final int[] patterns;   // RANDOM or a byte value, cycled over the passes
+    private final boolean syncEveryPass;
+
+    /** Where a resumable overwrite has got: everything before {@code offset} of {@code pass} is on disk. */
+    interface Checkpoint {
+        void reached(int pass, long offset) throws IOException;
+    }
+
+    private Wiper(int passes, int[] patterns, boolean syncEveryPass) {
+        this.passes = passes;
+        this.patterns = patterns;
+        this.syncEveryPass = syncEveryPass;
+    }
+
+    /**
+     * A wiper for {@code passes} passes of the {@code wipePattern} syntax; a malformed pattern falls
+     * back to random passes with a notice.
+     */
+    static Wiper configure(int passes, String pattern, boolean syncEveryPass, List<String> notices) {
+        int[] p = new int[]{RANDOM};
+        if (pattern != null) {
+            try {
+                p = parsePattern(pattern);
+            } catch (IllegalArgumentException e) {
+                notices.add("Ignoring wipePattern=" + pattern + " (" + e.getMessage() + "); using random.");
+            }
+        }
+        return new Wiper(passes, p, syncEveryPass);
+    }
+
+    private static int[] parsePattern(String spec) {
+        List<Integer> out = new ArrayList<>();
+        for (String t : spec.split(",")) {
+            t = t.trim().toLowerCase(Locale.ROOT);
+            switch (t) {
+                case "random": out.add(RANDOM); break;
+                case "zeros":  out.add(0x00); break;
+                case "ones":   out.add(0xFF); break;
+                default:
+                    try {
+                        int b = t.startsWith("0x") ? Integer.parseInt(t.substring(2), 16) : -2;
+                        if (b < 0 || b > 0xFF) throw new NumberFormatException();
+                        out.add(b);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("unknown pattern '" + t + "'");
+                    }
+            }
+        }
+        return out.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    int passes() {
+        return passes;
+    }
+
+    /** Overwrites {@code file} with every pass, forces it to disk and deletes it. */
+    void destroy(Path file) throws IOException {
+        overwrite(file);
+        Files.delete(file);
+    }
+
+    /** Overwrites the whole of {@code file} in place with every pass. */
+    void overwrite(Path file) throws IOException {
+        overwrite(file, null);
+    }
+
+    /** As {@link #overwrite(Path)}, writing no faster than {@code throttle} allows (null: unlimited). */
+    void overwrite(Path file, TokenBucket throttle) throws IOException {
+        overwrite(file, throttle, 0, 0, null);
+    }
+
+    /**
+     * As {@link #overwrite(Path, TokenBucket)}, starting at byte {@code fromOffset} of pass
+     * {@code fromPass}. If {@code checkpoint} is not null it hears where the wipe has got every
+     * {@link #CHECKPOINT_BYTES}, and when the wipe is interrupted, each time after forcing what
+     * came before to disk; passing that back in carries on from there.
+     */
+    void overwrite(Path file, TokenBucket throttle, int fromPass, long fromOffset, Checkpoint checkpoint)
+            throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            if (size == 0) return;
+            int chunk = (int) Math.min(BUFFER_SIZE, (size + ALIGN - 1) / ALIGN * ALIGN);
+            ByteBuffer buf = ByteBuffer.allocateDirect(chunk + ALIGN).alignedSlice(ALIGN);
+            buf.limit(chunk);
+            Keystream ks = null;
+            for (int pass = Math.max(0, fromPass); pass < passes; pass++) {
+                int pattern = patterns[pass % patterns.length];
+                if (pattern != RANDOM) {
+                    buf.clear().limit(chunk);
+                    while (buf.hasRemaining()) buf.put((byte) pattern);
+                } else if (ks == null) {
+                    ks = new Keystream(chunk);
+                }
+                long pos = pass == fromPass ? Math.min(Math.max(0, fromOffset), size) : 0;
+                long lastCheckpoint = pos;
+                while (pos < size) {
+                    int n = (int) Math.min(chunk, size - pos);
+                    if (pattern == RANDOM) ks.fill(buf, n);
+                    buf.position(0).limit(n);
+                    if (throttle != null) {
+                        try {
+                            throttle.acquire(n);
+                        } catch (InterruptedException e) {
+                            // the flag is clear here, so the channel can still be forced
+                            if (checkpoint != null) {
+                                ch.force(false);
+                                checkpoint.reached(pass, pos);
+                            }
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while wiping " + file);
+                        }
+                    }
+                    while (buf.hasRemaining()) pos += ch.write(buf, pos);
+                    if (checkpoint != null && pos - lastCheckpoint >= CHECKPOINT_BYTES && pos < size) {
+                        ch.force(false);   // data first, then the claim that it is there
+                        checkpoint.reached(pass, pos);
+                        lastCheckpoint = pos;
+                    }
+                }
+                if (syncEveryPass || pass == passes - 1) ch.force(false);
+            }
+            if (ks != null) ks.destroy();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int p : patterns) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(p == RANDOM ? "random" : String.format(Locale.ROOT, "0x%02x", p));
+        }
+        return passes + " passes of " + sb + (syncEveryPass ? ", synced every pass" : "");
+    }
+
+    /** AES-256-CTR under a fresh random key: a fast CSPRNG for overwrite data. */
+    private static final class Keystream {
+        private final Cipher cipher;
+        private final byte[] block;
+
+        Keystream(int chunk) {
+            byte[] key = new byte[32];
+            byte[] iv = new byte[16];
+            RNG.nextBytes(key);
+            RNG.nextBytes(iv);
+            try {
+                cipher = Cipher.getInstance("AES/CTR/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES/CTR not available", e);
+            } finally {
+                Arrays.fill(key, (byte) 0);
+            }
+            block = new byte[chunk];
+        }
+
+        /** Puts the next {@code n} bytes of output at the start of {@code buf}. */
+        void fill(ByteBuffer buf, int n) {
+            // encrypting in place XORs the previous output with fresh keystream, which is just as
+            // unpredictable as encrypting zeros and saves clearing the array every time
+            try {
+                cipher.update(block, 0, n, block, 0);
+            } catch (ShortBufferException e) {
+                throw new IllegalStateException(e);
+            }
+            buf.clear();
+            buf.put(block, 0, n);
+        }
+
+        void destroy() {
+            Arrays.fill(block, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.stream.Stream;
+
+/**
+ * One VaultBench case, built in a scratch directory of its own and deleted on {@link #close}.
+ *
+ * The vault's classes live in the unnamed package, which JMH will not generate code for and which
+ * no named package can import, so {@code VaultBench.fixture} is looked up reflectively once; the
+ * timed call then goes through {@link Callable}. Fixtures go under {@code -Dvault.bench.dir}
+ * when it is set (gradle jmh -PbenchDir=...), otherwise under the system temp directory.
+ */
+final class Case implements Closeable {
+    private static final Method FIXTURE;
+
+    static {
+        try {
+            FIXTURE = Class.forName("VaultBench").getDeclaredMethod("fixture", Path.class, String.class, Object[].class);
+            FIXTURE.setAccessible(true);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Path scratch;
+    private final Object fixture;
+    private final Callable<?> op;
+    private final Method prepare;
+
+    private Case(Path scratch, Object fixture) throws NoSuchMethodException {
+        this.scratch = scratch;
+        this.fixture = fixture;
+        this.op = (Callable<?>) fixture;
+        this.prepare = fixture.getClass().getMethod("prepare");
+        this.prepare.setAccessible(true);
+    }
+
+    /** The VaultBench benchmark {@code name} whose params include the alternating name/value pairs {@code kv}. */
+    static Case open(String name, Object... kv) throws Exception {
+        String dir = System.getProperty("vault.bench.dir");
+        Path scratch = dir == null ? Files.createTempDirectory("vault-jmh")
+                : Files.createTempDirectory(Files.createDirectories(Paths.get(dir)), "vault-jmh");
+        try {
+            return new Case(scratch, FIXTURE.invoke(null, scratch, name, kv));
+        } catch (InvocationTargetException e) {
+            deleteTree(scratch);
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (Exception | Error e) {
+            deleteTree(scratch);
+            throw e;
+        }
+    }
+
+    /** The timed operation; returns the bytes it processed. */
+    long run() throws Exception {
+        return (Long) op.call();
+    }
+
+    /** Untimed preparation the case needs before every call; a no-op for most cases. */
+    void prepare() throws Exception {
+        try {
+            prepare.invoke(fixture);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            ((Closeable) fixture).close();
+        } finally {
+            deleteTree(scratch);
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) return;
+        try (Stream<Path> s = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator) Files.deleteIfExists(p);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.IOException;
+
+/**
+ * JMH state holding the {@link Case} for the benchmark being run. Benchmark methods are named after
+ * the VaultBench benchmark they time ({@code group} + method name, e.g. "pipeline." + "encrypt"),
+ * and subclasses supply the case's params from their {@code @Param} fields.
+ */
+public abstract class CaseState {
+    private final String group;
+    Case c;
+
+    protected CaseState(String group) {
+        this.group = group;
+    }
+
+    /** Alternating name/value pairs the case's VaultBench params must include. */
+    protected Object[] params() {
+        return new Object[0];
+    }
+
+    protected Case open(String method) throws Exception {
+        return Case.open(group + method, params());
+    }
+
+    @Setup(Level.Trial)
+    public void openCase(BenchmarkParams b) throws Exception {
+        String name = b.getBenchmark();
+        c = open(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void closeCase() throws IOException {
+        if (c != null) c.close();
+    }
+}
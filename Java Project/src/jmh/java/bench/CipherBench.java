@@ -0,0 +1,27 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Raw JCA throughput of the candidate cipher suites over one 64 KiB segment. */
+@State(Scope.Benchmark)
+public class CipherBench extends CaseState {
+    @Param({"AES-GCM", "ChaCha20-Poly1305", "AES-CTR+HMAC-SHA256"})
+    public String suite;
+
+    public CipherBench() {
+        super("cipher.");
+    }
+
+    @Override
+    protected Object[] params() {
+        return new Object[]{"suite", suite};
+    }
+
+    @Benchmark
+    public long encrypt() throws Exception {
+        return c.run();
+    }
+}
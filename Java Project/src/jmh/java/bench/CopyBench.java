@@ -0,0 +1,61 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Copy of a 128 MiB file through VaultEngine.copy, pooled direct buffers, and buffered streams. */
+public class CopyBench {
+    @State(Scope.Benchmark)
+    public static class Plain extends CaseState {
+        public Plain() {
+            super("copy.");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Channel extends CaseState {
+        @Param({"65536", "1048576", "4194304"})
+        public int bufferSize;
+
+        public Channel() {
+            super("copy.");
+        }
+
+        @Override
+        protected Object[] params() {
+            return new Object[]{"bufferSize", bufferSize};
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Buffered extends CaseState {
+        @Param({"8192", "65536", "1048576"})
+        public int bufferSize;
+
+        public Buffered() {
+            super("copy.");
+        }
+
+        @Override
+        protected Object[] params() {
+            return new Object[]{"bufferSize", bufferSize};
+        }
+    }
+
+    @Benchmark
+    public long svcopy(Plain s) throws Exception {
+        return s.c.run();
+    }
+
+    @Benchmark
+    public long channel(Channel s) throws Exception {
+        return s.c.run();
+    }
+
+    @Benchmark
+    public long buffered(Buffered s) throws Exception {
+        return s.c.run();
+    }
+}
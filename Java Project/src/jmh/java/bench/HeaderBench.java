@@ -0,0 +1,18 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Cost of parsing one item header (v2 with the usual key-id extension). */
+@State(Scope.Benchmark)
+public class HeaderBench extends CaseState {
+    public HeaderBench() {
+        super("header.");
+    }
+
+    @Benchmark
+    public long parse() throws Exception {
+        return c.run();
+    }
+}
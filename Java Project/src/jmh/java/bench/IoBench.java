@@ -0,0 +1,66 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Single-threaded file-to-file item encrypt/decrypt of a 256 MiB file: buffered streams against
+ * FileChannel with pooled direct buffers of several sizes, and mapped windows for decryption.
+ */
+public class IoBench {
+    @State(Scope.Benchmark)
+    public static class Stream extends CaseState {
+        public Stream() {
+            super("io.");
+        }
+
+        @Override
+        protected Case open(String method) throws Exception {
+            return Case.open("io." + method.substring("stream".length()).toLowerCase(), "path", "stream");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Channel extends CaseState {
+        @Param({"262144", "1048576", "4194304"})
+        public int bufferSize;
+
+        public Channel() {
+            super("io.");
+        }
+
+        @Override
+        protected Case open(String method) throws Exception {
+            return method.equals("decryptMapped")
+                    ? Case.open("io.decrypt", "path", "mapped", "bufferSize", bufferSize)
+                    : Case.open("io." + method, "path", "channel", "bufferSize", bufferSize);
+        }
+    }
+
+    @Benchmark
+    public long streamEncrypt(Stream s) throws Exception {
+        return s.c.run();
+    }
+
+    @Benchmark
+    public long streamDecrypt(Stream s) throws Exception {
+        return s.c.run();
+    }
+
+    @Benchmark
+    public long encrypt(Channel s) throws Exception {
+        return s.c.run();
+    }
+
+    @Benchmark
+    public long decrypt(Channel s) throws Exception {
+        return s.c.run();
+    }
+
+    @Benchmark
+    public long decryptMapped(Channel s) throws Exception {
+        return s.c.run();
+    }
+}
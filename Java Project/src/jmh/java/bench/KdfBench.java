@@ -0,0 +1,44 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Password-to-key latency: PBKDF2 as older vaults use it, and the default Argon2id. VaultBench only
+ * builds thread counts up to min(lanes, cores), so on smaller hosts pass e.g. {@code -p threads=1}.
+ */
+public class KdfBench {
+    @State(Scope.Benchmark)
+    public static class Pbkdf2 extends CaseState {
+        public Pbkdf2() {
+            super("kdf.");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Argon2 extends CaseState {
+        @Param({"1", "2", "4"})
+        public int threads;
+
+        public Argon2() {
+            super("kdf.");
+        }
+
+        @Override
+        protected Object[] params() {
+            return new Object[]{"threads", threads};
+        }
+    }
+
+    @Benchmark
+    public long pbkdf2(Pbkdf2 s) throws Exception {
+        return s.c.run();
+    }
+
+    @Benchmark
+    public long argon2id(Argon2 s) throws Exception {
+        return s.c.run();
+    }
+}
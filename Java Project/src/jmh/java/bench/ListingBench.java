@@ -0,0 +1,41 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Listing a synthetic vault: replaying the encrypted index, and the header scan a rebuild does. */
+public class ListingBench {
+    @State(Scope.Benchmark)
+    public static class Index extends CaseState {
+        @Param({"1000", "100000", "1000000"})
+        public int items;
+
+        public Index() {
+            super("list.");
+        }
+
+        @Override
+        protected Object[] params() {
+            return new Object[]{"items", items};
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class HeaderScan extends CaseState {
+        public HeaderScan() {
+            super("list.");
+        }
+    }
+
+    @Benchmark
+    public long index(Index s) throws Exception {
+        return s.c.run();
+    }
+
+    @Benchmark
+    public long headerScan(HeaderScan s) throws Exception {
+        return s.c.run();
+    }
+}
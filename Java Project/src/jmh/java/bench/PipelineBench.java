@@ -0,0 +1,40 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * File-to-file item encrypt/decrypt of a 256 MiB file through SegmentPipeline. VaultBench only
+ * builds thread counts up to the core count, so on smaller hosts pass e.g. {@code -p threads=1,2}.
+ */
+@State(Scope.Benchmark)
+public class PipelineBench extends CaseState {
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    public PipelineBench() {
+        super("pipeline.");
+    }
+
+    @Override
+    protected Object[] params() {
+        return new Object[]{"threads", threads};
+    }
+
+    @Benchmark
+    public long encrypt() throws Exception {
+        return c.run();
+    }
+
+    @Benchmark
+    public long decrypt() throws Exception {
+        return c.run();
+    }
+
+    @Benchmark
+    public long decryptMapped() throws Exception {
+        return c.run();
+    }
+}
@@ -0,0 +1,38 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Item encrypt/decrypt through SegmentCipher, in memory, across payload sizes, segment sizes and suites. */
+@State(Scope.Benchmark)
+public class SegmentCipherBench extends CaseState {
+    @Param({"4096", "1048576", "67108864"})
+    public int fileSize;
+
+    @Param({"16384", "65536", "1048576"})
+    public int segmentSize;
+
+    @Param({"AES_GCM", "CHACHA20_POLY1305", "AES_CTR_HMAC"})
+    public String suite;
+
+    public SegmentCipherBench() {
+        super("segment.");
+    }
+
+    @Override
+    protected Object[] params() {
+        return new Object[]{"fileSize", fileSize, "segmentSize", segmentSize, "suite", suite};
+    }
+
+    @Benchmark
+    public long encrypt() throws Exception {
+        return c.run();
+    }
+
+    @Benchmark
+    public long decrypt() throws Exception {
+        return c.run();
+    }
+}
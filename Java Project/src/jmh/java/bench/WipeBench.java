@@ -0,0 +1,25 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Throughput of the default 3-pass overwrite of a 64 MiB file; recreating the file is not timed. */
+@State(Scope.Benchmark)
+public class WipeBench extends CaseState {
+    public WipeBench() {
+        super("wipe.");
+    }
+
+    @Setup(Level.Invocation)
+    public void recreate() throws Exception {
+        c.prepare();
+    }
+
+    @Benchmark
+    public long secureDelete() throws Exception {
+        return c.run();
+    }
+}